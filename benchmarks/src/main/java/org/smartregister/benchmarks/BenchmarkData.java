@@ -0,0 +1,45 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.benchmarks;
+
+import org.hl7.fhir.r4.model.Location;
+import org.smartregister.model.location.LocationHierarchyTree;
+import org.smartregister.model.location.utils.LocationHierarchyGenerator;
+
+import java.util.List;
+
+/** Builds the location inputs shared by the benchmarks. */
+final class BenchmarkData {
+
+    private BenchmarkData() {}
+
+    /**
+     * @return {@code size} locations forming a complete tree with the given fan-out, parents first
+     */
+    static List<Location> locations(int size, int fanOut) {
+        return new LocationHierarchyGenerator()
+                .setDepth(Integer.MAX_VALUE)
+                .setFanOut(fanOut, fanOut)
+                .setMaxLocations(size)
+                .generateLocations();
+    }
+
+    static LocationHierarchyTree hierarchy(List<Location> locations) {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromLocations(locations);
+        return locationHierarchyTree;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.smartregister.model.location.ChildTreeNode;
+import org.smartregister.model.location.CompactLocationHierarchy;
+import org.smartregister.model.location.Tree;
+import org.smartregister.model.location.TreeNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompactLocationHierarchyBenchmark {
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    @Param({"5"})
+    public int fanOut;
+
+    private Tree tree;
+
+    private CompactLocationHierarchy hierarchy;
+
+    private String[] lookupIds;
+
+    @Setup
+    public void setUp() {
+        tree = BenchmarkData.hierarchy(BenchmarkData.locations(size, fanOut)).getLocationsHierarchy();
+        hierarchy = CompactLocationHierarchy.from(tree);
+        lookupIds = new String[1024];
+        for (int i = 0; i < lookupIds.length; i++) {
+            lookupIds[i] = "Location/" + (1 + (long) i * size / lookupIds.length);
+        }
+    }
+
+    @Benchmark
+    public CompactLocationHierarchy snapshot() {
+        return CompactLocationHierarchy.from(tree);
+    }
+
+    @Benchmark
+    public void treeParentLookup(Blackhole blackhole) {
+        for (String id : lookupIds) {
+            blackhole.consume(tree.getNode(id).getParent().getValue());
+        }
+    }
+
+    @Benchmark
+    public void snapshotParentLookup(Blackhole blackhole) {
+        for (String id : lookupIds) {
+            blackhole.consume(hierarchy.getParentId(id));
+        }
+    }
+
+    /** Collects the nodes at depth 3 below the first child of the root by walking the nodes. */
+    @Benchmark
+    public List<String> treeLevelWalk() {
+        List<TreeNode> level = new ArrayList<>();
+        level.add(tree.getNode("Location/2"));
+        for (int depth = 1; depth < 3; depth++) {
+            List<TreeNode> nextLevel = new ArrayList<>();
+            for (TreeNode node : level) {
+                for (ChildTreeNode child : node.getChildren()) {
+                    nextLevel.add(child.getChildren());
+                }
+            }
+            level = nextLevel;
+        }
+        List<String> ids = new ArrayList<>(level.size());
+        for (TreeNode node : level) {
+            ids.add(node.getNodeId().getValue());
+        }
+        return ids;
+    }
+
+    @Benchmark
+    public List<String> snapshotLevelQuery() {
+        return new ArrayList<>(hierarchy.getLevelIds("Location/2", 3));
+    }
+}
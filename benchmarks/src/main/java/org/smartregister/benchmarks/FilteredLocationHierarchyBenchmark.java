@@ -0,0 +1,116 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.benchmarks;
+
+import org.hl7.fhir.r4.model.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smartregister.model.location.FilteredLocationHierarchy;
+import org.smartregister.model.location.LocationFilter;
+import org.smartregister.model.location.LocationHierarchyTree;
+import org.smartregister.model.location.Tree;
+import org.smartregister.model.location.TreeNode;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selects the active locations below a region, with their ancestors, by filtering the nodes and
+ * rebuilding a hierarchy from them, and through {@link LocationHierarchyTree#filter}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilteredLocationHierarchyBenchmark {
+
+    private static final String ROOT_ID = "Location/2";
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    @Param({"5"})
+    public int fanOut;
+
+    private LocationHierarchyTree locationHierarchyTree;
+
+    private LocationFilter filter;
+
+    @Setup
+    public void setUp() {
+        List<Location> locations = BenchmarkData.locations(size, fanOut);
+        for (int i = 0; i < locations.size(); i += 4) {
+            locations.get(i).setStatus(Location.LocationStatus.INACTIVE);
+        }
+        locationHierarchyTree = BenchmarkData.hierarchy(locations);
+        filter = new LocationFilter().setStatuses(Location.LocationStatus.ACTIVE);
+        // Attribute bitmaps are built with the first filter on a snapshot
+        locationHierarchyTree.filter(filter, ROOT_ID);
+    }
+
+    @Benchmark
+    public LocationHierarchyTree filterAndRebuild() {
+        Tree tree = locationHierarchyTree.getLocationsHierarchy();
+        Map<String, Location> kept = new LinkedHashMap<>();
+        Iterator<TreeNode> nodes = tree.getSubtree(ROOT_ID).preOrderIterator();
+        while (nodes.hasNext()) {
+            TreeNode node = nodes.next();
+            if (node.getNode().getStatus() != Location.LocationStatus.ACTIVE) {
+                continue;
+            }
+            List<TreeNode> path = new ArrayList<>();
+            for (TreeNode current = node;
+                    current != null && !kept.containsKey(current.getNodeId().getValue());
+                    current = tree.getNode(current.getParent().getValue())) {
+                path.add(current);
+                if (current.getNodeId().getValue().equals(ROOT_ID)) {
+                    break;
+                }
+            }
+            for (int i = path.size() - 1; i >= 0; i--) {
+                kept.put(path.get(i).getNodeId().getValue(), path.get(i).getNode());
+            }
+        }
+        LocationHierarchyTree filtered = new LocationHierarchyTree();
+        filtered.buildTreeFromLocations(kept.values());
+        return filtered;
+    }
+
+    @Benchmark
+    public FilteredLocationHierarchy filterView() {
+        return locationHierarchyTree.filter(filter, ROOT_ID);
+    }
+
+    @Benchmark
+    public Tree filterViewToTree() {
+        return locationHierarchyTree.filter(filter, ROOT_ID).toTree();
+    }
+}
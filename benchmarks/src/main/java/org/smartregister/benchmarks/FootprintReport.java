@@ -0,0 +1,60 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.benchmarks;
+
+import org.hl7.fhir.r4.model.Location;
+import org.openjdk.jol.info.GraphLayout;
+import org.smartregister.model.location.CompactLocationHierarchy;
+import org.smartregister.model.location.Tree;
+
+import java.util.List;
+
+/**
+ * Prints the retained heap of a {@link Tree} and of its {@link CompactLocationHierarchy} snapshot.
+ * The {@link Location} payloads are shared by both and are left out of the figures.
+ *
+ * <p>Run with {@code java -cp target/benchmarks.jar org.smartregister.benchmarks.FootprintReport
+ * [size...]}.
+ */
+public final class FootprintReport {
+
+    private FootprintReport() {}
+
+    public static void main(String[] args) {
+        int[] sizes = args.length > 0 ? parseSizes(args) : new int[] {10_000, 100_000, 300_000};
+        System.out.printf("%10s %16s %16s %8s%n", "nodes", "tree bytes", "compact bytes", "ratio");
+        for (int size : sizes) {
+            List<Location> locations = BenchmarkData.locations(size, 5);
+            Tree tree = BenchmarkData.hierarchy(locations).getLocationsHierarchy();
+            CompactLocationHierarchy hierarchy = CompactLocationHierarchy.from(tree);
+
+            GraphLayout payloads = GraphLayout.parseInstance(locations.toArray());
+            long treeBytes = GraphLayout.parseInstance(tree).subtract(payloads).totalSize();
+            long compactBytes = GraphLayout.parseInstance(hierarchy).subtract(payloads).totalSize();
+            System.out.printf(
+                    "%10d %16d %16d %7.1fx%n",
+                    size, treeBytes, compactBytes, (double) treeBytes / compactBytes);
+        }
+    }
+
+    private static int[] parseSizes(String[] args) {
+        int[] sizes = new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i]);
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.StringType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smartregister.model.location.CompactLocationHierarchy;
+import org.smartregister.model.location.LocationHierarchy;
+import org.smartregister.model.location.LocationHierarchyJsonReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the JSON of a hierarchy with HAPI's JSON parser and with the streaming reader, in full and
+ * for the subtree of the first child of the root. Run with {@code -prof gc} to compare allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocationHierarchyJsonReaderBenchmark {
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    @Param({"5"})
+    public int fanOut;
+
+    private FhirContext fhirContext;
+
+    private LocationHierarchyJsonReader structureReader;
+
+    private LocationHierarchyJsonReader payloadReader;
+
+    private byte[] json;
+
+    @Setup
+    public void setUp() {
+        fhirContext = FhirContext.forR4();
+        structureReader = new LocationHierarchyJsonReader();
+        payloadReader = new LocationHierarchyJsonReader(fhirContext);
+        LocationHierarchy locationHierarchy = new LocationHierarchy();
+        locationHierarchy.setId("Location/1");
+        locationHierarchy.setLocationId(new StringType("Location/1"));
+        locationHierarchy.setLocationHierarchyTree(
+                BenchmarkData.hierarchy(BenchmarkData.locations(size, fanOut)));
+        json =
+                fhirContext
+                        .newJsonParser()
+                        .encodeResourceToString(locationHierarchy)
+                        .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public LocationHierarchy hapiParser() {
+        return fhirContext
+                .newJsonParser()
+                .parseResource(LocationHierarchy.class, new ByteArrayInputStream(json));
+    }
+
+    @Benchmark
+    public CompactLocationHierarchy streamingStructure() throws IOException {
+        return structureReader.readCompactHierarchy(new ByteArrayInputStream(json));
+    }
+
+    @Benchmark
+    public CompactLocationHierarchy streamingWithPayloads() throws IOException {
+        return payloadReader.readCompactHierarchy(new ByteArrayInputStream(json));
+    }
+
+    @Benchmark
+    public CompactLocationHierarchy streamingSubtree() throws IOException {
+        return payloadReader.readCompactHierarchy(new ByteArrayInputStream(json), "Location/2");
+    }
+}
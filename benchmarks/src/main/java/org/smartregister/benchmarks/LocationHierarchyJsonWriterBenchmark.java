@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.StringType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smartregister.model.location.LocationHierarchy;
+import org.smartregister.model.location.LocationHierarchyJsonWriter;
+import org.smartregister.model.location.LocationHierarchyTree;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Encodes a hierarchy to a discarding stream with HAPI's JSON parser and with the streaming writer. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocationHierarchyJsonWriterBenchmark {
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    @Param({"5"})
+    public int fanOut;
+
+    /** Whether nodes carry their Location, or only id, label and parent. */
+    @Param({"true", "false"})
+    public boolean payloads;
+
+    private FhirContext fhirContext;
+
+    private LocationHierarchyJsonWriter jsonWriter;
+
+    private LocationHierarchy locationHierarchy;
+
+    @Setup
+    public void setUp() {
+        fhirContext = FhirContext.forR4();
+        jsonWriter = new LocationHierarchyJsonWriter(fhirContext);
+        locationHierarchy = new LocationHierarchy();
+        locationHierarchy.setId("Location/1");
+        locationHierarchy.setLocationId(new StringType("Location/1"));
+        List<Location> locations = BenchmarkData.locations(size, fanOut);
+        LocationHierarchyTree locationHierarchyTree;
+        if (payloads) {
+            locationHierarchyTree = BenchmarkData.hierarchy(locations);
+        } else {
+            locationHierarchyTree = new LocationHierarchyTree();
+            for (Location location : locations) {
+                locationHierarchyTree.addLocation(
+                        location.getId(),
+                        location.getName(),
+                        location.hasPartOf() ? location.getPartOf().getReference() : null);
+            }
+        }
+        locationHierarchy.setLocationHierarchyTree(locationHierarchyTree);
+    }
+
+    @Benchmark
+    public void hapiParser() throws IOException {
+        Writer writer = new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8);
+        fhirContext.newJsonParser().encodeResourceToWriter(locationHierarchy, writer);
+        writer.flush();
+    }
+
+    @Benchmark
+    public void streamingWriter() throws IOException {
+        jsonWriter.write(locationHierarchy, OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smartregister.model.location.CompactLocationHierarchy;
+import org.smartregister.model.location.LocationLabelIndex;
+import org.smartregister.model.location.Tree;
+import org.smartregister.model.location.TreeNode;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the first ten locations whose label starts with a prefix by filtering every node label, as
+ * a picker does without an index, and with {@link LocationLabelIndex}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocationLabelIndexBenchmark {
+
+    private static final int LIMIT = 10;
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    @Param({"5"})
+    public int fanOut;
+
+    @Param({"location 12", "location 99"})
+    public String prefix;
+
+    private Tree tree;
+
+    private CompactLocationHierarchy hierarchy;
+
+    private LocationLabelIndex index;
+
+    @Setup
+    public void setUp() {
+        tree = BenchmarkData.hierarchy(BenchmarkData.locations(size, fanOut)).getLocationsHierarchy();
+        hierarchy = tree.getCompactHierarchy();
+        index = hierarchy.getLabelIndex();
+    }
+
+    @Benchmark
+    public List<String> linearFilter() {
+        List<String> ids = new ArrayList<>();
+        Iterator<TreeNode> nodes = tree.preOrderIterator();
+        while (nodes.hasNext() && ids.size() < LIMIT) {
+            TreeNode node = nodes.next();
+            if (node.getLabel().getValue().toLowerCase(Locale.ROOT).startsWith(prefix)) {
+                ids.add(node.getNodeId().getValue());
+            }
+        }
+        return ids;
+    }
+
+    @Benchmark
+    public List<String> indexSearch() {
+        return index.search(prefix, LIMIT);
+    }
+
+    @Benchmark
+    public List<String> indexSearchInSubtree() {
+        return index.search(prefix, "Location/3", LIMIT);
+    }
+
+    @Benchmark
+    public LocationLabelIndex indexBuild() {
+        return LocationLabelIndex.from(hierarchy);
+    }
+}
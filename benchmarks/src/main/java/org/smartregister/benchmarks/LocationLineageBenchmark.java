@@ -0,0 +1,77 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.hl7.fhir.r4.model.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smartregister.helpers.InMemoryFhirServer;
+import org.smartregister.helpers.LocationHelper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link LocationHelper#updateLocationLineage} over a whole hierarchy held by {@link
+ * InMemoryFhirServer}, which makes one update and one search per location plus a call per further
+ * page of children. Resources are encoded and parsed as JSON on both sides; {@code latency} adds a
+ * delay in microseconds to every call, e.g. {@code -p latency=500} for a server on a nearby network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LocationLineageBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    @Param({"5", "200"})
+    public int fanOut;
+
+    @Param({"0"})
+    public int latency;
+
+    private InMemoryFhirServer server;
+
+    private IGenericClient client;
+
+    @Setup
+    public void setUp() {
+        server =
+                new InMemoryFhirServer(FhirContext.forR4())
+                        .putLocations(BenchmarkData.locations(size, fanOut))
+                        .setLatency(latency, TimeUnit.MICROSECONDS);
+        client = server.newClient();
+    }
+
+    @Benchmark
+    public Location updateLocationLineage() {
+        return LocationHelper.updateLocationLineage(client, "1");
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.benchmarks;
+
+import org.hl7.fhir.r4.model.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smartregister.model.location.CompactLocationHierarchy;
+import org.smartregister.model.location.LocationSpatialIndex;
+import org.smartregister.model.location.Tree;
+import org.smartregister.model.location.TreeNode;
+import org.smartregister.model.location.utils.LocationHierarchyGenerator;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the ten locations nearest to a point by computing the distance to every location, and with
+ * {@link LocationSpatialIndex}. Locations are placed near their parent, so subtrees cover regions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocationSpatialIndexBenchmark {
+
+    private static final int COUNT = 10;
+
+    private static final double LATITUDE = -1.29;
+
+    private static final double LONGITUDE = 36.82;
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    @Param({"5"})
+    public int fanOut;
+
+    private Tree tree;
+
+    private CompactLocationHierarchy hierarchy;
+
+    private LocationSpatialIndex index;
+
+    private String scopeId;
+
+    @Setup
+    public void setUp() {
+        List<Location> locations =
+                new LocationHierarchyGenerator()
+                        .setDepth(Integer.MAX_VALUE)
+                        .setFanOut(fanOut, fanOut)
+                        .setMaxLocations(size)
+                        .setPositions(LATITUDE, LONGITUDE, 2)
+                        .generateLocations();
+        tree = BenchmarkData.hierarchy(locations).getLocationsHierarchy();
+        hierarchy = tree.getCompactHierarchy();
+        index = hierarchy.getSpatialIndex();
+        scopeId = "Location/2";
+    }
+
+    @Benchmark
+    public List<String> bruteForce() {
+        // The farthest of the nearest nodes found so far on top
+        PriorityQueue<Object[]> nearest =
+                new PriorityQueue<>(
+                        Comparator.comparingDouble((Object[] entry) -> (Double) entry[0])
+                                .reversed());
+        Iterator<TreeNode> iterator = tree.preOrderIterator();
+        while (iterator.hasNext()) {
+            TreeNode node = iterator.next();
+            nearest.add(new Object[] {distanceTo(node), node.getNodeId().getValue()});
+            if (nearest.size() > COUNT) {
+                nearest.poll();
+            }
+        }
+        List<String> ids = new ArrayList<>(COUNT);
+        while (!nearest.isEmpty()) {
+            ids.add(0, (String) nearest.poll()[1]);
+        }
+        return ids;
+    }
+
+    @Benchmark
+    public List<String> indexNearest() {
+        return index.findNearest(LATITUDE, LONGITUDE, COUNT);
+    }
+
+    @Benchmark
+    public List<String> indexNearestInSubtree() {
+        return index.findNearest(LATITUDE, LONGITUDE, COUNT, scopeId);
+    }
+
+    @Benchmark
+    public List<String> indexWithin() {
+        return index.findWithin(
+                LATITUDE - 0.1, LONGITUDE - 0.1, LATITUDE + 0.1, LONGITUDE + 0.1, null);
+    }
+
+    @Benchmark
+    public LocationSpatialIndex indexBuild() {
+        return LocationSpatialIndex.from(hierarchy);
+    }
+
+    private static double distanceTo(TreeNode node) {
+        Location.LocationPositionComponent position = node.getNode().getPosition();
+        return LocationSpatialIndex.distance(
+                LATITUDE,
+                LONGITUDE,
+                position.getLatitude().doubleValue(),
+                position.getLongitude().doubleValue());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.benchmarks;
+
+import org.hl7.fhir.r4.model.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smartregister.model.location.LocationHierarchyBuildReport;
+import org.smartregister.model.location.LocationHierarchyTree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds a hierarchy from shuffled locations sequentially and on pools of 1, 4 and 16 threads. The
+ * speedup is bounded by the cores of the machine, which JMH prints with the results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ParallelBuildBenchmark {
+
+    @Param({"100000", "500000"})
+    public int size;
+
+    @Param({"5"})
+    public int fanOut;
+
+    @Param({"1", "4", "16"})
+    public int parallelism;
+
+    private List<Location> locations;
+
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() {
+        locations = new ArrayList<>(BenchmarkData.locations(size, fanOut));
+        Collections.shuffle(locations, new Random(42));
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public LocationHierarchyBuildReport buildSequential() {
+        return new LocationHierarchyTree().buildTreeFromLocations(locations);
+    }
+
+    @Benchmark
+    public LocationHierarchyBuildReport buildParallel() {
+        return new LocationHierarchyTree().buildTreeFromLocations(locations, pool);
+    }
+}
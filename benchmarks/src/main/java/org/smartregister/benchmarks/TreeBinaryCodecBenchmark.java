@@ -0,0 +1,121 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smartregister.model.location.LocationHierarchy;
+import org.smartregister.model.location.LocationHierarchyTree;
+import org.smartregister.model.location.Tree;
+import org.smartregister.model.location.TreeBinaryCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes the tree of a hierarchy with HAPI's JSON parser and with {@link
+ * TreeBinaryCodec}. The sizes of both encodings are printed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeBinaryCodecBenchmark {
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    @Param({"5"})
+    public int fanOut;
+
+    @Param({"true", "false"})
+    public boolean payloads;
+
+    private FhirContext fhirContext;
+
+    private TreeBinaryCodec codec;
+
+    private LocationHierarchy locationHierarchy;
+
+    private Tree tree;
+
+    private byte[] json;
+
+    private byte[] binary;
+
+    @Setup
+    public void setUp() {
+        fhirContext = FhirContext.forR4();
+        codec = payloads ? new TreeBinaryCodec(fhirContext) : new TreeBinaryCodec();
+        locationHierarchy = new LocationHierarchy();
+        List<Location> locations = BenchmarkData.locations(size, fanOut);
+        LocationHierarchyTree locationHierarchyTree;
+        if (payloads) {
+            locationHierarchyTree = BenchmarkData.hierarchy(locations);
+        } else {
+            locationHierarchyTree = new LocationHierarchyTree();
+            for (Location location : locations) {
+                locationHierarchyTree.addLocation(
+                        location.getId(),
+                        location.getName(),
+                        location.hasPartOf() ? location.getPartOf().getReference() : null);
+            }
+        }
+        locationHierarchy.setLocationHierarchyTree(locationHierarchyTree);
+        tree = locationHierarchyTree.getLocationsHierarchy();
+        json = hapiEncode().getBytes(StandardCharsets.UTF_8);
+        binary = codec.encode(tree);
+        System.out.printf("%nJSON: %d bytes, binary: %d bytes%n", json.length, binary.length);
+    }
+
+    @Benchmark
+    public String hapiEncode() {
+        return fhirContext.newJsonParser().encodeResourceToString(locationHierarchy);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return codec.encode(tree);
+    }
+
+    @Benchmark
+    public LocationHierarchy hapiDecode() {
+        return fhirContext
+                .newJsonParser()
+                .parseResource(LocationHierarchy.class, new ByteArrayInputStream(json));
+    }
+
+    @Benchmark
+    public Tree binaryDecode() throws IOException {
+        return codec.decode(binary);
+    }
+}
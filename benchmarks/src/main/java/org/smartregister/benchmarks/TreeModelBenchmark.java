@@ -0,0 +1,138 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.StringType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.smartregister.model.location.LocationHierarchy;
+import org.smartregister.model.location.LocationHierarchyTree;
+import org.smartregister.model.location.Tree;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The core operations of the tree model on complete trees of each size and fan-out. Run with
+ * {@code -prof gc} to see the bytes allocated per operation next to the time taken.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeModelBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    @Param({"2", "5", "20"})
+    public int fanOut;
+
+    private List<Location> locations;
+
+    private LocationHierarchyTree locationHierarchyTree;
+
+    private String[] lookupIds;
+
+    private IParser parser;
+
+    private LocationHierarchy locationHierarchy;
+
+    private String json;
+
+    @Setup
+    public void setUp() {
+        locations = BenchmarkData.locations(size, fanOut);
+        locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromList(locations);
+        lookupIds = new String[1024];
+        for (int i = 0; i < lookupIds.length; i++) {
+            lookupIds[i] = "Location/" + (1 + (long) i * size / lookupIds.length);
+        }
+
+        parser = FhirContext.forR4().newJsonParser();
+        locationHierarchy = new LocationHierarchy();
+        locationHierarchy.setId("Location/1");
+        locationHierarchy.setLocationId(new StringType("Location/1"));
+        locationHierarchy.setLocationHierarchyTree(locationHierarchyTree);
+        json = parser.encodeResourceToString(locationHierarchy);
+    }
+
+    /** Adds every location to an empty tree one by one, parents first. */
+    @Benchmark
+    public Tree addNode() {
+        Tree tree = new Tree();
+        for (Location location : locations) {
+            String parentId = location.hasPartOf() ? location.getPartOf().getReference() : null;
+            tree.addNode(location.getId(), location.getName(), location, parentId);
+        }
+        return tree;
+    }
+
+    /** Looks up 1024 nodes spread over the tree. */
+    @Benchmark
+    public void getNode(Blackhole blackhole) {
+        Tree tree = locationHierarchyTree.getLocationsHierarchy();
+        for (String id : lookupIds) {
+            blackhole.consume(tree.getNode(id));
+        }
+    }
+
+    @Benchmark
+    public LocationHierarchyTree buildTreeFromList() {
+        LocationHierarchyTree tree = new LocationHierarchyTree();
+        tree.buildTreeFromList(locations);
+        return tree;
+    }
+
+    @Benchmark
+    public LocationHierarchyTree copy() {
+        return locationHierarchyTree.copy();
+    }
+
+    /** Copies the hierarchy and changes the copy, which copies the path to the changed node. */
+    @Benchmark
+    public LocationHierarchyTree copyAndAddLocation() {
+        LocationHierarchyTree copy = locationHierarchyTree.copy();
+        copy.addLocation("Location/" + (size + 1), "added", "Location/" + size);
+        return copy;
+    }
+
+    @Benchmark
+    public String encodeJson() {
+        return parser.encodeResourceToString(locationHierarchy);
+    }
+
+    @Benchmark
+    public LocationHierarchy decodeJson() {
+        return parser.parseResource(LocationHierarchy.class, json);
+    }
+}
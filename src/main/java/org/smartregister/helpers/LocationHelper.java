@@ -152,7 +152,7 @@ public class LocationHelper {
 
     if (resultBundle.getLink(Bundle.LINK_NEXT) != null) {
 
-      cleanUpBundlePaginationNextLinkServerBaseUrl((GenericClient) fhirClient, resultBundle);
+      cleanUpBundlePaginationNextLinkServerBaseUrl(fhirClient, resultBundle);
 
       Bundle pageResultBundle = fhirClient.loadPage().next(resultBundle).execute();
 
@@ -173,9 +173,21 @@ public class LocationHelper {
 
   public static void cleanUpBundlePaginationNextLinkServerBaseUrl(
       GenericClient fhirClient, Bundle resultBundle) {
+    cleanUpBundlePaginationNextLinkServerBaseUrl((IGenericClient) fhirClient, resultBundle);
+  }
+
+  /**
+   * Points the next link of the bundle at the server base of the client, as servers behind a
+   * proxy may return links with their internal base url.
+   *
+   * @param fhirClient any FHIR client, not necessarily a {@link GenericClient}
+   * @param resultBundle the bundle with a next link
+   */
+  public static void cleanUpBundlePaginationNextLinkServerBaseUrl(
+      IGenericClient fhirClient, Bundle resultBundle) {
     String cleanUrl =
         cleanHapiPaginationLinkBaseUrl(
-            resultBundle.getLink(Bundle.LINK_NEXT).getUrl(), fhirClient.getUrlBase());
+            resultBundle.getLink(Bundle.LINK_NEXT).getUrl(), fhirClient.getServerBase());
     resultBundle
         .getLink()
         .replaceAll(
@@ -22,6 +22,8 @@ import org.hl7.fhir.instance.model.api.ICompositeType;
 import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Type;
 
+import javax.annotation.Nullable;
+
 @DatatypeDef(name = "ChildTreeNode")
 public class ChildTreeNode extends Type implements ICompositeType {
 
@@ -40,10 +42,6 @@ public class ChildTreeNode extends Type implements ICompositeType {
             type = {TreeNode.class})
     private TreeNode treeNode;
 
-    public ChildTreeNode() {
-        treeNode = new TreeNode();
-    }
-
     public StringType getChildId() {
         return childId;
     }
@@ -60,15 +58,31 @@ public class ChildTreeNode extends Type implements ICompositeType {
         return treeNode;
     }
 
+    /**
+     * @return the child node, or null if none is set; unlike {@link #getChildren()} this never
+     *     creates an empty node
+     */
+    TreeNode peekTreeNode() {
+        return treeNode;
+    }
+
     public ChildTreeNode setChildren(TreeNode children) {
         this.treeNode = children;
         return this;
     }
 
+    /** Returns a deep copy of this entry and the nodes below it, see {@link TreeNode#copy()}. */
     @Override
-    public Type copy() {
+    public ChildTreeNode copy() {
+        return copyWith(treeNode != null ? treeNode.copy() : null);
+    }
+
+    /** Returns a copy of this entry that points at the given node. */
+    ChildTreeNode copyWith(@Nullable TreeNode treeNode) {
         ChildTreeNode childTreeNode = new ChildTreeNode();
         copyValues(childTreeNode);
+        childTreeNode.childId = childId != null ? childId.copy() : null;
+        childTreeNode.treeNode = treeNode;
         return childTreeNode;
     }
 
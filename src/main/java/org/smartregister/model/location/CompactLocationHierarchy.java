@@ -0,0 +1,637 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import org.hl7.fhir.r4.model.Location;
+import org.smartregister.utils.Utils;
+
+import javax.annotation.Nullable;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Frozen, array backed snapshot of a {@link Tree}.
+ *
+ * <p>Nodes are numbered in depth-first pre-order, so index {@code 0} is the root. Ids are held once
+ * in an id table with an open addressing hash index, parents in an {@code int[]} and children in
+ * compressed sparse row form: the children of node {@code i} are {@code childIndices[childOffsets[i]]}
+ * up to {@code childIndices[childOffsets[i + 1]]}. The {@link Location} payloads are shared with the
+ * source tree, not copied; payloads the tree has not loaded yet are fetched through its {@link
+ * LocationLoader} on each lookup.
+ *
+ * <p>Because of the pre-order numbering every subtree occupies a contiguous index range, its Euler
+ * tour entry and exit numbers: the subtree of node {@code i} is {@code [i, getSubtreeEnd(i))}.
+ * Ancestor checks are therefore two integer comparisons and subtree ids are a slice of the id table.
+ *
+ * <p>Nodes are also listed level by level, each level in pre-order. The nodes of a level that lie
+ * in a subtree are then a contiguous range of that level, found by binary search on the subtree's
+ * index range, so level queries take time proportional to their result.
+ *
+ * <p>Instances are immutable and safe to share between threads.
+ */
+public final class CompactLocationHierarchy {
+
+    public static final int NO_NODE = -1;
+
+    private final String[] ids;
+
+    private final String[] labels;
+
+    private final Location[] locations;
+
+    private final int[] parents;
+
+    private final int[] depths;
+
+    private final int[] childOffsets;
+
+    private final int[] childIndices;
+
+    private final int[] subtreeEnds;
+
+    /** Node indices ordered by depth, then pre-order. */
+    private final int[] levelNodes;
+
+    /** The nodes at depth {@code d} start at {@code levelNodes[levelOffsets[d]]}. */
+    private final int[] levelOffsets;
+
+    private final int[] idSlots;
+
+    private final String rootParentId;
+
+    private final LocationLoader locationLoader;
+
+    /** Built on first use; racing threads build equal indexes. */
+    private volatile LocationLabelIndex labelIndex;
+
+    private volatile LocationSpatialIndex spatialIndex;
+
+    private volatile LocationAttributeIndex attributeIndex;
+
+    private CompactLocationHierarchy(
+            String[] ids,
+            String[] labels,
+            Location[] locations,
+            int[] parents,
+            String rootParentId,
+            LocationLoader locationLoader) {
+        this.locationLoader = locationLoader;
+        this.ids = ids;
+        this.labels = labels;
+        this.locations = locations;
+        this.parents = parents;
+        this.rootParentId = rootParentId;
+
+        int size = ids.length;
+        this.depths = new int[size];
+        this.childOffsets = new int[size + 1];
+        for (int i = 1; i < size; i++) {
+            // Pre-order guarantees the parent was numbered before the child
+            depths[i] = depths[parents[i]] + 1;
+            childOffsets[parents[i] + 1]++;
+        }
+        for (int i = 0; i < size; i++) {
+            childOffsets[i + 1] += childOffsets[i];
+        }
+        this.childIndices = new int[Math.max(size - 1, 0)];
+        int[] nextChild = Arrays.copyOf(childOffsets, size);
+        for (int i = 1; i < size; i++) {
+            childIndices[nextChild[parents[i]]++] = i;
+        }
+        this.subtreeEnds = new int[size];
+        for (int i = size - 1; i >= 0; i--) {
+            // subtreeEnds holds subtree sizes until the node itself is reached
+            subtreeEnds[i] += 1;
+            if (i > 0) {
+                subtreeEnds[parents[i]] += subtreeEnds[i];
+            }
+            subtreeEnds[i] += i;
+        }
+        int levelCount = 0;
+        for (int i = 0; i < size; i++) {
+            levelCount = Math.max(levelCount, depths[i] + 1);
+        }
+        this.levelOffsets = new int[levelCount + 1];
+        for (int i = 0; i < size; i++) {
+            levelOffsets[depths[i] + 1]++;
+        }
+        for (int d = 0; d < levelCount; d++) {
+            levelOffsets[d + 1] += levelOffsets[d];
+        }
+        this.levelNodes = new int[size];
+        int[] nextLevelNode = Arrays.copyOf(levelOffsets, levelCount);
+        for (int i = 0; i < size; i++) {
+            levelNodes[nextLevelNode[depths[i]]++] = i;
+        }
+        this.idSlots = buildIdSlots(ids);
+    }
+
+    /**
+     * Takes a snapshot of the nodes reachable from the root of the given tree.
+     *
+     * @param tree the tree to take the snapshot of
+     * @return the snapshot, empty if the tree has no root node
+     */
+    public static CompactLocationHierarchy from(Tree tree) {
+        SingleTreeNode listOfNodes = tree.getListOfNodes();
+        TreeNode rootNode = listOfNodes != null ? listOfNodes.getTreeNode() : null;
+        if (rootNode == null) {
+            return new CompactLocationHierarchy(
+                    new String[0], new String[0], new Location[0], new int[0], null, null);
+        }
+
+        List<TreeNode> nodes = new ArrayList<>();
+        IntArrayBuilder parentIndices = new IntArrayBuilder();
+        Deque<TreeNode> stack = new ArrayDeque<>();
+        Deque<Integer> parentStack = new ArrayDeque<>();
+        stack.push(rootNode);
+        parentStack.push(NO_NODE);
+        while (!stack.isEmpty()) {
+            TreeNode current = stack.pop();
+            int index = nodes.size();
+            nodes.add(current);
+            parentIndices.add(parentStack.pop());
+
+            List<ChildTreeNode> children = current.getChildNodes();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                ChildTreeNode child = children.get(i);
+                if (child != null && child.peekTreeNode() != null) {
+                    stack.push(child.peekTreeNode());
+                    parentStack.push(index);
+                }
+            }
+        }
+
+        int size = nodes.size();
+        String[] ids = new String[size];
+        String[] labels = new String[size];
+        Location[] locations = new Location[size];
+        for (int i = 0; i < size; i++) {
+            TreeNode node = nodes.get(i);
+            ids[i] = node.getNodeId() != null ? node.getNodeId().getValue() : null;
+            labels[i] = node.getLabel() != null ? node.getLabel().getValue() : null;
+            locations[i] = node.peekNode();
+        }
+        if (listOfNodes.getTreeNodeId() != null && listOfNodes.getTreeNodeId().getValue() != null) {
+            ids[0] = listOfNodes.getTreeNodeId().getValue();
+        }
+        String rootParentId = rootNode.getParent() != null ? rootNode.getParent().getValue() : null;
+        return new CompactLocationHierarchy(
+                ids,
+                labels,
+                locations,
+                parentIndices.toArray(),
+                rootParentId,
+                tree.getLocationLoader());
+    }
+
+    /**
+     * Creates a snapshot from nodes listed in depth-first pre-order, the root first.
+     *
+     * @param parents the index of the parent of each node, {@link #NO_NODE} for the root
+     */
+    static CompactLocationHierarchy fromPreOrder(
+            String[] ids,
+            String[] labels,
+            Location[] locations,
+            int[] parents,
+            @Nullable String rootParentId) {
+        return new CompactLocationHierarchy(ids, labels, locations, parents, rootParentId, null);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public boolean isEmpty() {
+        return ids.length == 0;
+    }
+
+    /**
+     * @param id the node id, optionally with a {@code /_history} suffix
+     * @return the pre-order index of the node, or {@link #NO_NODE} if it is not in the snapshot
+     */
+    public int indexOf(String id) {
+        String idString = Utils.cleanIdString(id);
+        if (idString == null || idSlots.length == 0) {
+            return NO_NODE;
+        }
+        int mask = idSlots.length - 1;
+        int slot = mix(idString.hashCode()) & mask;
+        while (idSlots[slot] != NO_NODE) {
+            if (idString.equals(ids[idSlots[slot]])) {
+                return idSlots[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NO_NODE;
+    }
+
+    public boolean contains(String id) {
+        return indexOf(id) != NO_NODE;
+    }
+
+    public String getRootId() {
+        return ids.length > 0 ? ids[0] : null;
+    }
+
+    /**
+     * @return the id the root points to as its parent, which lies outside this hierarchy
+     */
+    @Nullable
+    public String getRootParentId() {
+        return rootParentId;
+    }
+
+    public String getId(int index) {
+        return ids[index];
+    }
+
+    public String getLabel(int index) {
+        return labels[index];
+    }
+
+    @Nullable
+    public String getLabel(String id) {
+        int index = indexOf(id);
+        return index != NO_NODE ? labels[index] : null;
+    }
+
+    @Nullable
+    public Location getLocation(int index) {
+        Location location = locations[index];
+        if (location == null && locationLoader != null) {
+            return locationLoader.load(ids[index]);
+        }
+        return location;
+    }
+
+    @Nullable
+    public Location getLocation(String id) {
+        int index = indexOf(id);
+        return index != NO_NODE ? getLocation(index) : null;
+    }
+
+    /**
+     * @return the index of the parent node, or {@link #NO_NODE} for the root
+     */
+    public int getParentIndex(int index) {
+        return parents[index];
+    }
+
+    /**
+     * @return the id of the parent node; for the root this is {@link #getRootParentId()}
+     */
+    @Nullable
+    public String getParentId(String id) {
+        int index = indexOf(id);
+        if (index == NO_NODE) {
+            return null;
+        }
+        return index == 0 ? rootParentId : ids[parents[index]];
+    }
+
+    /**
+     * @return the depth of the node, {@code 0} for the root
+     */
+    public int getDepth(int index) {
+        return depths[index];
+    }
+
+    /**
+     * @return the depth of the node, or {@link #NO_NODE} if it is not in the snapshot
+     */
+    public int getDepth(String id) {
+        int index = indexOf(id);
+        return index != NO_NODE ? depths[index] : NO_NODE;
+    }
+
+    public int getChildCount(int index) {
+        return childOffsets[index + 1] - childOffsets[index];
+    }
+
+    /**
+     * @return the index of the {@code position}th child of the node
+     */
+    public int getChildIndex(int index, int position) {
+        if (position < 0 || position >= getChildCount(index)) {
+            throw new IndexOutOfBoundsException("Child " + position + " of node " + ids[index]);
+        }
+        return childIndices[childOffsets[index] + position];
+    }
+
+    /**
+     * @return read-only view of the child ids of the node, empty if it is not in the snapshot
+     */
+    public List<String> getChildIds(String id) {
+        int index = indexOf(id);
+        if (index == NO_NODE) {
+            return Collections.emptyList();
+        }
+        int from = childOffsets[index];
+        int to = childOffsets[index + 1];
+        return new AbstractList<String>() {
+            @Override
+            public String get(int position) {
+                if (position < 0 || position >= to - from) {
+                    throw new IndexOutOfBoundsException(String.valueOf(position));
+                }
+                return ids[childIndices[from + position]];
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+
+    /**
+     * @return the exclusive end of the index range taken by the subtree of the node
+     */
+    public int getSubtreeEnd(int index) {
+        return subtreeEnds[index];
+    }
+
+    /**
+     * @return the number of nodes in the subtree of the node, including the node itself
+     */
+    public int getSubtreeSize(int index) {
+        return subtreeEnds[index] - index;
+    }
+
+    /**
+     * @return whether the node at {@code index} lies strictly below the node at {@code ancestorIndex}
+     */
+    public boolean isDescendant(int ancestorIndex, int index) {
+        return ancestorIndex < index && index < subtreeEnds[ancestorIndex];
+    }
+
+    /**
+     * Checks whether a location lies inside another one. A node is not its own descendant.
+     *
+     * @param ancestorId the id of the enclosing location
+     * @param id the id of the location to check
+     * @return whether {@code id} lies strictly below {@code ancestorId}; false if either is unknown
+     */
+    public boolean isDescendant(String ancestorId, String id) {
+        int ancestorIndex = indexOf(ancestorId);
+        int index = indexOf(id);
+        return ancestorIndex != NO_NODE && index != NO_NODE && isDescendant(ancestorIndex, index);
+    }
+
+    /**
+     * @return read-only view of the ids in the subtree of the node in pre-order, starting with the
+     *     node itself; empty if it is not in the snapshot
+     */
+    public List<String> getSubtreeIds(String id) {
+        int index = indexOf(id);
+        if (index == NO_NODE) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(ids).subList(index, subtreeEnds[index]));
+    }
+
+    /**
+     * @return the label prefix index of this snapshot, built on first use
+     */
+    public LocationLabelIndex getLabelIndex() {
+        LocationLabelIndex index = labelIndex;
+        if (index == null) {
+            index = LocationLabelIndex.from(this);
+            labelIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * @return the spatial index over the positions of the locations of this snapshot, built on
+     *     first use
+     */
+    public LocationSpatialIndex getSpatialIndex() {
+        LocationSpatialIndex index = spatialIndex;
+        if (index == null) {
+            index = LocationSpatialIndex.from(this);
+            spatialIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the locations that match a filter, together with their ancestors up to a node.
+     *
+     * @param filter the criteria the locations have to match
+     * @param rootId the id of the subtree to filter, or null to filter the whole hierarchy
+     * @return the view, empty if nothing matched or the node is not part of this snapshot
+     */
+    public FilteredLocationHierarchy filter(LocationFilter filter, @Nullable String rootId) {
+        int rootIndex = rootId != null ? indexOf(rootId) : isEmpty() ? NO_NODE : 0;
+        if (rootIndex == NO_NODE) {
+            return new FilteredLocationHierarchy(this, NO_NODE, new BitSet());
+        }
+        LocationAttributeIndex index = attributeIndex;
+        if (index == null) {
+            index = LocationAttributeIndex.from(this);
+            attributeIndex = index;
+        }
+        return new FilteredLocationHierarchy(
+                this, rootIndex, index.getMatches(filter, rootIndex, subtreeEnds[rootIndex]));
+    }
+
+    /**
+     * @return the number of levels, one more than the depth of the deepest node; 0 if empty
+     */
+    public int getLevelCount() {
+        return levelOffsets.length - 1;
+    }
+
+    /**
+     * @return the number of nodes at the given depth, {@code 0} for the root level
+     */
+    public int getLevelSize(int depth) {
+        return depth >= 0 && depth < getLevelCount()
+                ? levelOffsets[depth + 1] - levelOffsets[depth]
+                : 0;
+    }
+
+    /**
+     * @return read-only view of the ids at the given depth in pre-order, e.g. all districts
+     */
+    public List<String> getLevelIds(int depth) {
+        if (depth < 0 || depth >= getLevelCount()) {
+            return Collections.emptyList();
+        }
+        return levelIdsView(levelOffsets[depth], levelOffsets[depth + 1]);
+    }
+
+    /**
+     * Returns the nodes at a depth below a node, e.g. all nodes at level 3 under a region. Depths
+     * count from the root of the hierarchy, not from the node.
+     *
+     * @param id the id of the node whose subtree to search
+     * @param depth the depth of the nodes to return
+     * @return read-only view of the ids in pre-order; empty if the node is not in the snapshot or
+     *     has no nodes at that depth
+     */
+    public List<String> getLevelIds(String id, int depth) {
+        int index = indexOf(id);
+        if (index == NO_NODE || depth < depths[index] || depth >= getLevelCount()) {
+            return Collections.emptyList();
+        }
+        return levelIdsView(lowerBound(depth, index), lowerBound(depth, subtreeEnds[index]));
+    }
+
+    /**
+     * @return the number of nodes at the given depth below the node, see {@link
+     *     #getLevelIds(String, int)}
+     */
+    public int getLevelSize(String id, int depth) {
+        return getLevelIds(id, depth).size();
+    }
+
+    /**
+     * Returns the subtree of a node down to a depth, level by level and each level in pre-order.
+     *
+     * @param id the id of the subtree root
+     * @param maxDepth the depth of the deepest nodes to include, counted from the root of the
+     *     hierarchy
+     * @return the ids, starting with {@code id}; empty if the node is not in the snapshot
+     */
+    public List<String> getSubtreeIds(String id, int maxDepth) {
+        int index = indexOf(id);
+        if (index == NO_NODE) {
+            return Collections.emptyList();
+        }
+        int lastDepth = Math.min(maxDepth, getLevelCount() - 1);
+        List<String> subtreeIds = new ArrayList<>();
+        for (int depth = depths[index]; depth <= lastDepth; depth++) {
+            int to = lowerBound(depth, subtreeEnds[index]);
+            for (int i = lowerBound(depth, index); i < to; i++) {
+                subtreeIds.add(ids[levelNodes[i]]);
+            }
+        }
+        return Collections.unmodifiableList(subtreeIds);
+    }
+
+    /**
+     * @return the position of the first node of the level with a pre-order index of at least
+     *     {@code index}
+     */
+    private int lowerBound(int depth, int index) {
+        int low = levelOffsets[depth];
+        int high = levelOffsets[depth + 1];
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (levelNodes[middle] < index) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private List<String> levelIdsView(int from, int to) {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int position) {
+                if (position < 0 || position >= to - from) {
+                    throw new IndexOutOfBoundsException(String.valueOf(position));
+                }
+                return ids[levelNodes[from + position]];
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+
+    private static int[] buildIdSlots(String[] ids) {
+        if (ids.length == 0) {
+            return new int[0];
+        }
+        // Keep the load factor at or below one half
+        int capacity = Integer.highestOneBit(Math.max(ids.length, 1) * 2 - 1) << 1;
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, NO_NODE);
+        int mask = capacity - 1;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == null) {
+                continue;
+            }
+            int slot = mix(ids[i].hashCode()) & mask;
+            boolean duplicate = false;
+            while (slots[slot] != NO_NODE) {
+                if (ids[i].equals(ids[slots[slot]])) {
+                    duplicate = true;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (!duplicate) {
+                slots[slot] = i;
+            }
+        }
+        return slots;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /** Growable {@code int[]} used while collecting nodes, to avoid boxing. */
+    static final class IntArrayBuilder {
+
+        private int[] values = new int[16];
+
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        void set(int index, int value) {
+            values[index] = value;
+        }
+
+        void removeLast() {
+            size--;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * View of the locations of a {@link CompactLocationHierarchy} that match a {@link LocationFilter},
+ * see {@link LocationHierarchyTree#filter(LocationFilter, String)}. The ancestors of matching
+ * locations up to the root of the view are kept as well, so the view stays a connected tree.
+ *
+ * <p>The view holds two bitmaps over the snapshot, of the matching and of the kept nodes, and reads
+ * everything else from the snapshot. Instances are immutable and safe to share between threads.
+ */
+public final class FilteredLocationHierarchy {
+
+    private final CompactLocationHierarchy hierarchy;
+
+    private final int rootIndex;
+
+    private final BitSet matches;
+
+    private final BitSet nodes;
+
+    FilteredLocationHierarchy(CompactLocationHierarchy hierarchy, int rootIndex, BitSet matches) {
+        this.hierarchy = hierarchy;
+        this.rootIndex = rootIndex;
+        this.matches = matches;
+        this.nodes = (BitSet) matches.clone();
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            // Stop at the first ancestor already kept, so every node is visited once
+            int ancestor = i;
+            while (ancestor != rootIndex) {
+                ancestor = hierarchy.getParentIndex(ancestor);
+                if (nodes.get(ancestor)) {
+                    break;
+                }
+                nodes.set(ancestor);
+            }
+        }
+    }
+
+    /**
+     * @return the number of nodes in the view, matching nodes and their kept ancestors
+     */
+    public int size() {
+        return nodes.cardinality();
+    }
+
+    public boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    /**
+     * @return the id of the root of the view, or null if nothing matched
+     */
+    @Nullable
+    public String getRootId() {
+        return isEmpty() ? null : hierarchy.getId(rootIndex);
+    }
+
+    /**
+     * @return whether the node is part of the view, either matching or as an ancestor of a match
+     */
+    public boolean contains(String id) {
+        int index = hierarchy.indexOf(id);
+        return index != CompactLocationHierarchy.NO_NODE && nodes.get(index);
+    }
+
+    /**
+     * @return whether the location of the node matches the filter
+     */
+    public boolean isMatch(String id) {
+        int index = hierarchy.indexOf(id);
+        return index != CompactLocationHierarchy.NO_NODE && matches.get(index);
+    }
+
+    /**
+     * @return ids of the nodes in the view in pre-order
+     */
+    public List<String> getIds() {
+        return getIds(nodes);
+    }
+
+    /**
+     * @return ids of the matching nodes in pre-order
+     */
+    public List<String> getMatchIds() {
+        return getIds(matches);
+    }
+
+    /**
+     * @return ids of the children of the node that are part of the view; empty if the node is not
+     */
+    public List<String> getChildIds(String id) {
+        int index = hierarchy.indexOf(id);
+        if (index == CompactLocationHierarchy.NO_NODE || !nodes.get(index)) {
+            return Collections.emptyList();
+        }
+        List<String> childIds = new ArrayList<>();
+        for (int position = 0; position < hierarchy.getChildCount(index); position++) {
+            int child = hierarchy.getChildIndex(index, position);
+            if (nodes.get(child)) {
+                childIds.add(hierarchy.getId(child));
+            }
+        }
+        return childIds;
+    }
+
+    /**
+     * Copies the view into a new {@link Tree}, which shares its {@link
+     * org.hl7.fhir.r4.model.Location} payloads with the hierarchy the view was taken from.
+     *
+     * @return the tree, empty if nothing matched
+     */
+    public Tree toTree() {
+        Tree tree = new Tree();
+        if (isEmpty()) {
+            return tree;
+        }
+        String rootParentId =
+                rootIndex == 0
+                        ? hierarchy.getRootParentId()
+                        : hierarchy.getId(hierarchy.getParentIndex(rootIndex));
+        for (int i = nodes.nextSetBit(0); i >= 0; i = nodes.nextSetBit(i + 1)) {
+            tree.addNode(
+                    hierarchy.getId(i),
+                    hierarchy.getLabel(i),
+                    hierarchy.getLocation(i),
+                    i == rootIndex ? rootParentId : hierarchy.getId(hierarchy.getParentIndex(i)));
+        }
+        return tree;
+    }
+
+    private List<String> getIds(BitSet bitmap) {
+        List<String> ids = new ArrayList<>(bitmap.cardinality());
+        for (int i = bitmap.nextSetBit(0); i >= 0; i = bitmap.nextSetBit(i + 1)) {
+            ids.add(hierarchy.getId(i));
+        }
+        return ids;
+    }
+}
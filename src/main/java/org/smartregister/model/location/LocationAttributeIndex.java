@@ -0,0 +1,118 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Location;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bitmaps of the nodes of a {@link CompactLocationHierarchy} with each status, physical type code
+ * and type code, bit {@code i} standing for the node with pre-order index {@code i}. Filters are
+ * answered by combining bitmaps a word at a time instead of looking at each location.
+ *
+ * <p>Locations the snapshot has not loaded yet are loaded through its {@link LocationLoader} when
+ * the index is built. Instances are immutable and safe to share between threads.
+ */
+final class LocationAttributeIndex {
+
+    private final int size;
+
+    private final Map<Location.LocationStatus, BitSet> statuses;
+
+    private final Map<String, BitSet> physicalTypeCodes;
+
+    private final Map<String, BitSet> typeCodes;
+
+    private LocationAttributeIndex(
+            int size,
+            Map<Location.LocationStatus, BitSet> statuses,
+            Map<String, BitSet> physicalTypeCodes,
+            Map<String, BitSet> typeCodes) {
+        this.size = size;
+        this.statuses = statuses;
+        this.physicalTypeCodes = physicalTypeCodes;
+        this.typeCodes = typeCodes;
+    }
+
+    static LocationAttributeIndex from(CompactLocationHierarchy hierarchy) {
+        int size = hierarchy.size();
+        Map<Location.LocationStatus, BitSet> statuses =
+                new EnumMap<>(Location.LocationStatus.class);
+        Map<String, BitSet> physicalTypeCodes = new HashMap<>();
+        Map<String, BitSet> typeCodes = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            Location location = hierarchy.getLocation(i);
+            if (location == null) {
+                continue;
+            }
+            if (location.getStatus() != null) {
+                statuses.computeIfAbsent(location.getStatus(), key -> new BitSet(size)).set(i);
+            }
+            if (location.hasPhysicalType()) {
+                addCodes(physicalTypeCodes, location.getPhysicalType(), i, size);
+            }
+            for (CodeableConcept type : location.getType()) {
+                addCodes(typeCodes, type, i, size);
+            }
+        }
+        return new LocationAttributeIndex(size, statuses, physicalTypeCodes, typeCodes);
+    }
+
+    private static void addCodes(
+            Map<String, BitSet> bitmaps, CodeableConcept concept, int index, int size) {
+        for (Coding coding : concept.getCoding()) {
+            if (coding.getCode() != null) {
+                bitmaps.computeIfAbsent(coding.getCode(), key -> new BitSet(size)).set(index);
+            }
+        }
+    }
+
+    /**
+     * @return a new bitmap of the nodes in {@code [from, to)} that match the filter
+     */
+    BitSet getMatches(LocationFilter filter, int from, int to) {
+        BitSet matches = new BitSet(size);
+        matches.set(from, to);
+        if (!filter.getStatuses().isEmpty()) {
+            matches.and(union(statuses, filter.getStatuses()));
+        }
+        if (!filter.getPhysicalTypeCodes().isEmpty()) {
+            matches.and(union(physicalTypeCodes, filter.getPhysicalTypeCodes()));
+        }
+        if (!filter.getTypeCodes().isEmpty()) {
+            matches.and(union(typeCodes, filter.getTypeCodes()));
+        }
+        return matches;
+    }
+
+    private <K> BitSet union(Map<K, BitSet> bitmaps, Collection<K> keys) {
+        BitSet union = new BitSet(size);
+        for (K key : keys) {
+            BitSet bitmap = bitmaps.get(key);
+            if (bitmap != null) {
+                union.or(bitmap);
+            }
+        }
+        return union;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import org.hl7.fhir.r4.model.Location;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Attribute criteria for {@link LocationHierarchyTree#filter(LocationFilter, String)}. A location
+ * matches if it matches every criterion that is set; a criterion with several values matches any of
+ * them. Types and physical types are matched by the codes of their codings.
+ */
+public class LocationFilter {
+
+    private final Set<Location.LocationStatus> statuses =
+            EnumSet.noneOf(Location.LocationStatus.class);
+
+    private final Set<String> physicalTypeCodes = new LinkedHashSet<>();
+
+    private final Set<String> typeCodes = new LinkedHashSet<>();
+
+    public Set<Location.LocationStatus> getStatuses() {
+        return Collections.unmodifiableSet(statuses);
+    }
+
+    public LocationFilter setStatuses(Location.LocationStatus... statuses) {
+        this.statuses.clear();
+        this.statuses.addAll(Arrays.asList(statuses));
+        return this;
+    }
+
+    public Set<String> getPhysicalTypeCodes() {
+        return Collections.unmodifiableSet(physicalTypeCodes);
+    }
+
+    public LocationFilter setPhysicalTypeCodes(String... physicalTypeCodes) {
+        this.physicalTypeCodes.clear();
+        this.physicalTypeCodes.addAll(Arrays.asList(physicalTypeCodes));
+        return this;
+    }
+
+    public Set<String> getTypeCodes() {
+        return Collections.unmodifiableSet(typeCodes);
+    }
+
+    public LocationFilter setTypeCodes(String... typeCodes) {
+        this.typeCodes.clear();
+        this.typeCodes.addAll(Arrays.asList(typeCodes));
+        return this;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a bulk build through {@link LocationHierarchyTree#buildTreeFromLocations(Iterable)}.
+ * Problems found in the input are collected here rather than thrown half way through the build.
+ */
+public class LocationHierarchyBuildReport {
+
+    private final List<String> duplicateIds = new ArrayList<>();
+
+    private final List<String> orphanIds = new ArrayList<>();
+
+    private String rootId;
+
+    private int nodeCount;
+
+    /**
+     * @return ids that appeared more than once in the input; only the first occurrence was added
+     */
+    public List<String> getDuplicateIds() {
+        return Collections.unmodifiableList(duplicateIds);
+    }
+
+    /**
+     * @return ids of locations that could not be attached to the tree, because their parent is
+     *     missing from the input, they are an additional root or they are part of a cycle
+     */
+    public List<String> getOrphanIds() {
+        return Collections.unmodifiableList(orphanIds);
+    }
+
+    public String getRootId() {
+        return rootId;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public boolean isComplete() {
+        return duplicateIds.isEmpty() && orphanIds.isEmpty();
+    }
+
+    void addDuplicateId(String id) {
+        duplicateIds.add(id);
+    }
+
+    void addOrphanId(String id) {
+        orphanIds.add(id);
+    }
+
+    void setRootId(String rootId) {
+        this.rootId = rootId;
+    }
+
+    void setNodeCount(int nodeCount) {
+        this.nodeCount = nodeCount;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import ca.uhn.fhir.model.api.annotation.Child;
+import ca.uhn.fhir.model.api.annotation.DatatypeDef;
+import ca.uhn.fhir.util.ElementUtil;
+import org.hl7.fhir.instance.model.api.ICompositeType;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The changes between two versions of a {@link LocationHierarchyTree}, so that a client holding
+ * the older version can be brought up to date without downloading the whole hierarchy again.
+ *
+ * <p>Added nodes are listed parents first with their label, parent and location. Moved nodes carry
+ * their new parent and modified nodes their new label and, if it changed, their new location.
+ * Removed nodes are listed by id; the descendants of a removed node are removed with it and not
+ * listed on their own.
+ *
+ * <p>The order of siblings is not part of the delta: added and moved nodes become the last child
+ * of their parent.
+ */
+@DatatypeDef(name = "LocationHierarchyDelta")
+public class LocationHierarchyDelta extends Type implements ICompositeType {
+
+    @Child(
+            name = "added",
+            type = {TreeNode.class},
+            order = 0,
+            min = 0,
+            max = -1,
+            modifier = false,
+            summary = false)
+    private List<TreeNode> added;
+
+    @Child(
+            name = "moved",
+            type = {TreeNode.class},
+            order = 1,
+            min = 0,
+            max = -1,
+            modifier = false,
+            summary = false)
+    private List<TreeNode> moved;
+
+    @Child(
+            name = "modified",
+            type = {TreeNode.class},
+            order = 2,
+            min = 0,
+            max = -1,
+            modifier = false,
+            summary = false)
+    private List<TreeNode> modified;
+
+    @Child(
+            name = "removed",
+            type = {StringType.class},
+            order = 3,
+            min = 0,
+            max = -1,
+            modifier = false,
+            summary = false)
+    private List<StringType> removed;
+
+    public LocationHierarchyDelta() {
+        added = new ArrayList<>();
+        moved = new ArrayList<>();
+        modified = new ArrayList<>();
+        removed = new ArrayList<>();
+    }
+
+    /**
+     * Computes the changes that turn one version of a hierarchy into another. If the root of the
+     * hierarchy changed, the delta removes the old root and adds every node of the new version.
+     *
+     * <p>Locations that have not been loaded in the newer version, see {@link
+     * Tree#setLocationLoader(LocationLoader)}, are not compared. The delta shares its locations
+     * with the newer version.
+     *
+     * @param from the version the client holds
+     * @param to the current version
+     * @return the delta, empty if both versions hold the same nodes
+     */
+    public static LocationHierarchyDelta between(
+            LocationHierarchyTree from, LocationHierarchyTree to) {
+        Tree fromTree = from.getLocationsHierarchy();
+        Tree toTree = to.getLocationsHierarchy();
+        CompactLocationHierarchy before = fromTree.getCompactHierarchy();
+        CompactLocationHierarchy after = toTree.getCompactHierarchy();
+        LocationHierarchyDelta delta = new LocationHierarchyDelta();
+
+        boolean rootReplaced =
+                !before.isEmpty()
+                        && (after.isEmpty() || !before.getRootId().equals(after.getRootId()));
+        if (rootReplaced) {
+            delta.removed.add(new StringType(before.getRootId()));
+        }
+
+        for (int i = 0; i < after.size(); i++) {
+            String id = after.getId(i);
+            String parentId =
+                    i == 0 ? after.getRootParentId() : after.getId(after.getParentIndex(i));
+            TreeNode node = toTree.getNode(id);
+            String label = node.getLabel() != null ? node.getLabel().getValue() : null;
+            Location location = node.peekNode();
+
+            int index = rootReplaced ? CompactLocationHierarchy.NO_NODE : before.indexOf(id);
+            if (index == CompactLocationHierarchy.NO_NODE) {
+                delta.added.add(
+                        new TreeNode()
+                                .setNodeId(new StringType(id))
+                                .setLabel(new StringType(label))
+                                .setParent(parentId != null ? new StringType(parentId) : null)
+                                .setNode(location));
+                continue;
+            }
+
+            if (i > 0 && !parentId.equals(before.getId(before.getParentIndex(index)))) {
+                delta.moved.add(
+                        new TreeNode()
+                                .setNodeId(new StringType(id))
+                                .setParent(new StringType(parentId)));
+            }
+
+            Location previousLocation = fromTree.getNode(id).peekNode();
+            boolean locationChanged =
+                    location != null
+                            && (previousLocation == null || !previousLocation.equalsDeep(location));
+            if (locationChanged || !Objects.equals(label, before.getLabel(index))) {
+                delta.modified.add(
+                        new TreeNode()
+                                .setNodeId(new StringType(id))
+                                .setLabel(new StringType(label))
+                                .setNode(locationChanged ? location : null));
+            }
+        }
+
+        if (!rootReplaced) {
+            for (int i = 1; i < before.size(); i++) {
+                // Only the topmost removed node of a subtree is listed
+                if (!after.contains(before.getId(i))
+                        && after.contains(before.getId(before.getParentIndex(i)))) {
+                    delta.removed.add(new StringType(before.getId(i)));
+                }
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Applies the delta to a hierarchy in place. The hierarchy is expected to be the version the
+     * delta was computed from.
+     *
+     * <p>Nodes are added first, then moved, then removed, so that nodes which outlive a removed
+     * ancestor have been moved out of its subtree before it goes. Moves are listed parents first,
+     * so a node is never moved under one of its own descendants.
+     *
+     * @param locationHierarchyTree the hierarchy to update
+     * @throws IllegalArgumentException if the delta does not fit the hierarchy
+     */
+    public void applyTo(LocationHierarchyTree locationHierarchyTree) {
+        Tree tree = locationHierarchyTree.getLocationsHierarchy();
+        TreeNode rootNode =
+                tree.getListOfNodes() != null ? tree.getListOfNodes().getTreeNode() : null;
+        List<String> removedIds = new ArrayList<>(removed.size());
+        for (StringType removedId : removed) {
+            // A removed root is replaced by the added nodes, so it has to go first
+            if (rootNode != null && tree.getNode(removedId.getValue()) == rootNode) {
+                tree.removeNode(removedId.getValue());
+            } else {
+                removedIds.add(removedId.getValue());
+            }
+        }
+        for (TreeNode node : added) {
+            tree.addNode(
+                    getValue(node.getNodeId()),
+                    getValue(node.getLabel()),
+                    node.peekNode(),
+                    getValue(node.getParent()));
+        }
+        for (TreeNode node : moved) {
+            tree.moveNode(getValue(node.getNodeId()), getValue(node.getParent()));
+        }
+        for (String removedId : removedIds) {
+            tree.removeNode(removedId);
+        }
+        for (TreeNode node : modified) {
+            tree.updateNode(getValue(node.getNodeId()), getValue(node.getLabel()), node.peekNode());
+        }
+    }
+
+    @Nullable
+    private static String getValue(@Nullable StringType stringType) {
+        return stringType != null ? stringType.getValue() : null;
+    }
+
+    public List<TreeNode> getAdded() {
+        return added;
+    }
+
+    public LocationHierarchyDelta setAdded(List<TreeNode> added) {
+        this.added = added;
+        return this;
+    }
+
+    public List<TreeNode> getMoved() {
+        return moved;
+    }
+
+    public LocationHierarchyDelta setMoved(List<TreeNode> moved) {
+        this.moved = moved;
+        return this;
+    }
+
+    public List<TreeNode> getModified() {
+        return modified;
+    }
+
+    public LocationHierarchyDelta setModified(List<TreeNode> modified) {
+        this.modified = modified;
+        return this;
+    }
+
+    public List<StringType> getRemoved() {
+        return removed;
+    }
+
+    public LocationHierarchyDelta setRemoved(List<StringType> removed) {
+        this.removed = removed;
+        return this;
+    }
+
+    @Override
+    public Type copy() {
+        LocationHierarchyDelta locationHierarchyDelta = new LocationHierarchyDelta();
+        copyValues(locationHierarchyDelta);
+        locationHierarchyDelta.added = copyEntries(added);
+        locationHierarchyDelta.moved = copyEntries(moved);
+        locationHierarchyDelta.modified = copyEntries(modified);
+        if (removed != null) {
+            locationHierarchyDelta.removed = new ArrayList<>(removed.size());
+            for (StringType removedId : removed) {
+                locationHierarchyDelta.removed.add(removedId.copy());
+            }
+        }
+        return locationHierarchyDelta;
+    }
+
+    private static List<TreeNode> copyEntries(List<TreeNode> entries) {
+        if (entries == null) {
+            return null;
+        }
+        List<TreeNode> copies = new ArrayList<>(entries.size());
+        for (TreeNode entry : entries) {
+            Location location = entry.peekNode();
+            copies.add(
+                    new TreeNode()
+                            .setNodeId(copyOf(entry.getNodeId()))
+                            .setLabel(copyOf(entry.getLabel()))
+                            .setParent(copyOf(entry.getParent()))
+                            .setNode(location != null ? location.copy() : null));
+        }
+        return copies;
+    }
+
+    @Nullable
+    private static StringType copyOf(@Nullable StringType stringType) {
+        return stringType != null ? stringType.copy() : null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return ElementUtil.isEmpty(added, moved, modified, removed);
+    }
+
+    @Override
+    protected Type typedCopy() {
+        return copy();
+    }
+}
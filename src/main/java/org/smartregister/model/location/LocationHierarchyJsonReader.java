@@ -0,0 +1,406 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.r4.model.Location;
+import org.smartregister.utils.Utils;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Reads the tree of a {@link LocationHierarchy} from FHIR JSON without building the HAPI object
+ * graph.
+ *
+ * <p>The JSON is consumed token by token and each node is handed to a {@link LocationNodeHandler}
+ * as soon as its fields up to its children have been read, so memory use does not grow with the
+ * size of the document. Reading can stop early, either when the handler asks for it or, when a
+ * subtree is requested, as soon as that subtree is complete. The {@code parentChildren} list is not
+ * read, since it repeats what the nodes already hold.
+ *
+ * <p>{@link Location} payloads are skipped unless the reader is created with a {@link
+ * FhirContext}, in which case each payload of a reported node is parsed with HAPI on its own.
+ *
+ * <p>Instances hold no state besides the context and may be shared between threads.
+ */
+public class LocationHierarchyJsonReader {
+
+    private static final JsonFactory JSON_FACTORY =
+            new JsonFactory()
+                    .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE)
+                    .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    @Nullable private final FhirContext fhirContext;
+
+    /** Creates a reader that skips the Location payloads. */
+    public LocationHierarchyJsonReader() {
+        this(null);
+    }
+
+    /**
+     * @param fhirContext the context to parse Location payloads with, or null to skip them
+     */
+    public LocationHierarchyJsonReader(@Nullable FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+    }
+
+    /**
+     * Reports every node of the hierarchy. The stream is not closed.
+     *
+     * @param inputStream the JSON of a {@link LocationHierarchy}
+     * @param handler receives the nodes
+     */
+    public void read(InputStream inputStream, LocationNodeHandler handler) throws IOException {
+        read(inputStream, null, handler);
+    }
+
+    /**
+     * Reports the nodes of one subtree and stops reading once it is complete. Nothing is reported if
+     * the subtree is not found.
+     *
+     * @param inputStream the JSON of a {@link LocationHierarchy}
+     * @param subtreeRootId the id of the root of the subtree, or null for the whole hierarchy
+     * @param handler receives the nodes
+     */
+    public void read(
+            InputStream inputStream, @Nullable String subtreeRootId, LocationNodeHandler handler)
+            throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(inputStream)) {
+            if (seekRootNode(parser)) {
+                new NodeReader(parser, Utils.cleanIdString(subtreeRootId), handler).read();
+            }
+        }
+    }
+
+    /**
+     * @param inputStream the JSON of a {@link LocationHierarchy}
+     * @return a snapshot of the whole hierarchy, empty if the JSON holds no tree
+     */
+    public CompactLocationHierarchy readCompactHierarchy(InputStream inputStream)
+            throws IOException {
+        return readCompactHierarchy(inputStream, null);
+    }
+
+    /**
+     * Reads one subtree into a snapshot and stops reading once it is complete.
+     *
+     * @param inputStream the JSON of a {@link LocationHierarchy}
+     * @param subtreeRootId the id of the root of the subtree, or null for the whole hierarchy
+     * @return a snapshot rooted at the subtree root, empty if it is not found
+     */
+    public CompactLocationHierarchy readCompactHierarchy(
+            InputStream inputStream, @Nullable String subtreeRootId) throws IOException {
+        CompactHierarchyCollector collector = new CompactHierarchyCollector();
+        read(inputStream, subtreeRootId, collector);
+        return collector.toCompactHierarchy();
+    }
+
+    /**
+     * Moves the parser to the start of the root {@code TreeNode} object, following {@code
+     * LocationHierarchyTree.locationsHierarchy.listOfNodes.treeNode}.
+     *
+     * @return false if the document holds no tree
+     */
+    private static boolean seekRootNode(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT
+                || !seekField(parser, "LocationHierarchyTree")
+                || !seekField(parser, "locationsHierarchy")
+                || !seekField(parser, "listOfNodes")
+                || !seekField(parser, "treeNode")) {
+            return false;
+        }
+        // HAPI writes the root as a one element array
+        if (parser.currentToken() == JsonToken.START_ARRAY) {
+            parser.nextToken();
+        }
+        return parser.currentToken() == JsonToken.START_OBJECT;
+    }
+
+    /**
+     * Skips the fields of the current object up to the one with the given name, which must hold an
+     * object or array.
+     *
+     * @return whether the field was found; the parser is then at the start of its value
+     */
+    private static boolean seekField(JsonParser parser, String name) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (name.equals(fieldName)
+                    && (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY)) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    /** Where the reader is within a node. */
+    private enum Position {
+        NODE,
+        CHILDREN,
+        CHILD
+    }
+
+    /** A {@code TreeNode} object whose end has not been read yet. */
+    private static final class NodeFrame {
+
+        private final int depth;
+
+        private final String enclosingId;
+
+        private Position position = Position.NODE;
+
+        private String nodeId;
+
+        private String label;
+
+        private String parentId;
+
+        private Location location;
+
+        private boolean reported;
+
+        private NodeFrame(int depth, String enclosingId) {
+            this.depth = depth;
+            this.enclosingId = enclosingId;
+        }
+    }
+
+    /** Walks the nodes of one document with an explicit stack, so deep trees need no recursion. */
+    private final class NodeReader {
+
+        private final JsonParser parser;
+
+        private final String subtreeRootId;
+
+        private final LocationNodeHandler handler;
+
+        private IParser locationParser;
+
+        /** Depth of the subtree root once it has been found, {@code -1} before. */
+        private int subtreeDepth = -1;
+
+        private NodeReader(JsonParser parser, String subtreeRootId, LocationNodeHandler handler) {
+            this.parser = parser;
+            this.subtreeRootId = subtreeRootId;
+            this.handler = handler;
+        }
+
+        void read() throws IOException {
+            Deque<NodeFrame> frames = new ArrayDeque<>();
+            frames.push(new NodeFrame(0, null));
+            while (!frames.isEmpty()) {
+                NodeFrame frame = frames.peek();
+                JsonToken token = parser.nextToken();
+                if (token == null) {
+                    return;
+                }
+                switch (frame.position) {
+                    case NODE:
+                        if (token == JsonToken.END_OBJECT) {
+                            frames.pop();
+                            if (!report(frame) || !reportEnd(frame)) {
+                                return;
+                            }
+                            if (!frames.isEmpty()) {
+                                frames.peek().position = Position.CHILD;
+                            }
+                        } else if (!readNodeField(frame)) {
+                            return;
+                        }
+                        break;
+                    case CHILDREN:
+                        if (token == JsonToken.START_OBJECT) {
+                            frame.position = Position.CHILD;
+                        } else if (token == JsonToken.END_ARRAY) {
+                            frame.position = Position.NODE;
+                        } else {
+                            parser.skipChildren();
+                        }
+                        break;
+                    case CHILD:
+                        if (token == JsonToken.END_OBJECT) {
+                            frame.position = Position.CHILDREN;
+                        } else if (token == JsonToken.FIELD_NAME) {
+                            String fieldName = parser.getCurrentName();
+                            if (parser.nextToken() == JsonToken.START_OBJECT
+                                    && "treeNode".equals(fieldName)) {
+                                frames.push(new NodeFrame(frame.depth + 1, frame.nodeId));
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException(frame.position.name());
+                }
+            }
+        }
+
+        /**
+         * Reads one field of a node, the parser being at its name.
+         *
+         * @return false if the handler asked to stop
+         */
+        private boolean readNodeField(NodeFrame frame) throws IOException {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (fieldName) {
+                case "nodeId":
+                    frame.nodeId = readString(value);
+                    return true;
+                case "label":
+                    frame.label = readString(value);
+                    return true;
+                case "parent":
+                    frame.parentId = readString(value);
+                    return true;
+                case "node":
+                    frame.location = readLocation(frame, value);
+                    return true;
+                case "children":
+                    if (value != JsonToken.START_ARRAY) {
+                        parser.skipChildren();
+                        return true;
+                    }
+                    frame.position = Position.CHILDREN;
+                    // Children come last, so the node is complete and is reported before them
+                    return report(frame);
+                default:
+                    parser.skipChildren();
+                    return true;
+            }
+        }
+
+        private String readString(JsonToken value) throws IOException {
+            if (value == JsonToken.VALUE_STRING) {
+                return parser.getText();
+            }
+            parser.skipChildren();
+            return null;
+        }
+
+        private Location readLocation(NodeFrame frame, JsonToken value) throws IOException {
+            if (fhirContext == null || value != JsonToken.START_OBJECT || !isInSubtree(frame)) {
+                parser.skipChildren();
+                return null;
+            }
+            StringWriter json = new StringWriter();
+            try (JsonGenerator generator = JSON_FACTORY.createGenerator(json)) {
+                generator.copyCurrentStructure(parser);
+            }
+            if (locationParser == null) {
+                locationParser = fhirContext.newJsonParser();
+            }
+            return locationParser.parseResource(Location.class, json.toString());
+        }
+
+        private boolean isInSubtree(NodeFrame frame) {
+            return subtreeRootId == null
+                    || subtreeDepth >= 0
+                    || subtreeRootId.equals(Utils.cleanIdString(frame.nodeId));
+        }
+
+        private boolean report(NodeFrame frame) {
+            if (frame.reported) {
+                return true;
+            }
+            frame.reported = true;
+            if (subtreeDepth < 0 && isInSubtree(frame)) {
+                subtreeDepth = subtreeRootId != null ? frame.depth : 0;
+            }
+            if (subtreeDepth < 0) {
+                return true;
+            }
+            String parentId = frame.parentId != null ? frame.parentId : frame.enclosingId;
+            Location location = frame.location;
+            // Open frames should not keep payloads the handler may have dropped
+            frame.location = null;
+            return handler.onNode(frame.nodeId, frame.label, parentId, frame.depth, location);
+        }
+
+        private boolean reportEnd(NodeFrame frame) {
+            if (subtreeDepth < 0) {
+                return true;
+            }
+            boolean proceed = handler.onNodeEnd(frame.nodeId, frame.depth);
+            // The subtree is complete once its root ends
+            return proceed && (subtreeRootId == null || frame.depth != subtreeDepth);
+        }
+    }
+
+    /** Collects reported nodes into the arrays of a {@link CompactLocationHierarchy}. */
+    private static final class CompactHierarchyCollector implements LocationNodeHandler {
+
+        private final List<String> ids = new ArrayList<>();
+
+        private final List<String> labels = new ArrayList<>();
+
+        private final List<Location> locations = new ArrayList<>();
+
+        private final CompactLocationHierarchy.IntArrayBuilder parents =
+                new CompactLocationHierarchy.IntArrayBuilder();
+
+        private final CompactLocationHierarchy.IntArrayBuilder openNodes =
+                new CompactLocationHierarchy.IntArrayBuilder();
+
+        private String rootParentId;
+
+        @Override
+        public boolean onNode(
+                String nodeId, String label, String parentId, int depth, Location location) {
+            if (ids.isEmpty()) {
+                rootParentId = parentId;
+                parents.add(CompactLocationHierarchy.NO_NODE);
+            } else {
+                parents.add(openNodes.get(openNodes.size() - 1));
+            }
+            openNodes.add(ids.size());
+            ids.add(nodeId);
+            labels.add(label);
+            locations.add(location);
+            return true;
+        }
+
+        @Override
+        public boolean onNodeEnd(String nodeId, int depth) {
+            openNodes.removeLast();
+            return true;
+        }
+
+        CompactLocationHierarchy toCompactHierarchy() {
+            return CompactLocationHierarchy.fromPreOrder(
+                    ids.toArray(new String[0]),
+                    labels.toArray(new String[0]),
+                    locations.toArray(new Location[0]),
+                    parents.toArray(),
+                    rootParentId);
+        }
+    }
+}
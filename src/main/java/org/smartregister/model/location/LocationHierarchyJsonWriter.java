@@ -0,0 +1,497 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.annotation.Child;
+import ca.uhn.fhir.model.api.annotation.ResourceDef;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Basic;
+import org.hl7.fhir.r4.model.Element;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Streams a {@link LocationHierarchy} as FHIR JSON.
+ *
+ * <p>The output is byte for byte what {@link IParser#encodeResourceToWriter} of a default JSON
+ * parser produces, but the tree is written directly from the model instead of through HAPI's
+ * reflective element walk, and nothing of the size of the tree is buffered: the resource around the
+ * tree is encoded by HAPI without it, the tree is written in where HAPI puts it, and each {@link
+ * Location} payload is encoded by HAPI on its own straight into the output. Deep hierarchies are
+ * written without recursion.
+ *
+ * <p>HAPI itself never sees the {@code LocationHierarchyTree} element, whose upper case name trips
+ * the assertions of its encoder when they are enabled. Where the tree goes is checked against
+ * HAPI's element order when the writer is created and against its output on every write; the
+ * writer fails rather than misplace the tree.
+ *
+ * <p>Trees carrying element ids, extensions or comments on the hierarchy types are encoded by HAPI
+ * under a lower case element name of a {@link TreeCarrier}, which renders those. Payloads that
+ * were not loaded yet, see {@link LocationLoader}, are left out just as HAPI leaves them out.
+ *
+ * <p>Instances hold no state besides the context and may be shared between threads.
+ */
+public class LocationHierarchyJsonWriter {
+
+    private static final String TREE_ELEMENT = "LocationHierarchyTree";
+
+    private static final String LOCATION_ID_ELEMENT = "locationId";
+
+    private static final String TREE_FIELD = ",\"" + TREE_ELEMENT + "\":";
+
+    private static final String CARRIER_PREFIX =
+            "{\"resourceType\":\"" + TreeCarrier.RESOURCE_TYPE + "\",\"tree\":";
+
+    private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
+
+    private final FhirContext fhirContext;
+
+    /**
+     * @throws IllegalStateException if HAPI does not write the tree of a {@link LocationHierarchy}
+     *     last but for its location id
+     */
+    public LocationHierarchyJsonWriter(FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+        List<BaseRuntimeChildDefinition> children =
+                fhirContext.getResourceDefinition(LocationHierarchy.class).getChildren();
+        int count = children.size();
+        if (count < 2
+                || !TREE_ELEMENT.equals(children.get(count - 2).getElementName())
+                || !LOCATION_ID_ELEMENT.equals(children.get(count - 1).getElementName())) {
+            throw new IllegalStateException(
+                    "HAPI does not order the elements of LocationHierarchy as expected");
+        }
+    }
+
+    /**
+     * Writes the hierarchy as UTF-8 encoded JSON. The stream is flushed but not closed.
+     */
+    public void write(LocationHierarchy locationHierarchy, OutputStream outputStream)
+            throws IOException {
+        Writer writer =
+                new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        write(locationHierarchy, writer);
+        writer.flush();
+    }
+
+    /**
+     * Writes the hierarchy as JSON. The writer is neither flushed nor closed.
+     *
+     * @throws IllegalStateException if HAPI does not encode the resource around the tree as
+     *     expected
+     */
+    public void write(LocationHierarchy locationHierarchy, Writer writer) throws IOException {
+        IParser parser = fhirContext.newJsonParser();
+        LocationHierarchy envelope = toEnvelope(locationHierarchy);
+        String envelopeJson = parser.encodeResourceToString(envelope);
+        LocationHierarchyTree locationHierarchyTree = locationHierarchy.getLocationHierarchyTree();
+        if (locationHierarchyTree == null || locationHierarchyTree.isEmpty()) {
+            // HAPI leaves empty elements out
+            writer.write(envelopeJson);
+            return;
+        }
+
+        int treePosition = getTreePosition(parser, envelope, envelopeJson);
+        writer.write(envelopeJson, 0, treePosition);
+        writer.write(TREE_FIELD);
+        if (isPlainStructure(locationHierarchyTree)) {
+            new TreeWriter(writer, parser).writeLocationHierarchyTree(locationHierarchyTree);
+        } else {
+            writer.write(encodeThroughCarrier(parser, locationHierarchyTree));
+        }
+        writer.write(envelopeJson, treePosition, envelopeJson.length() - treePosition);
+    }
+
+    /**
+     * @return where the tree goes in the encoded envelope: after the elements of {@link Location}
+     *     and before the location id, which HAPI writes last. The envelope is encoded once more
+     *     without the location id to find where that starts.
+     */
+    private static int getTreePosition(
+            IParser parser, LocationHierarchy envelope, String envelopeJson) {
+        StringType locationId = envelope.getLocationId();
+        String headJson = envelopeJson;
+        if (locationId != null && !locationId.isEmpty()) {
+            envelope.setLocationId(null);
+            headJson = parser.encodeResourceToString(envelope);
+            envelope.setLocationId(locationId);
+        }
+        int treePosition = headJson.length() - 1;
+        boolean expected =
+                treePosition > 0
+                        && headJson.charAt(treePosition) == '}'
+                        && envelopeJson.regionMatches(0, headJson, 0, treePosition)
+                        && (envelopeJson.length() == headJson.length()
+                                ? envelopeJson.charAt(treePosition) == '}'
+                                : envelopeJson.charAt(treePosition) == ',');
+        if (!expected) {
+            throw new IllegalStateException(
+                    "HAPI did not encode the location id last in " + envelopeJson);
+        }
+        return treePosition;
+    }
+
+    /**
+     * @return the HAPI encoding of a tree that carries element ids, extensions or comments
+     */
+    private static String encodeThroughCarrier(
+            IParser parser, LocationHierarchyTree locationHierarchyTree) {
+        TreeCarrier carrier = new TreeCarrier();
+        carrier.tree = locationHierarchyTree;
+        String carrierJson = parser.encodeResourceToString(carrier);
+        if (!carrierJson.startsWith(CARRIER_PREFIX) || !carrierJson.endsWith("}")) {
+            throw new IllegalStateException("HAPI did not encode the tree carrier as expected");
+        }
+        return carrierJson.substring(CARRIER_PREFIX.length(), carrierJson.length() - 1);
+    }
+
+    /**
+     * @return a copy of everything but the tree
+     */
+    private static LocationHierarchy toEnvelope(LocationHierarchy locationHierarchy) {
+        LocationHierarchy envelope = new LocationHierarchy();
+        locationHierarchy.copyValues(envelope);
+        envelope.setLocationId(locationHierarchy.getLocationId());
+        return envelope;
+    }
+
+    /**
+     * @return whether no element of the hierarchy types carries an id, extension or comment, which
+     *     are the only things HAPI would render differently from {@link TreeWriter}
+     */
+    private static boolean isPlainStructure(LocationHierarchyTree locationHierarchyTree) {
+        return isPlain(locationHierarchyTree)
+                && isPlainStructure(locationHierarchyTree.getLocationsHierarchy());
+    }
+
+    /**
+     * @return whether no element of the tree, its nodes and its parent children lists carries an
+     *     id, extension or comment
+     */
+    static boolean isPlainStructure(Tree tree) {
+        if (!isPlain(tree)) {
+            return false;
+        }
+        SingleTreeNode listOfNodes = tree.getListOfNodes();
+        if (listOfNodes == null) {
+            return true;
+        }
+        if (!isPlain(listOfNodes) || !isPlain(listOfNodes.getTreeNodeId())) {
+            return false;
+        }
+        List<ParentChildrenMap> parentChildren = tree.getParentChildren();
+        if (parentChildren != null) {
+            for (ParentChildrenMap parentChildrenMap : parentChildren) {
+                if (parentChildrenMap == null) {
+                    continue;
+                }
+                if (!isPlain(parentChildrenMap) || !isPlain(parentChildrenMap.getIdentifier())) {
+                    return false;
+                }
+                List<StringType> childIdentifiers = parentChildrenMap.getChildIdentifiers();
+                if (childIdentifiers != null) {
+                    for (StringType childIdentifier : childIdentifiers) {
+                        if (!isPlain(childIdentifier)) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+
+        Deque<TreeNode> stack = new ArrayDeque<>();
+        if (listOfNodes.getTreeNode() != null) {
+            stack.push(listOfNodes.getTreeNode());
+        }
+        while (!stack.isEmpty()) {
+            TreeNode current = stack.pop();
+            if (!isPlain(current)
+                    || !isPlain(current.peekName())
+                    || !isPlain(current.getNodeId())
+                    || !isPlain(current.getLabel())
+                    || !isPlain(current.getParent())) {
+                return false;
+            }
+            for (ChildTreeNode child : current.getChildNodes()) {
+                if (child == null) {
+                    continue;
+                }
+                if (!isPlain(child) || !isPlain(child.getChildId())) {
+                    return false;
+                }
+                if (child.peekTreeNode() != null) {
+                    stack.push(child.peekTreeNode());
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPlain(Element element) {
+        return element == null
+                || (!element.hasId() && !element.hasExtension() && !element.hasFormatComment());
+    }
+
+    /** Writes the tree of one hierarchy, skipping empty elements the way HAPI does. */
+    private static final class TreeWriter {
+
+        private final Writer writer;
+
+        private final IParser parser;
+
+        private TreeWriter(Writer writer, IParser parser) {
+            this.writer = writer;
+            this.parser = parser;
+        }
+
+        void writeLocationHierarchyTree(LocationHierarchyTree locationHierarchyTree)
+                throws IOException {
+            Tree tree = locationHierarchyTree.getLocationsHierarchy();
+            writer.write("{\"locationsHierarchy\":{\"listOfNodes\":");
+            writeListOfNodes(tree.getListOfNodes());
+
+            boolean first = true;
+            List<ParentChildrenMap> parentChildren = tree.getParentChildren();
+            if (parentChildren != null) {
+                for (ParentChildrenMap parentChildrenMap : parentChildren) {
+                    if (parentChildrenMap == null || parentChildrenMap.isEmpty()) {
+                        continue;
+                    }
+                    writer.write(first ? ",\"parentChildren\":[" : ",");
+                    first = false;
+                    writeParentChildrenMap(parentChildrenMap);
+                }
+            }
+            if (!first) {
+                writer.write(']');
+            }
+            writer.write("}}");
+        }
+
+        private void writeListOfNodes(SingleTreeNode listOfNodes) throws IOException {
+            writer.write('{');
+            boolean first = writeString(true, "treeNodeId", listOfNodes.getTreeNodeId());
+            TreeNode rootNode = listOfNodes.getTreeNode();
+            if (rootNode != null && !rootNode.isEmpty()) {
+                writeFieldName(first, "treeNode");
+                // The element is declared repeating, so HAPI writes the single root as an array
+                writer.write('[');
+                writeTreeNodes(rootNode);
+                writer.write(']');
+            }
+            writer.write('}');
+        }
+
+        /**
+         * Writes a node and everything below it. Each stack entry is a node whose {@code children}
+         * array is open, together with the position of the next child to write.
+         */
+        private void writeTreeNodes(TreeNode rootNode) throws IOException {
+            Deque<TreeNode> nodes = new ArrayDeque<>();
+            Deque<int[]> positions = new ArrayDeque<>();
+            if (openTreeNode(rootNode)) {
+                nodes.push(rootNode);
+                positions.push(new int[] {0});
+            }
+            while (!nodes.isEmpty()) {
+                List<ChildTreeNode> children = nodes.peek().getChildNodes();
+                int[] position = positions.peek();
+                int next = nextChild(children, position[0]);
+                if (next == children.size()) {
+                    // Close the children array and the node; every node but the root also sits
+                    // inside a ChildTreeNode
+                    nodes.pop();
+                    positions.pop();
+                    writer.write(nodes.isEmpty() ? "]}" : "]}}");
+                    continue;
+                }
+                if (position[0] > 0) {
+                    writer.write(',');
+                }
+                position[0] = next + 1;
+
+                ChildTreeNode child = children.get(next);
+                writer.write('{');
+                writeString(true, "childId", child.getChildId());
+                TreeNode treeNode = child.peekTreeNode();
+                if (treeNode == null || treeNode.isEmpty()) {
+                    writer.write('}');
+                    continue;
+                }
+                writer.write(",\"treeNode\":");
+                if (openTreeNode(treeNode)) {
+                    nodes.push(treeNode);
+                    positions.push(new int[] {0});
+                } else {
+                    writer.write('}');
+                }
+            }
+        }
+
+        /**
+         * Writes the fields of a node up to its children.
+         *
+         * @return whether the node has children to write, in which case its {@code children} array
+         *     was opened; otherwise the node was closed
+         */
+        private boolean openTreeNode(TreeNode treeNode) throws IOException {
+            writer.write('{');
+            boolean first = writeString(true, "name", treeNode.peekName());
+            first = writeString(first, "nodeId", treeNode.getNodeId());
+            first = writeString(first, "label", treeNode.getLabel());
+            Location location = treeNode.peekNode();
+            if (location != null && !location.isEmpty()) {
+                writeFieldName(first, "node");
+                parser.encodeResourceToWriter(location, writer);
+                first = false;
+            }
+            first = writeString(first, "parent", treeNode.getParent());
+
+            List<ChildTreeNode> children = treeNode.getChildNodes();
+            if (nextChild(children, 0) == children.size()) {
+                writer.write('}');
+                return false;
+            }
+            writeFieldName(first, "children");
+            writer.write('[');
+            return true;
+        }
+
+        private void writeParentChildrenMap(ParentChildrenMap parentChildrenMap)
+                throws IOException {
+            writer.write('{');
+            writeString(true, "identifier", parentChildrenMap.getIdentifier());
+            List<StringType> childIdentifiers = parentChildrenMap.getChildIdentifiers();
+            boolean first = true;
+            if (childIdentifiers != null) {
+                for (StringType childIdentifier : childIdentifiers) {
+                    if (childIdentifier == null || childIdentifier.isEmpty()) {
+                        continue;
+                    }
+                    writer.write(first ? ",\"childIdentifiers\":[" : ",");
+                    first = false;
+                    writeQuoted(childIdentifier.getValue());
+                }
+            }
+            writer.write(first ? "}" : "]}");
+        }
+
+        /**
+         * @return whether the object is still without fields after this call
+         */
+        private boolean writeString(boolean first, String name, StringType value)
+                throws IOException {
+            if (value == null || value.isEmpty()) {
+                return first;
+            }
+            writeFieldName(first, name);
+            writeQuoted(value.getValue());
+            return false;
+        }
+
+        private void writeFieldName(boolean first, String name) throws IOException {
+            if (!first) {
+                writer.write(',');
+            }
+            writer.write('"');
+            writer.write(name);
+            writer.write("\":");
+        }
+
+        /** Quotes a string with the escapes Jackson uses, which is what HAPI writes with. */
+        private void writeQuoted(String value) throws IOException {
+            writer.write('"');
+            int length = value.length();
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    continue;
+                }
+                writer.write(value, start, i - start);
+                start = i + 1;
+                switch (c) {
+                    case '"':
+                        writer.write("\\\"");
+                        break;
+                    case '\\':
+                        writer.write("\\\\");
+                        break;
+                    case '\b':
+                        writer.write("\\b");
+                        break;
+                    case '\t':
+                        writer.write("\\t");
+                        break;
+                    case '\n':
+                        writer.write("\\n");
+                        break;
+                    case '\f':
+                        writer.write("\\f");
+                        break;
+                    case '\r':
+                        writer.write("\\r");
+                        break;
+                    default:
+                        writer.write("\\u00");
+                        writer.write(HEX_CHARS[c >> 4]);
+                        writer.write(HEX_CHARS[c & 0xF]);
+                }
+            }
+            writer.write(value, start, length - start);
+            writer.write('"');
+        }
+
+        private static int nextChild(List<ChildTreeNode> children, int from) {
+            int next = from;
+            while (next < children.size()
+                    && (children.get(next) == null || children.get(next).isEmpty())) {
+                next++;
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Holds a tree under a lower case element name, so HAPI can encode trees that {@link
+     * TreeWriter} does not render with its assertions enabled. Only public because HAPI creates
+     * resource types reflectively; not meant to be used directly.
+     */
+    @ResourceDef(name = TreeCarrier.RESOURCE_TYPE)
+    public static final class TreeCarrier extends Basic {
+
+        static final String RESOURCE_TYPE = "LocationHierarchyTreeCarrier";
+
+        @Child(
+                name = "tree",
+                type = {LocationHierarchyTree.class})
+        private LocationHierarchyTree tree;
+
+        public TreeCarrier() {}
+    }
+}
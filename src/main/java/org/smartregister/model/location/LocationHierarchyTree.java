@@ -21,13 +21,24 @@ import ca.uhn.fhir.util.ElementUtil;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.ICompositeType;
 import org.hl7.fhir.r4.model.Location;
-import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Type;
 import org.smartregister.utils.Constants;
+import org.smartregister.utils.Utils;
 
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
+/**
+ * A FHIR location hierarchy built from {@link Location} resources. Change it through its methods or
+ * those of {@link #getLocationsHierarchy()}; see {@link Tree} for changes made directly to nodes.
+ */
 @DatatypeDef(name = "LocationHierarchyTree")
 public class LocationHierarchyTree extends Type implements ICompositeType {
     @Child(name = "locationsHierarchy")
@@ -38,28 +49,72 @@ public class LocationHierarchyTree extends Type implements ICompositeType {
     }
 
     public void addLocation(Location location) {
-        StringType idString = new StringType();
         String locationId = extractLocationId(location);
-        idString.setValue(locationId);
         if (location.getPartOf() == null || StringUtils.isEmpty(location.getPartOf().getReference())) {
-            locationsHierarchy.addNode(idString.getValue(), location.getName(), location, null);
+            locationsHierarchy.addNode(locationId, location.getName(), location, null);
         } else {
             // get Parent Location
-            StringType parentId = new StringType();
-            parentId.setValue(location.getPartOf().getReference());
             locationsHierarchy.addNode(
-                    idString.getValue(), location.getName(), location, parentId.getValue());
+                    locationId, location.getName(), location, location.getPartOf().getReference());
         }
     }
 
-    private static String extractLocationId(Location location) {
+    /**
+     * Adds a location without its payload, e.g. from a search limited to {@code
+     * _elements=name,partOf}.
+     * The full {@link Location} is loaded on demand through the loader set with {@link
+     * #setLocationLoader(LocationLoader)}.
+     *
+     * @param locationId the location id, optionally with a {@code /_history} suffix
+     * @param name the location name, used as the node label
+     * @param parentId the {@code partOf} reference, or null for a root
+     */
+    public void addLocation(String locationId, String name, @Nullable String parentId) {
+        locationsHierarchy.addNode(
+                locationId, name, null, StringUtils.isEmpty(parentId) ? null : parentId);
+    }
+
+    /**
+     * @see Tree#setLocationLoader(LocationLoader)
+     */
+    public void setLocationLoader(@Nullable LocationLoader locationLoader) {
+        locationsHierarchy.setLocationLoader(locationLoader);
+    }
+
+    /**
+     * Returns the {@code Location/<id>} part of the location's id, e.g. {@code Location/1} for {@code
+     * http://server/fhir/Location/1/_history/3}. Ids that are already in that form are returned as
+     * is, without allocating a new string.
+     */
+    static String extractLocationId(Location location) {
         String locationId = location.getId();
-        StringTokenizer tokenizer = new StringTokenizer(locationId, Constants.FORWARD_SLASH);
-        while (tokenizer.hasMoreTokens()) {
-            String token = tokenizer.nextToken();
-            if (Constants.LOCATION.equals(token) && tokenizer.hasMoreTokens()) {
-                return token + Constants.FORWARD_SLASH + tokenizer.nextToken();
+        int length = locationId.length();
+        int tokenStart = 0;
+        while (tokenStart < length) {
+            int tokenEnd = locationId.indexOf(Constants.FORWARD_SLASH, tokenStart);
+            if (tokenEnd < 0) {
+                tokenEnd = length;
+            }
+            if (tokenEnd - tokenStart == Constants.LOCATION.length()
+                    && locationId.startsWith(Constants.LOCATION, tokenStart)) {
+                int idStart = tokenEnd;
+                while (idStart < length && locationId.charAt(idStart) == '/') {
+                    idStart++;
+                }
+                if (idStart < length) {
+                    int idEnd = locationId.indexOf(Constants.FORWARD_SLASH, idStart);
+                    if (idEnd < 0) {
+                        idEnd = length;
+                    }
+                    if (tokenStart == 0 && idStart == tokenEnd + 1 && idEnd == length) {
+                        return locationId;
+                    }
+                    return Constants.LOCATION
+                            + Constants.FORWARD_SLASH
+                            + locationId.substring(idStart, idEnd);
+                }
             }
+            tokenStart = tokenEnd + 1;
         }
         return locationId;
     }
@@ -75,6 +130,128 @@ public class LocationHierarchyTree extends Type implements ICompositeType {
         }
     }
 
+    /**
+     * Builds the hierarchy from locations given in any order, replacing the current hierarchy.
+     * Locations are grouped by their {@code partOf} reference and attached breadth first from the
+     * root in a single linear pass, so children may appear before their parents in the input.
+     *
+     * <p>The root is the first location without a {@code partOf} reference or, failing that, the
+     * first location whose parent is not part of the input. Locations that cannot be attached and
+     * repeated ids are listed in the returned report instead of failing the build.
+     *
+     * @param locations the locations to build the hierarchy from
+     * @return report of the build
+     */
+    public LocationHierarchyBuildReport buildTreeFromLocations(Iterable<Location> locations) {
+        LocationHierarchyBuildReport report = new LocationHierarchyBuildReport();
+        Map<String, Location> locationsById = new LinkedHashMap<>();
+        for (Location location : locations) {
+            String locationId = Utils.cleanIdString(extractLocationId(location));
+            if (locationsById.putIfAbsent(locationId, location) != null) {
+                report.addDuplicateId(locationId);
+            }
+        }
+
+        Map<String, List<String>> childIdsByParentId = new HashMap<>();
+        String rootId = null;
+        String fallbackRootId = null;
+        for (Map.Entry<String, Location> entry : locationsById.entrySet()) {
+            String parentId = getParentId(entry.getValue());
+            if (parentId == null) {
+                if (rootId == null) {
+                    rootId = entry.getKey();
+                }
+            } else if (locationsById.containsKey(Utils.cleanIdString(parentId))) {
+                childIdsByParentId
+                        .computeIfAbsent(Utils.cleanIdString(parentId), key -> new ArrayList<>())
+                        .add(entry.getKey());
+            } else if (fallbackRootId == null) {
+                fallbackRootId = entry.getKey();
+            }
+        }
+        if (rootId == null) {
+            rootId = fallbackRootId;
+        }
+
+        Tree tree = new Tree();
+        int nodeCount = 0;
+        if (rootId != null) {
+            Deque<String> queue = new ArrayDeque<>();
+            queue.add(rootId);
+            while (!queue.isEmpty()) {
+                String locationId = queue.poll();
+                Location location = locationsById.remove(locationId);
+                tree.addNode(locationId, location.getName(), location, getParentId(location));
+                nodeCount++;
+                List<String> childIds = childIdsByParentId.get(locationId);
+                if (childIds != null) {
+                    queue.addAll(childIds);
+                }
+            }
+        }
+        for (String orphanId : locationsById.keySet()) {
+            report.addOrphanId(orphanId);
+        }
+
+        locationsHierarchy = tree;
+        report.setRootId(rootId);
+        report.setNodeCount(nodeCount);
+        return report;
+    }
+
+    /**
+     * Builds the hierarchy like {@link #buildTreeFromLocations(Iterable)}, doing the per-location
+     * work on the given pool. The hierarchy and the report are the same as those of the sequential
+     * build, whatever the parallelism of the pool.
+     *
+     * @param locations the locations to build the hierarchy from
+     * @param pool the pool to build on
+     * @return report of the build
+     */
+    public LocationHierarchyBuildReport buildTreeFromLocations(
+            List<Location> locations, ForkJoinPool pool) {
+        LocationHierarchyBuildReport report = new LocationHierarchyBuildReport();
+        locationsHierarchy = new ParallelHierarchyBuilder(pool).build(locations, report);
+        return report;
+    }
+
+    static String getParentId(Location location) {
+        if (location.getPartOf() == null || StringUtils.isEmpty(location.getPartOf().getReference())) {
+            return null;
+        }
+        return location.getPartOf().getReference();
+    }
+
+    /**
+     * Returns the hierarchy below an existing location without fetching it again. The result shares
+     * its nodes with this hierarchy, see {@link Tree#getSubtree(String)}.
+     *
+     * @param locationId the id of the location to root the new hierarchy at
+     * @return the sub-hierarchy, or null if the location is not part of this hierarchy
+     */
+    @Nullable
+    public LocationHierarchyTree getSubHierarchy(String locationId) {
+        Tree subtree = locationsHierarchy.getSubtree(locationId);
+        if (subtree == null) {
+            return null;
+        }
+        return new LocationHierarchyTree().setLocationsHierarchy(subtree);
+    }
+
+    /**
+     * Returns the locations that match a filter, e.g. only active facilities, under a location. The
+     * ancestors of matching locations are kept so that the result stays connected. The view is
+     * answered from attribute bitmaps of the current snapshot, see {@link
+     * Tree#getCompactHierarchy()}; {@link FilteredLocationHierarchy#toTree()} turns it into a tree.
+     *
+     * @param filter the criteria the locations have to match
+     * @param rootId the id of the location to filter below, or null to filter the whole hierarchy
+     * @return the view, empty if nothing matched or the location is not part of this hierarchy
+     */
+    public FilteredLocationHierarchy filter(LocationFilter filter, @Nullable String rootId) {
+        return locationsHierarchy.getCompactHierarchy().filter(filter, rootId);
+    }
+
     public Tree getLocationsHierarchy() {
         return locationsHierarchy;
     }
@@ -84,10 +261,16 @@ public class LocationHierarchyTree extends Type implements ICompositeType {
         return this;
     }
 
+    /**
+     * Returns a copy that shares its nodes with this hierarchy until either of them changes, see
+     * {@link Tree#copy()}.
+     */
     @Override
-    public Type copy() {
+    public LocationHierarchyTree copy() {
         LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
         copyValues(locationHierarchyTree);
+        locationHierarchyTree.locationsHierarchy =
+                locationsHierarchy != null ? locationsHierarchy.copy() : null;
         return locationHierarchyTree;
     }
 
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Case-insensitive prefix index over the labels of a {@link CompactLocationHierarchy}, for location
+ * pickers that search as the user types.
+ *
+ * <p>Every word of a label starts a key that runs to the end of the label, so {@code "nairobi co"}
+ * and {@code "coun"} both find {@code "Nairobi County"}. The keys are held in one sorted array and
+ * the keys starting with a prefix are found by binary search. Matches are ordered by the key they
+ * matched and then in pre-order, so the first {@code limit} of them are read straight off the
+ * array. Searches scoped to a subtree that is smaller than the matching range scan the subtree
+ * instead.
+ *
+ * <p>Instances are immutable and safe to share between threads.
+ */
+public final class LocationLabelIndex {
+
+    private static final Comparator<Key> KEY_ORDER =
+            Comparator.<Key, String>comparing(key -> key.key).thenComparingInt(key -> key.node);
+
+    private final CompactLocationHierarchy hierarchy;
+
+    /** Lower case label of each node, by pre-order index. */
+    private final String[] labels;
+
+    private final String[] keys;
+
+    /** The node each key belongs to, by position in {@link #keys}. */
+    private final int[] keyNodes;
+
+    private LocationLabelIndex(
+            CompactLocationHierarchy hierarchy, String[] labels, String[] keys, int[] keyNodes) {
+        this.hierarchy = hierarchy;
+        this.labels = labels;
+        this.keys = keys;
+        this.keyNodes = keyNodes;
+    }
+
+    /**
+     * Builds the index over the labels of a snapshot. Nodes without a label are not indexed.
+     *
+     * @param hierarchy the snapshot to index
+     * @return the index
+     */
+    public static LocationLabelIndex from(CompactLocationHierarchy hierarchy) {
+        int size = hierarchy.size();
+        String[] labels = new String[size];
+        List<Key> entries = new ArrayList<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            String label = hierarchy.getLabel(i);
+            if (label == null) {
+                continue;
+            }
+            labels[i] = normalize(label);
+            for (int start = 0; start < labels[i].length(); start++) {
+                if (isWordStart(labels[i], start)) {
+                    entries.add(new Key(labels[i].substring(start), i));
+                }
+            }
+        }
+        entries.sort(KEY_ORDER);
+        String[] keys = new String[entries.size()];
+        int[] keyNodes = new int[entries.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = entries.get(i).key;
+            keyNodes[i] = entries.get(i).node;
+        }
+        return new LocationLabelIndex(hierarchy, labels, keys, keyNodes);
+    }
+
+    /**
+     * @see #search(String, String, int)
+     */
+    public List<String> search(String prefix, int limit) {
+        return search(prefix, null, limit);
+    }
+
+    /**
+     * Finds the nodes with a word in their label that starts with the given prefix, ignoring case.
+     *
+     * @param prefix the text typed so far
+     * @param scopeId the id of the subtree to search, or null to search the whole hierarchy
+     * @param limit the maximum number of matches to return
+     * @return ids of the first matches, ordered by the matching part of their label and then in
+     *     pre-order; empty if the scope is not part of the hierarchy
+     */
+    public List<String> search(String prefix, @Nullable String scopeId, int limit) {
+        String normalizedPrefix = normalize(prefix).trim();
+        int scopeStart = 0;
+        int scopeEnd = hierarchy.size();
+        if (scopeId != null) {
+            scopeStart = hierarchy.indexOf(scopeId);
+            if (scopeStart == CompactLocationHierarchy.NO_NODE) {
+                return Collections.emptyList();
+            }
+            scopeEnd = hierarchy.getSubtreeEnd(scopeStart);
+        }
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        int from = lowerBound(normalizedPrefix);
+        int to = upperBound(normalizedPrefix, from);
+        if (scopeEnd - scopeStart < to - from) {
+            return searchSubtree(normalizedPrefix, scopeStart, scopeEnd, limit);
+        }
+        List<String> ids = new ArrayList<>(Math.min(limit, to - from));
+        Set<Integer> found = new HashSet<>();
+        for (int i = from; i < to && ids.size() < limit; i++) {
+            int node = keyNodes[i];
+            if (node >= scopeStart && node < scopeEnd && found.add(node)) {
+                ids.add(hierarchy.getId(node));
+            }
+        }
+        return ids;
+    }
+
+    /** Checks the labels of a subtree directly, for scopes with fewer nodes than matching keys. */
+    private List<String> searchSubtree(String prefix, int scopeStart, int scopeEnd, int limit) {
+        List<Key> matches = new ArrayList<>();
+        for (int i = scopeStart; i < scopeEnd; i++) {
+            String label = labels[i];
+            if (label == null) {
+                continue;
+            }
+            String firstMatch = null;
+            for (int start = 0; start < label.length(); start++) {
+                if (isWordStart(label, start) && label.startsWith(prefix, start)) {
+                    String key = label.substring(start);
+                    if (firstMatch == null || key.compareTo(firstMatch) < 0) {
+                        firstMatch = key;
+                    }
+                }
+            }
+            if (firstMatch != null) {
+                matches.add(new Key(firstMatch, i));
+            }
+        }
+        matches.sort(KEY_ORDER);
+        List<String> ids = new ArrayList<>(Math.min(limit, matches.size()));
+        for (int i = 0; i < matches.size() && ids.size() < limit; i++) {
+            ids.add(hierarchy.getId(matches.get(i).node));
+        }
+        return ids;
+    }
+
+    /** @return the position of the first key that is not less than the prefix */
+    private int lowerBound(String prefix) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle].compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the position of the first key from {@code from} on that does not start with the
+     *     prefix; the keys that do are contiguous because they sort together
+     */
+    private int upperBound(String prefix, int from) {
+        int low = from;
+        int high = keys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle].startsWith(prefix)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static String normalize(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isWordStart(String label, int position) {
+        return Character.isLetterOrDigit(label.charAt(position))
+                && (position == 0 || !Character.isLetterOrDigit(label.charAt(position - 1)));
+    }
+
+    private static final class Key {
+
+        private final String key;
+
+        private final int node;
+
+        private Key(String key, int node) {
+            this.key = key;
+            this.node = node;
+        }
+    }
+}
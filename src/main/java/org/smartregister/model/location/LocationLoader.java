@@ -0,0 +1,38 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import org.hl7.fhir.r4.model.Location;
+
+import javax.annotation.Nullable;
+
+/**
+ * Supplies the full {@link Location} of a node that was added to a {@link Tree} with only its id,
+ * label and parent. See {@link Tree#setLocationLoader(LocationLoader)}.
+ */
+@FunctionalInterface
+public interface LocationLoader {
+
+    /**
+     * Loads the location, e.g. by reading it from the FHIR server or parsing stored JSON. May be
+     * called from several threads when used through a {@link CompactLocationHierarchy}.
+     *
+     * @param locationId the node id of the location
+     * @return the location, or null if it cannot be found
+     */
+    @Nullable
+    Location load(String locationId);
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import org.hl7.fhir.r4.model.Location;
+
+import javax.annotation.Nullable;
+
+/**
+ * Receives the nodes of a hierarchy as {@link LocationHierarchyJsonReader} reads them. Nodes arrive
+ * in depth-first pre-order: a node is reported before its children, and its end after all of them.
+ */
+@FunctionalInterface
+public interface LocationNodeHandler {
+
+    /**
+     * @param nodeId the id of the node
+     * @param label the label of the node
+     * @param parentId the id of the parent node; for the root the parent it points to, if any
+     * @param depth the depth of the node in the document, {@code 0} for the root
+     * @param location the payload of the node, or null if it has none or payloads are not parsed
+     * @return true to continue reading, false to stop
+     */
+    boolean onNode(
+            String nodeId,
+            @Nullable String label,
+            @Nullable String parentId,
+            int depth,
+            @Nullable Location location);
+
+    /**
+     * Called once the node and everything below it has been reported.
+     *
+     * @return true to continue reading, false to stop
+     */
+    default boolean onNodeEnd(String nodeId, int depth) {
+        return true;
+    }
+}
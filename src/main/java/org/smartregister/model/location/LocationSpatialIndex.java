@@ -0,0 +1,463 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import org.hl7.fhir.r4.model.Location;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Spatial index over the {@link Location#getPosition()} coordinates of a {@link
+ * CompactLocationHierarchy}. It answers nearest neighbour and bounding box queries, optionally
+ * within a subtree, without looking at every location.
+ *
+ * <p>The located nodes are held in a static k-d tree laid out in arrays: the range {@code [from,
+ * to)} is split at its middle position, which holds the median along the wider side of the range's
+ * bounding box. Every position also keeps the bounding box and the lowest and highest pre-order
+ * index of its range, so searches skip ranges that are too far away or lie outside the subtree
+ * searched. Distances are great-circle distances in metres.
+ *
+ * <p>Instances are immutable and safe to share between threads.
+ */
+public final class LocationSpatialIndex {
+
+    /** Mean radius of the earth in metres. */
+    public static final double EARTH_RADIUS = 6_371_008.8;
+
+    private final CompactLocationHierarchy hierarchy;
+
+    private final double[] latitudes;
+
+    private final double[] longitudes;
+
+    /** Pre-order index of the node at each position. */
+    private final int[] nodes;
+
+    private final double[] minLatitudes;
+
+    private final double[] maxLatitudes;
+
+    private final double[] minLongitudes;
+
+    private final double[] maxLongitudes;
+
+    private final int[] minNodes;
+
+    private final int[] maxNodes;
+
+    private LocationSpatialIndex(
+            CompactLocationHierarchy hierarchy,
+            double[] latitudes,
+            double[] longitudes,
+            int[] nodes) {
+        this.hierarchy = hierarchy;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.nodes = nodes;
+        int size = nodes.length;
+        this.minLatitudes = new double[size];
+        this.maxLatitudes = new double[size];
+        this.minLongitudes = new double[size];
+        this.maxLongitudes = new double[size];
+        this.minNodes = new int[size];
+        this.maxNodes = new int[size];
+        build(0, size);
+    }
+
+    /**
+     * Builds the index over the locations of a snapshot that have a valid latitude and longitude.
+     * Locations the snapshot has not loaded yet are loaded through its {@link LocationLoader}.
+     *
+     * @param hierarchy the snapshot to index
+     * @return the index
+     */
+    public static LocationSpatialIndex from(CompactLocationHierarchy hierarchy) {
+        int size = hierarchy.size();
+        double[] latitudes = new double[size];
+        double[] longitudes = new double[size];
+        int[] nodes = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            Location location = hierarchy.getLocation(i);
+            if (location == null
+                    || !location.hasPosition()
+                    || !location.getPosition().hasLatitude()
+                    || !location.getPosition().hasLongitude()) {
+                continue;
+            }
+            double latitude = location.getPosition().getLatitude().doubleValue();
+            double longitude = location.getPosition().getLongitude().doubleValue();
+            if (Math.abs(latitude) <= 90 && Math.abs(longitude) <= 180) {
+                latitudes[count] = latitude;
+                longitudes[count] = longitude;
+                nodes[count] = i;
+                count++;
+            }
+        }
+        return new LocationSpatialIndex(
+                hierarchy,
+                Arrays.copyOf(latitudes, count),
+                Arrays.copyOf(longitudes, count),
+                Arrays.copyOf(nodes, count));
+    }
+
+    /**
+     * @return the number of located nodes in the index
+     */
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * @see #findNearest(double, double, int, String)
+     */
+    public List<String> findNearest(double latitude, double longitude, int count) {
+        return findNearest(latitude, longitude, count, null);
+    }
+
+    /**
+     * Finds the located nodes nearest to a point.
+     *
+     * @param latitude the latitude of the point in degrees
+     * @param longitude the longitude of the point in degrees
+     * @param count the maximum number of nodes to return
+     * @param scopeId the id of the subtree to search, or null to search the whole hierarchy
+     * @return ids of the nearest nodes, the nearest first; empty if the scope is not part of the
+     *     hierarchy
+     */
+    public List<String> findNearest(
+            double latitude, double longitude, int count, @Nullable String scopeId) {
+        int[] scope = getScope(scopeId);
+        if (scope == null || count <= 0) {
+            return Collections.emptyList();
+        }
+        // The farthest candidate on top, so it is the one replaced by a nearer node
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(Collections.reverseOrder());
+        findNearest(latitude, longitude, count, scope[0], scope[1], 0, nodes.length, candidates);
+        Candidate[] nearest = candidates.toArray(new Candidate[0]);
+        Arrays.sort(nearest);
+        List<String> ids = new ArrayList<>(nearest.length);
+        for (Candidate candidate : nearest) {
+            ids.add(hierarchy.getId(candidate.node));
+        }
+        return ids;
+    }
+
+    /**
+     * Finds the located nodes inside a bounding box. A box whose minimum longitude is greater than
+     * its maximum longitude crosses the antimeridian.
+     *
+     * @param scopeId the id of the subtree to search, or null to search the whole hierarchy
+     * @return ids of the nodes inside the box in pre-order; empty if the scope is not part of the
+     *     hierarchy
+     */
+    public List<String> findWithin(
+            double minLatitude,
+            double minLongitude,
+            double maxLatitude,
+            double maxLongitude,
+            @Nullable String scopeId) {
+        int[] scope = getScope(scopeId);
+        if (scope == null) {
+            return Collections.emptyList();
+        }
+        CompactLocationHierarchy.IntArrayBuilder found =
+                new CompactLocationHierarchy.IntArrayBuilder();
+        findWithin(
+                minLatitude,
+                minLongitude,
+                maxLatitude,
+                maxLongitude,
+                scope[0],
+                scope[1],
+                0,
+                nodes.length,
+                found);
+        int[] foundNodes = found.toArray();
+        Arrays.sort(foundNodes);
+        List<String> ids = new ArrayList<>(foundNodes.length);
+        for (int node : foundNodes) {
+            ids.add(hierarchy.getId(node));
+        }
+        return ids;
+    }
+
+    /**
+     * @return the great-circle distance between two points in metres
+     */
+    public static double distance(
+            double latitude1, double longitude1, double latitude2, double longitude2) {
+        double latitudeDelta = Math.toRadians(latitude2 - latitude1);
+        double longitudeDelta = Math.toRadians(longitude2 - longitude1);
+        double a =
+                Math.pow(Math.sin(latitudeDelta / 2), 2)
+                        + Math.cos(Math.toRadians(latitude1))
+                                * Math.cos(Math.toRadians(latitude2))
+                                * Math.pow(Math.sin(longitudeDelta / 2), 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * @return the pre-order index range of the subtree, the whole hierarchy for a null id, or null
+     *     if the node is not part of the hierarchy
+     */
+    @Nullable
+    private int[] getScope(@Nullable String scopeId) {
+        if (scopeId == null) {
+            return new int[] {0, hierarchy.size()};
+        }
+        int index = hierarchy.indexOf(scopeId);
+        if (index == CompactLocationHierarchy.NO_NODE) {
+            return null;
+        }
+        return new int[] {index, hierarchy.getSubtreeEnd(index)};
+    }
+
+    private void findNearest(
+            double latitude,
+            double longitude,
+            int count,
+            int scopeStart,
+            int scopeEnd,
+            int from,
+            int to,
+            PriorityQueue<Candidate> candidates) {
+        if (from >= to) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        if (maxNodes[middle] < scopeStart
+                || minNodes[middle] >= scopeEnd
+                || (candidates.size() == count
+                        && lowerBound(latitude, longitude, middle)
+                                > candidates.peek().distance)) {
+            return;
+        }
+        int node = nodes[middle];
+        if (node >= scopeStart && node < scopeEnd) {
+            Candidate candidate =
+                    new Candidate(
+                            distance(latitude, longitude, latitudes[middle], longitudes[middle]),
+                            node);
+            if (candidates.size() < count) {
+                candidates.add(candidate);
+            } else if (candidate.compareTo(candidates.peek()) < 0) {
+                candidates.poll();
+                candidates.add(candidate);
+            }
+        }
+        // Search the nearer half first, so the farther one is more likely to be skipped
+        int leftMiddle = (from + middle) >>> 1;
+        int rightMiddle = (middle + 1 + to) >>> 1;
+        boolean leftFirst =
+                middle + 1 >= to
+                        || (from < middle
+                                && lowerBound(latitude, longitude, leftMiddle)
+                                        <= lowerBound(latitude, longitude, rightMiddle));
+        int firstFrom = leftFirst ? from : middle + 1;
+        int firstTo = leftFirst ? middle : to;
+        int secondFrom = leftFirst ? middle + 1 : from;
+        int secondTo = leftFirst ? to : middle;
+        findNearest(
+                latitude, longitude, count, scopeStart, scopeEnd, firstFrom, firstTo, candidates);
+        findNearest(
+                latitude, longitude, count, scopeStart, scopeEnd, secondFrom, secondTo, candidates);
+    }
+
+    private void findWithin(
+            double minLatitude,
+            double minLongitude,
+            double maxLatitude,
+            double maxLongitude,
+            int scopeStart,
+            int scopeEnd,
+            int from,
+            int to,
+            CompactLocationHierarchy.IntArrayBuilder found) {
+        if (from >= to) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        if (maxNodes[middle] < scopeStart
+                || minNodes[middle] >= scopeEnd
+                || minLatitudes[middle] > maxLatitude
+                || maxLatitudes[middle] < minLatitude
+                || !overlapsLongitudes(
+                        minLongitudes[middle], maxLongitudes[middle], minLongitude, maxLongitude)) {
+            return;
+        }
+        int node = nodes[middle];
+        if (node >= scopeStart
+                && node < scopeEnd
+                && latitudes[middle] >= minLatitude
+                && latitudes[middle] <= maxLatitude
+                && overlapsLongitudes(
+                        longitudes[middle], longitudes[middle], minLongitude, maxLongitude)) {
+            found.add(node);
+        }
+        findWithin(
+                minLatitude, minLongitude, maxLatitude, maxLongitude, scopeStart, scopeEnd, from,
+                middle, found);
+        findWithin(
+                minLatitude, minLongitude, maxLatitude, maxLongitude, scopeStart, scopeEnd,
+                middle + 1, to, found);
+    }
+
+    /**
+     * Checks whether the longitudes {@code [from, to]} overlap those of a query box, which crosses
+     * the antimeridian if its minimum is greater than its maximum.
+     */
+    private static boolean overlapsLongitudes(
+            double from, double to, double minLongitude, double maxLongitude) {
+        if (minLongitude <= maxLongitude) {
+            return from <= maxLongitude && to >= minLongitude;
+        }
+        return to >= minLongitude || from <= maxLongitude;
+    }
+
+    /**
+     * Returns a distance that no node in the range at {@code position} is nearer than. It is the
+     * larger of the distance along the meridian to the range's latitudes and, for points outside
+     * its longitudes, the distance to the nearer of the great circles through its bounding
+     * meridians.
+     */
+    private double lowerBound(double latitude, double longitude, int position) {
+        double latitudeGap =
+                Math.max(
+                        0,
+                        Math.max(
+                                minLatitudes[position] - latitude,
+                                latitude - maxLatitudes[position]));
+        double bound = EARTH_RADIUS * Math.toRadians(latitudeGap);
+        if (longitude < minLongitudes[position] || longitude > maxLongitudes[position]) {
+            double cosLatitude = Math.cos(Math.toRadians(latitude));
+            double crossTrack =
+                    Math.min(
+                            Math.abs(
+                                    Math.sin(Math.toRadians(longitude - minLongitudes[position]))),
+                            Math.abs(
+                                    Math.sin(Math.toRadians(longitude - maxLongitudes[position]))));
+            bound =
+                    Math.max(
+                            bound, EARTH_RADIUS * Math.asin(Math.min(1, cosLatitude * crossTrack)));
+        }
+        return bound;
+    }
+
+    /** Computes the bounds of the range, then splits it at its middle and builds both halves. */
+    private void build(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        double minLatitude = Double.POSITIVE_INFINITY;
+        double maxLatitude = Double.NEGATIVE_INFINITY;
+        double minLongitude = Double.POSITIVE_INFINITY;
+        double maxLongitude = Double.NEGATIVE_INFINITY;
+        int minNode = Integer.MAX_VALUE;
+        int maxNode = Integer.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            minLatitude = Math.min(minLatitude, latitudes[i]);
+            maxLatitude = Math.max(maxLatitude, latitudes[i]);
+            minLongitude = Math.min(minLongitude, longitudes[i]);
+            maxLongitude = Math.max(maxLongitude, longitudes[i]);
+            minNode = Math.min(minNode, nodes[i]);
+            maxNode = Math.max(maxNode, nodes[i]);
+        }
+        minLatitudes[middle] = minLatitude;
+        maxLatitudes[middle] = maxLatitude;
+        minLongitudes[middle] = minLongitude;
+        maxLongitudes[middle] = maxLongitude;
+        minNodes[middle] = minNode;
+        maxNodes[middle] = maxNode;
+
+        double longitudeExtent =
+                (maxLongitude - minLongitude)
+                        * Math.cos(Math.toRadians((minLatitude + maxLatitude) / 2));
+        double[] values = maxLatitude - minLatitude >= longitudeExtent ? latitudes : longitudes;
+        select(values, from, to, middle);
+        build(from, middle);
+        build(middle + 1, to);
+    }
+
+    /**
+     * Reorders the range so that position {@code n} holds the value it would hold if the range was
+     * sorted by the given coordinate, with no greater values before it and no smaller ones after.
+     */
+    private void select(double[] values, int from, int to, int n) {
+        int low = from;
+        int high = to - 1;
+        while (low < high) {
+            double pivot = values[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (n <= j) {
+                high = j;
+            } else if (n >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        double latitude = latitudes[i];
+        latitudes[i] = latitudes[j];
+        latitudes[j] = latitude;
+        double longitude = longitudes[i];
+        longitudes[i] = longitudes[j];
+        longitudes[j] = longitude;
+        int node = nodes[i];
+        nodes[i] = nodes[j];
+        nodes[j] = node;
+    }
+
+    /** A node found by a nearest neighbour search, ordered by distance and then in pre-order. */
+    private static final class Candidate implements Comparable<Candidate> {
+
+        private final double distance;
+
+        private final int node;
+
+        private Candidate(double distance, int node) {
+            this.distance = distance;
+            this.node = node;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int result = Double.compare(distance, other.distance);
+            return result != 0 ? result : Integer.compare(node, other.node);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.smartregister.model.location.CompactLocationHierarchy.NO_NODE;
+
+/**
+ * Lowest common ancestor and path queries over a {@link CompactLocationHierarchy}.
+ *
+ * <p>Uses binary lifting: {@code ancestors[k][i]} is the {@code 2^k}th ancestor of node {@code i},
+ * capped at the root. Combined with the Euler tour intervals of the snapshot a query climbs at
+ * most {@code log2(height)} levels, independent of the size of the hierarchy. The index is
+ * immutable, so batches of queries may be spread over several threads.
+ */
+public final class LowestCommonAncestorIndex {
+
+    private final CompactLocationHierarchy hierarchy;
+
+    private final int[][] ancestors;
+
+    public LowestCommonAncestorIndex(CompactLocationHierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+
+        int size = hierarchy.size();
+        int height = 0;
+        for (int i = 0; i < size; i++) {
+            height = Math.max(height, hierarchy.getDepth(i));
+        }
+        int levels = 32 - Integer.numberOfLeadingZeros(Math.max(height, 1));
+        ancestors = new int[levels][size];
+        for (int i = 0; i < size; i++) {
+            ancestors[0][i] = i == 0 ? 0 : hierarchy.getParentIndex(i);
+        }
+        for (int k = 1; k < levels; k++) {
+            int[] previous = ancestors[k - 1];
+            int[] current = ancestors[k];
+            for (int i = 0; i < size; i++) {
+                current[i] = previous[previous[i]];
+            }
+        }
+    }
+
+    /**
+     * @param locationHierarchyTree the hierarchy to index
+     * @return an index over the current snapshot of the hierarchy
+     */
+    public static LowestCommonAncestorIndex of(LocationHierarchyTree locationHierarchyTree) {
+        return new LowestCommonAncestorIndex(
+                locationHierarchyTree.getLocationsHierarchy().getCompactHierarchy());
+    }
+
+    public CompactLocationHierarchy getHierarchy() {
+        return hierarchy;
+    }
+
+    /**
+     * @return the index of the lowest node that is the same as or an ancestor of both nodes
+     */
+    public int lowestCommonAncestor(int first, int second) {
+        if (isSameOrAncestor(first, second)) {
+            return first;
+        }
+        if (isSameOrAncestor(second, first)) {
+            return second;
+        }
+        int current = first;
+        for (int k = ancestors.length - 1; k >= 0; k--) {
+            int candidate = ancestors[k][current];
+            if (!isSameOrAncestor(candidate, second)) {
+                current = candidate;
+            }
+        }
+        return ancestors[0][current];
+    }
+
+    /**
+     * Finds the nearest location containing both given locations. A location counts as containing
+     * itself, so the result for a location and one of its descendants is the location itself.
+     *
+     * @return the id of the lowest common ancestor, or null if either id is not in the hierarchy
+     */
+    @Nullable
+    public String lowestCommonAncestor(String firstId, String secondId) {
+        int first = hierarchy.indexOf(firstId);
+        int second = hierarchy.indexOf(secondId);
+        if (first == NO_NODE || second == NO_NODE) {
+            return null;
+        }
+        return hierarchy.getId(lowestCommonAncestor(first, second));
+    }
+
+    /**
+     * Answers many queries at once. Pairs with an unknown node get {@link
+     * CompactLocationHierarchy#NO_NODE}.
+     *
+     * @param first indices of the first node of each pair
+     * @param second indices of the second node of each pair
+     * @return the index of the lowest common ancestor of each pair
+     */
+    public int[] lowestCommonAncestors(int[] first, int[] second) {
+        if (first.length != second.length) {
+            throw new IllegalArgumentException("Both arrays must hold the same number of nodes");
+        }
+        int[] result = new int[first.length];
+        for (int i = 0; i < first.length; i++) {
+            result[i] =
+                    first[i] == NO_NODE || second[i] == NO_NODE
+                            ? NO_NODE
+                            : lowestCommonAncestor(first[i], second[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return the index of the ancestor of the node at the given depth, the node itself if it is at
+     *     that depth, or {@link CompactLocationHierarchy#NO_NODE} if the node is shallower
+     */
+    public int getAncestorAtDepth(int index, int depth) {
+        int steps = hierarchy.getDepth(index) - depth;
+        if (depth < 0 || steps < 0) {
+            return NO_NODE;
+        }
+        int current = index;
+        for (int k = 0; steps > 0; k++, steps >>>= 1) {
+            if ((steps & 1) != 0) {
+                current = ancestors[k][current];
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return the number of edges between the two nodes
+     */
+    public int getDistance(int first, int second) {
+        int ancestor = lowestCommonAncestor(first, second);
+        return hierarchy.getDepth(first)
+                + hierarchy.getDepth(second)
+                - 2 * hierarchy.getDepth(ancestor);
+    }
+
+    /**
+     * Lists the locations on the way from one location to another, going up to their lowest common
+     * ancestor and then down.
+     *
+     * @return ids on the path, both ends included; empty if either id is not in the hierarchy
+     */
+    public List<String> getPath(String fromId, String toId) {
+        int from = hierarchy.indexOf(fromId);
+        int to = hierarchy.indexOf(toId);
+        if (from == NO_NODE || to == NO_NODE) {
+            return Collections.emptyList();
+        }
+        int ancestor = lowestCommonAncestor(from, to);
+        List<String> path = new ArrayList<>(getDistance(from, to) + 1);
+        for (int current = from; current != ancestor; current = hierarchy.getParentIndex(current)) {
+            path.add(hierarchy.getId(current));
+        }
+        path.add(hierarchy.getId(ancestor));
+        int descentStart = path.size();
+        for (int current = to; current != ancestor; current = hierarchy.getParentIndex(current)) {
+            path.add(hierarchy.getId(current));
+        }
+        Collections.reverse(path.subList(descentStart, path.size()));
+        return path;
+    }
+
+    private boolean isSameOrAncestor(int ancestor, int index) {
+        return ancestor == index || hierarchy.isDescendant(ancestor, index);
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.StringType;
+import org.smartregister.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Builds a {@link Tree} from a list of locations on a {@link ForkJoinPool}, with the same result as
+ * {@link LocationHierarchyTree#buildTreeFromLocations(Iterable)}.
+ *
+ * <p>Locations are addressed by their position in the input. The expensive per-location work,
+ * reading ids and references and creating the nodes, and linking each parent to its children run
+ * in parallel over ranges of positions, each task writing only to its own positions. Resolving
+ * duplicate ids, grouping children by parent and ordering the nodes breadth first are sequential
+ * passes over int arrays, which keeps the result independent of the number of threads.
+ */
+final class ParallelHierarchyBuilder {
+
+    /** Positions handled by a single task. */
+    private static final int BATCH_SIZE = 1024;
+
+    private static final int DUPLICATE = -1;
+
+    private static final int NO_PARENT = -2;
+
+    private static final int MISSING_PARENT = -3;
+
+    private final ForkJoinPool pool;
+
+    ParallelHierarchyBuilder(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    Tree build(List<Location> locationList, LocationHierarchyBuildReport report) {
+        Location[] locations = locationList.toArray(new Location[0]);
+        int size = locations.length;
+        String[] ids = new String[size];
+        String[] parentReferences = new String[size];
+        forEach(
+                size,
+                i -> {
+                    ids[i] =
+                            Utils.cleanIdString(
+                                    LocationHierarchyTree.extractLocationId(locations[i]));
+                    parentReferences[i] = LocationHierarchyTree.getParentId(locations[i]);
+                });
+
+        // The first occurrence of an id wins
+        int[] parents = new int[size];
+        Map<String, Integer> indexById = new HashMap<>(Math.max(16, (int) (size / 0.75f) + 1));
+        for (int i = 0; i < size; i++) {
+            if (indexById.putIfAbsent(ids[i], i) != null) {
+                report.addDuplicateId(ids[i]);
+                parents[i] = DUPLICATE;
+            }
+        }
+
+        StringType[] nodeIds = new StringType[size];
+        forEach(
+                size,
+                i -> {
+                    if (parents[i] == DUPLICATE) {
+                        return;
+                    }
+                    if (parentReferences[i] == null) {
+                        parents[i] = NO_PARENT;
+                    } else {
+                        Integer parent = indexById.get(Utils.cleanIdString(parentReferences[i]));
+                        parents[i] = parent != null ? parent : MISSING_PARENT;
+                    }
+                    StringType nodeId = new StringType();
+                    nodeId.setValue(ids[i]);
+                    nodeIds[i] = nodeId;
+                });
+
+        int root = findRoot(parents);
+        int[] childOffsets = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            if (parents[i] >= 0) {
+                childOffsets[parents[i] + 1]++;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            childOffsets[i + 1] += childOffsets[i];
+        }
+        int[] childIndices = new int[childOffsets[size]];
+        int[] nextChild = Arrays.copyOf(childOffsets, size);
+        for (int i = 0; i < size; i++) {
+            if (parents[i] >= 0) {
+                childIndices[nextChild[parents[i]]++] = i;
+            }
+        }
+
+        // Breadth first from the root, the order in which the sequential build adds nodes
+        int[] order = new int[size];
+        int count = 0;
+        if (root >= 0) {
+            order[count++] = root;
+            for (int k = 0; k < count; k++) {
+                int parent = order[k];
+                for (int j = childOffsets[parent]; j < childOffsets[parent + 1]; j++) {
+                    order[count++] = childIndices[j];
+                }
+            }
+        }
+
+        TreeNode[] nodes = new TreeNode[size];
+        forEach(
+                count,
+                k -> {
+                    int i = order[k];
+                    TreeNode node = new TreeNode();
+                    node.setNodeId(nodeIds[i]);
+                    StringType label = new StringType();
+                    label.setValue(locations[i].getName());
+                    node.setLabel(label);
+                    node.setNode(locations[i]);
+                    if (k == 0) {
+                        StringType parent = new StringType();
+                        parent.setValue(Utils.cleanIdString(parentReferences[i]));
+                        node.setParent(parent);
+                    } else {
+                        node.setParent(nodeIds[parents[i]]);
+                    }
+                    nodes[i] = node;
+                });
+
+        ParentChildrenMap[][] entries = new ParentChildrenMap[size][];
+        forEach(
+                count,
+                k -> {
+                    int parent = order[k];
+                    int from = childOffsets[parent];
+                    int to = childOffsets[parent + 1];
+                    if (from == to) {
+                        return;
+                    }
+                    List<ChildTreeNode> children = new ArrayList<>(to - from);
+                    for (int j = from; j < to; j++) {
+                        int child = childIndices[j];
+                        children.add(
+                                new ChildTreeNode()
+                                        .setChildId(nodeIds[child])
+                                        .setChildren(nodes[child]));
+                    }
+                    nodes[parent].setChildren(children);
+                    entries[parent] =
+                            getParentChildren(
+                                    nodeIds[parent], childIndices, from, to, parentReferences,
+                                    nodeIds);
+                });
+
+        Tree tree = new Tree();
+        if (root >= 0) {
+            List<ParentChildrenMap> parentChildren = new ArrayList<>();
+            if (parentReferences[root] != null) {
+                // The sequential build records the missing parent of a fallback root as well
+                StringType identifier = new StringType();
+                identifier.setValue(parentReferences[root]);
+                List<StringType> childIdentifiers = new ArrayList<>();
+                childIdentifiers.add(nodeIds[root]);
+                parentChildren.add(
+                        new ParentChildrenMap()
+                                .setIdentifier(identifier)
+                                .setChildIdentifiers(childIdentifiers));
+            }
+            Map<String, TreeNode> nodeIndex =
+                    new HashMap<>(Math.max(16, (int) (count / 0.75f) + 1));
+            for (int k = 0; k < count; k++) {
+                int i = order[k];
+                nodeIndex.put(ids[i], nodes[i]);
+                if (entries[i] != null) {
+                    parentChildren.addAll(Arrays.asList(entries[i]));
+                }
+            }
+            SingleTreeNode listOfNodes = new SingleTreeNode();
+            listOfNodes.setTreeNodeId(nodeIds[root]);
+            listOfNodes.setTreeNode(nodes[root]);
+            tree.setBuiltNodes(listOfNodes, parentChildren, nodeIndex);
+            report.setRootId(ids[root]);
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (parents[i] != DUPLICATE && nodes[i] == null) {
+                report.addOrphanId(ids[i]);
+            }
+        }
+        report.setNodeCount(count);
+        return tree;
+    }
+
+    /**
+     * @return the first location without a parent or, failing that, the first one whose parent is
+     *     missing; -1 if there is neither
+     */
+    private static int findRoot(int[] parents) {
+        int fallbackRoot = -1;
+        for (int i = 0; i < parents.length; i++) {
+            if (parents[i] == NO_PARENT) {
+                return i;
+            }
+            if (parents[i] == MISSING_PARENT && fallbackRoot < 0) {
+                fallbackRoot = i;
+            }
+        }
+        return fallbackRoot;
+    }
+
+    /**
+     * Returns the parentChildren entries of a parent. Children normally all refer to their parent
+     * the same way and share one entry; like the sequential build, children that refer to it by a
+     * different reference, e.g. with a {@code /_history} suffix, get an entry of their own.
+     */
+    private static ParentChildrenMap[] getParentChildren(
+            StringType parentId,
+            int[] childIndices,
+            int from,
+            int to,
+            String[] parentReferences,
+            StringType[] nodeIds) {
+        Map<String, ParentChildrenMap> entries = new LinkedHashMap<>(2);
+        for (int j = from; j < to; j++) {
+            int child = childIndices[j];
+            String reference = parentReferences[child];
+            ParentChildrenMap parentChildrenMap = entries.get(reference);
+            if (parentChildrenMap == null) {
+                StringType identifier = parentId;
+                if (!reference.equals(parentId.getValue())) {
+                    identifier = new StringType();
+                    identifier.setValue(reference);
+                }
+                parentChildrenMap =
+                        new ParentChildrenMap()
+                                .setIdentifier(identifier)
+                                .setChildIdentifiers(new ArrayList<>());
+                entries.put(reference, parentChildrenMap);
+            }
+            parentChildrenMap.getChildIdentifiers().add(nodeIds[child]);
+        }
+        return entries.values().toArray(new ParentChildrenMap[0]);
+    }
+
+    private void forEach(int size, IntConsumer action) {
+        pool.invoke(new RangeAction(0, size, action));
+    }
+
+    private static final class RangeAction extends RecursiveAction {
+
+        private final int from;
+
+        private final int to;
+
+        private final IntConsumer action;
+
+        private RangeAction(int from, int to, IntConsumer action) {
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_SIZE) {
+                for (int i = from; i < to; i++) {
+                    action.accept(i);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeAction(from, middle, action), new RangeAction(middle, to, action));
+        }
+    }
+}
@@ -22,6 +22,8 @@ import org.hl7.fhir.instance.model.api.ICompositeType;
 import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Type;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.List;
 
 @DatatypeDef(name = "ParentChildrenMap")
@@ -47,6 +49,9 @@ public class ParentChildrenMap extends Type implements ICompositeType {
             summary = false)
     private List<StringType> childIdentifiers;
 
+    /** See {@link #getOwner()}. */
+    private transient Object owner;
+
     public StringType getIdentifier() {
         return identifier;
     }
@@ -66,12 +71,44 @@ public class ParentChildrenMap extends Type implements ICompositeType {
     }
 
     @Override
-    public Type copy() {
+    public ParentChildrenMap copy() {
+        ParentChildrenMap parentChildrenMap = new ParentChildrenMap();
+        copyValues(parentChildrenMap);
+        parentChildrenMap.identifier = identifier != null ? identifier.copy() : null;
+        if (childIdentifiers != null) {
+            parentChildrenMap.childIdentifiers = new ArrayList<>(childIdentifiers.size());
+            for (StringType childIdentifier : childIdentifiers) {
+                parentChildrenMap.childIdentifiers.add(
+                        childIdentifier != null ? childIdentifier.copy() : null);
+            }
+        }
+        return parentChildrenMap;
+    }
+
+    /**
+     * Returns a copy with its own list of child identifiers. The identifiers themselves are shared.
+     * {@link Tree} uses it to copy shared entries on write.
+     */
+    ParentChildrenMap shallowCopy() {
         ParentChildrenMap parentChildrenMap = new ParentChildrenMap();
         copyValues(parentChildrenMap);
+        parentChildrenMap.identifier = identifier;
+        if (childIdentifiers != null) {
+            parentChildrenMap.childIdentifiers = new ArrayList<>(childIdentifiers);
+        }
         return parentChildrenMap;
     }
 
+    /** @return the owner token of the tree that may change this entry in place, if any */
+    @Nullable
+    Object getOwner() {
+        return owner;
+    }
+
+    void setOwner(@Nullable Object owner) {
+        this.owner = owner;
+    }
+
     @Override
     public boolean isEmpty() {
         return ElementUtil.isEmpty(identifier);
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe holder of a location hierarchy that is read far more often than it is changed.
+ *
+ * <p>Readers call {@link #get()} and receive the latest published {@link CompactLocationHierarchy}.
+ * Snapshots are immutable and swapped in atomically, so readers never lock and never observe a
+ * partially applied change. Writers queue mutations of the underlying {@link Tree} with {@link
+ * #submit(Consumer)} and apply all queued mutations with a single {@link #publish()}, which takes one
+ * new snapshot for the whole batch.
+ *
+ * <p>The holder takes ownership of the tree it is created with; the tree must not be used directly
+ * afterwards.
+ */
+public final class SharedLocationHierarchy {
+
+    private Tree tree;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final Queue<Consumer<Tree>> pendingMutations = new ConcurrentLinkedQueue<>();
+
+    private final AtomicReference<CompactLocationHierarchy> current;
+
+    public SharedLocationHierarchy(Tree tree) {
+        this.tree = tree;
+        this.current = new AtomicReference<>(tree.getCompactHierarchy());
+    }
+
+    public static SharedLocationHierarchy of(LocationHierarchyTree locationHierarchyTree) {
+        return new SharedLocationHierarchy(locationHierarchyTree.getLocationsHierarchy());
+    }
+
+    /**
+     * @return the latest published snapshot; never blocks
+     */
+    public CompactLocationHierarchy get() {
+        return current.get();
+    }
+
+    /**
+     * Queues a mutation of the tree. It is applied, and becomes visible to readers, on the next
+     * {@link #publish()}.
+     *
+     * @param mutation the change to make, e.g. {@code tree -> tree.moveNode(id, parentId)}
+     */
+    public void submit(Consumer<Tree> mutation) {
+        pendingMutations.add(mutation);
+    }
+
+    /**
+     * Applies all queued mutations in submission order and publishes one snapshot for all of them.
+     * The mutations are applied to a {@link Tree#copy()} of the tree, which replaces it only once
+     * the whole batch has succeeded. If a mutation throws, it and the mutations applied before it
+     * in the batch are dropped, the mutations queued after it are kept, nothing is published and
+     * the exception is rethrown.
+     *
+     * @return the published snapshot
+     */
+    public CompactLocationHierarchy publish() {
+        writeLock.lock();
+        try {
+            Tree batchTree = tree.copy();
+            Consumer<Tree> mutation;
+            while ((mutation = pendingMutations.poll()) != null) {
+                mutation.accept(batchTree);
+            }
+            CompactLocationHierarchy snapshot = batchTree.getCompactHierarchy();
+            tree = batchTree;
+            current.set(snapshot);
+            return snapshot;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a batch of mutations and publishes it, together with anything queued before it.
+     *
+     * @param mutations the changes to make
+     * @return the published snapshot
+     */
+    public CompactLocationHierarchy update(Consumer<Tree> mutations) {
+        submit(mutations);
+        return publish();
+    }
+}
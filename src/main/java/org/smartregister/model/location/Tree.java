@@ -26,13 +26,32 @@ import org.hl7.fhir.r4.model.Type;
 import org.smartregister.utils.Utils;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
-import java.util.Optional;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicReference;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A location hierarchy held as linked {@link TreeNode}s, with a node index and an immutable {@link
+ * CompactLocationHierarchy} snapshot that answer lookups and structural queries.
+ *
+ * <p>The index and the snapshot only follow changes made through the methods of this class. Nodes
+ * added, removed or re-linked directly on a {@link TreeNode}, e.g. with {@link
+ * TreeNode#addChild(TreeNode)} or {@code getChildren().add(...)}, are not seen until the tree is
+ * told to re-read its nodes with {@code setListOfNodes(getListOfNodes())}.
+ */
 @DatatypeDef(name = "Tree")
 public class Tree extends Type implements ICompositeType {
 
@@ -51,6 +70,64 @@ public class Tree extends Type implements ICompositeType {
             summary = false)
     private List<ParentChildrenMap> parentChildren;
 
+    /**
+     * Lookup index of node id to the {@link TreeNode} attached in this tree. It is not part of the
+     * FHIR model and is rebuilt on demand whenever the root it was built for is replaced, e.g. after
+     * HAPI deserialization or a call to {@link #setListOfNodes(SingleTreeNode)}.
+     */
+    private transient Map<String, TreeNode> nodeIndex;
+
+    private transient SingleTreeNode indexedListOfNodes;
+
+    /**
+     * Lookup index of parent id to its {@link ParentChildrenMap} entry in {@link #parentChildren}.
+     * The list stays the serialized form; the index is rebuilt on demand if the list is replaced or
+     * modified from outside this class.
+     */
+    private transient Map<String, ParentChildrenMap> parentChildrenIndex;
+
+    private transient List<ParentChildrenMap> indexedParentChildren;
+
+    private transient int indexedParentChildrenSize;
+
+    /** Loads the locations of nodes added without one, see {@link #setLocationLoader}. */
+    private transient LocationLoader locationLoader;
+
+    /** Incremented on every structural change made through this class. */
+    private transient int modCount;
+
+    private transient CompactLocationHierarchy compactHierarchy;
+
+    private transient int compactHierarchyModCount;
+
+    private transient TreeNode indexedRootNode;
+
+    /**
+     * Marks the nodes and parentChildren entries this tree may change in place, see {@link
+     * TreeNode#getOwner()}. Others may be shared with another tree and are copied the first time
+     * this tree changes them.
+     */
+    private transient Object owner = new Object();
+
+    /**
+     * Whether this tree may also change nodes and entries without an owner in place, i.e. those
+     * built outside this class. Only true until the tree is first shared.
+     */
+    private transient boolean ownsUnmarked = true;
+
+    /**
+     * The number of copies made of this tree and of the trees it was copied from or to, all of
+     * which share the counter. {@link #copy()} only increments it, so copying never writes to this
+     * tree; a tree that finds the count moved on since {@link #generation} takes new ownership the
+     * next time it changes.
+     */
+    private transient AtomicLong copyCount = new AtomicLong();
+
+    private transient long generation;
+
+    /** Whether the lookup indexes and the parentChildren list may be shared with another tree. */
+    private transient boolean sharedIndexes;
+
     public SingleTreeNode getTree() {
         return listOfNodes;
     }
@@ -60,83 +137,120 @@ public class Tree extends Type implements ICompositeType {
         parentChildren = new ArrayList<>();
     }
 
-    private void addToParentChildRelation(String parentId, String id) {
+    /**
+     * Restores the ownership state, which field initializers set up for new trees but Java
+     * deserialization skips. A deserialized tree shares nothing, so it owns all of its nodes.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        owner = new Object();
+        ownsUnmarked = true;
+        copyCount = new AtomicLong();
+        generation = 0;
+        sharedIndexes = false;
+    }
+
+    private void addToParentChildRelation(
+            String parentId, StringType childId, @Nullable TreeNode parentNode) {
         if (parentChildren == null) {
-            parentChildren = new CopyOnWriteArrayList<>();
+            parentChildren = new ArrayList<>();
         }
 
-        List<StringType> kids = getChildrenIdsByParentId(parentId);
-
-        if (kids == null) {
-            kids = new ArrayList<>();
+        ParentChildrenMap parentChildrenMap = getParentChildrenIndex().get(parentId);
+        if (parentChildrenMap == null) {
+            parentChildrenMap = new ParentChildrenMap();
+            parentChildrenMap.setIdentifier(internId(parentId, parentNode));
+            parentChildrenMap.setOwner(owner);
+            parentChildren.add(parentChildrenMap);
+            parentChildrenIndex.put(parentId, parentChildrenMap);
+            indexedParentChildrenSize = parentChildren.size();
+        } else {
+            parentChildrenMap = getWritableEntry(parentChildrenMap);
         }
-        StringType idStringType = new StringType();
-        String idString = Utils.cleanIdString(id);
-        idStringType.setValue(idString);
-
-        StringType parentStringType = new StringType();
-        parentStringType.setValue(parentId);
-        kids.add(idStringType);
-        AtomicReference<Boolean> setParentChildMap = new AtomicReference<>(false);
 
-        List<StringType> finalKids = kids;
-        parentChildren.parallelStream().filter(parentChildrenMap -> parentChildrenMap != null
-                && parentChildrenMap.getIdentifier() != null
-                && StringUtils.isNotBlank(parentChildrenMap.getIdentifier().getValue())
-                && parentChildrenMap.getIdentifier().getValue().equals(parentId)).forEach(innerParentChildrenMap -> {
-
-            innerParentChildrenMap.setChildIdentifiers(finalKids);
-            setParentChildMap.set(true);
+        if (parentChildrenMap.getChildIdentifiers() == null) {
+            parentChildrenMap.setChildIdentifiers(new ArrayList<>());
+        }
+        parentChildrenMap.getChildIdentifiers().add(childId);
+    }
 
-        });
+    /**
+     * Returns the id element to store for a reference to another node. Every id in the tree is held
+     * by the {@code nodeId} element of its node, and references to an existing node share that
+     * element instead of allocating their own copy of it.
+     */
+    private static StringType internId(String id, @Nullable TreeNode node) {
+        if (node != null
+                && node.getNodeId() != null
+                && id != null
+                && id.equals(node.getNodeId().getValue())) {
+            return node.getNodeId();
+        }
+        StringType idStringType = new StringType();
+        idStringType.setValue(id);
+        return idStringType;
+    }
 
-        if (!setParentChildMap.get()) {
-            ParentChildrenMap parentChildrenMap = new ParentChildrenMap();
-            parentChildrenMap.setIdentifier(parentStringType);
-            parentChildrenMap.setChildIdentifiers(kids);
-            parentChildren.add(parentChildrenMap);
+    private Map<String, ParentChildrenMap> getParentChildrenIndex() {
+        if (parentChildrenIndex == null
+                || indexedParentChildren != parentChildren
+                || parentChildren == null
+                || indexedParentChildrenSize != parentChildren.size()) {
+            parentChildrenIndex = buildParentChildrenIndex(parentChildren);
+            indexedParentChildren = parentChildren;
+            indexedParentChildrenSize = parentChildren != null ? parentChildren.size() : 0;
         }
+        return parentChildrenIndex;
     }
 
-    private List<StringType> getChildrenIdsByParentId(String parentId) {
-        Optional<List<StringType>> kidsOptional = parentChildren.parallelStream().filter(parentChildrenMap -> parentChildrenMap != null
-                && parentChildrenMap.getIdentifier() != null
-                && StringUtils.isNotBlank(parentChildrenMap.getIdentifier().getValue())
-                && parentChildrenMap
-                .getIdentifier()
-                .getValue()
-                .equals(parentId)).map(ParentChildrenMap::getChildIdentifiers).filter(Objects::nonNull).findFirst();
-        return kidsOptional.orElse(null);
+    private static Map<String, ParentChildrenMap> buildParentChildrenIndex(
+            List<ParentChildrenMap> parentChildren) {
+        Map<String, ParentChildrenMap> index = new HashMap<>();
+        if (parentChildren == null) {
+            return index;
+        }
+        for (ParentChildrenMap parentChildrenMap : parentChildren) {
+            if (parentChildrenMap != null
+                    && parentChildrenMap.getIdentifier() != null
+                    && StringUtils.isNotBlank(parentChildrenMap.getIdentifier().getValue())) {
+                index.putIfAbsent(parentChildrenMap.getIdentifier().getValue(), parentChildrenMap);
+            }
+        }
+        return index;
     }
 
     public void addNode(String id, String label, Location node, String parentId) {
         if (listOfNodes == null) {
             listOfNodes = new SingleTreeNode();
         }
+        prepareChange();
 
         // We only add node if it doesn't already exist, else log as an exception
         TreeNode treenode = getNode(id);
 
         if (treenode == null) {
-            TreeNode treeNode = makeNode(id, null, label, node, parentId);
+            StringType nodeId = new StringType();
+            String idString = Utils.cleanIdString(id);
+            nodeId.setValue(idString);
 
             if (parentId != null) {
-
-                addToParentChildRelation(parentId, id);
                 TreeNode parentNode = getNode(parentId);
+                TreeNode treeNode = makeNode(nodeId, label, node, parentId, parentNode);
+                addToParentChildRelation(parentId, nodeId, parentNode);
 
                 // if parent exists add to it otherwise add as root for now
                 if (parentNode != null) {
-                    parentNode.addChild(treeNode);
+                    getWritableNode(parentNode).attachChild(treeNode);
+                    nodeIndex.put(idString, treeNode);
+                    modCount++;
                 } else {
                     // if no parent exists add it as root node
-                    SingleTreeNode singleTreeNode = getSingleTreeNode(id, treeNode);
-                    listOfNodes = singleTreeNode;
+                    setRootNode(getSingleTreeNode(nodeId, treeNode));
                 }
             } else {
                 // if no parent add it as root node
-                SingleTreeNode singleTreeNode = getSingleTreeNode(id, treeNode);
-                listOfNodes = singleTreeNode;
+                TreeNode treeNode = makeNode(nodeId, label, node, null, null);
+                setRootNode(getSingleTreeNode(nodeId, treeNode));
             }
 
         } else {
@@ -144,52 +258,620 @@ public class Tree extends Type implements ICompositeType {
         }
     }
 
-    private static SingleTreeNode getSingleTreeNode(String id, TreeNode treeNode) {
-        String idString = id;
-        idString = Utils.cleanIdString(idString);
+    /**
+     * Removes a node together with all of its descendants, updating the parent's children, the
+     * {@link #getParentChildren()} entries and the lookup indexes. Removing the root empties the tree.
+     *
+     * <p>Takes O(subtree) time for the nodes and the indexes, plus one pass over the {@link
+     * #getParentChildren()} list, which is kept in order, to drop the entries of the removed nodes;
+     * see {@link #copy()} for the first change after a copy.
+     *
+     * @param id the id of the node to remove
+     */
+    public void removeNode(String id) {
+        TreeNode treeNode = getNode(id);
+        if (treeNode == null) {
+            throw new IllegalArgumentException("Node with ID " + id + " does not exist in tree");
+        }
+
+        if (treeNode == listOfNodes.getTreeNode()) {
+            listOfNodes = new SingleTreeNode();
+            parentChildren = new ArrayList<>();
+            nodeIndex = null;
+            parentChildrenIndex = null;
+            owner = new Object();
+            generation = copyCount.get();
+            sharedIndexes = false;
+            getNodeIndex();
+            return;
+        }
+
+        prepareChange();
+        detachFromParent(treeNode);
+
+        Map<String, ParentChildrenMap> parentChildrenIndex = getParentChildrenIndex();
+        Set<ParentChildrenMap> removedEntries = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<TreeNode> stack = new ArrayDeque<>();
+        stack.push(treeNode);
+        while (!stack.isEmpty()) {
+            TreeNode current = stack.pop();
+            String currentId = current.getNodeId() != null ? current.getNodeId().getValue() : null;
+            if (currentId != null) {
+                nodeIndex.remove(currentId, current);
+                ParentChildrenMap parentChildrenMap = parentChildrenIndex.remove(currentId);
+                if (parentChildrenMap != null) {
+                    removedEntries.add(parentChildrenMap);
+                }
+            }
+            for (ChildTreeNode child : current.getChildNodes()) {
+                if (child != null && child.peekTreeNode() != null) {
+                    stack.push(child.peekTreeNode());
+                }
+            }
+        }
+        if (!removedEntries.isEmpty()) {
+            parentChildren.removeIf(removedEntries::contains);
+            indexedParentChildrenSize = parentChildren.size();
+        }
+        modCount++;
+    }
+
+    /**
+     * Moves a node, with all of its descendants, under another parent. The node becomes the last
+     * child of the new parent. The {@link Location} payload of the node is left as is.
+     *
+     * <p>Takes O(depth) time, plus a pass over the {@link #getParentChildren()} list when the old
+     * parent is left without children, or when an entry shared with a copy has to be copied; see
+     * {@link #copy()} for the first change after a copy.
+     *
+     * @param id the id of the node to move
+     * @param newParentId the id of the node to move it under
+     */
+    public void moveNode(String id, String newParentId) {
+        TreeNode treeNode = getNode(id);
+        if (treeNode == null) {
+            throw new IllegalArgumentException("Node with ID " + id + " does not exist in tree");
+        }
+        TreeNode newParentNode = getNode(newParentId);
+        if (newParentNode == null) {
+            throw new IllegalArgumentException(
+                    "Node with ID " + newParentId + " does not exist in tree");
+        }
+        if (treeNode == listOfNodes.getTreeNode()) {
+            throw new IllegalArgumentException("Cannot move the root node " + id);
+        }
+        for (TreeNode ancestor = newParentNode; ancestor != null; ancestor = getParentNode(ancestor)) {
+            if (ancestor == treeNode) {
+                throw new IllegalArgumentException(
+                        "Cannot move node " + id + " under its own descendant " + newParentId);
+            }
+        }
+        if (getParentNode(treeNode) == newParentNode) {
+            return;
+        }
+
+        prepareChange();
+        treeNode = getWritableNode(treeNode);
+        detachFromParent(treeNode);
+        // Copying the node may have copied the new parent too, so it is looked up again
+        newParentNode = getWritableNode(getNode(newParentId));
+
+        String newParentIdString = newParentNode.getNodeId().getValue();
+        treeNode.setParent(newParentNode.getNodeId());
+
+        newParentNode.attachChild(treeNode);
+        addToParentChildRelation(newParentIdString, treeNode.getNodeId(), newParentNode);
+        modCount++;
+    }
+
+    /**
+     * Replaces the label of a node and, if one is given, its {@link Location} payload.
+     *
+     * @param id the id of the node to update
+     * @param label the new label
+     * @param node the new location, or null to keep the current one
+     */
+    public void updateNode(String id, String label, @Nullable Location node) {
+        TreeNode treeNode = getNode(id);
+        if (treeNode == null) {
+            throw new IllegalArgumentException("Node with ID " + id + " does not exist in tree");
+        }
+        prepareChange();
+        treeNode = getWritableNode(treeNode);
+        StringType labelString = new StringType();
+        labelString.setValue(label);
+        treeNode.setLabel(labelString);
+        if (node != null) {
+            treeNode.setNode(node);
+        }
+        modCount++;
+    }
+
+    @Nullable
+    private TreeNode getParentNode(TreeNode treeNode) {
+        if (treeNode == listOfNodes.getTreeNode()
+                || treeNode.getParent() == null
+                || treeNode.getParent().getValue() == null) {
+            return null;
+        }
+        return getNode(treeNode.getParent().getValue());
+    }
+
+    private void detachFromParent(TreeNode treeNode) {
+        TreeNode parentNode = getParentNode(treeNode);
+        if (parentNode != null) {
+            getWritableNode(parentNode)
+                    .getChildren()
+                    .removeIf(child -> child != null && child.peekTreeNode() == treeNode);
+        }
+        if (treeNode.getParent() == null) {
+            return;
+        }
+
+        String parentId = treeNode.getParent().getValue();
+        ParentChildrenMap parentChildrenMap = getParentChildrenIndex().get(parentId);
+        if (parentChildrenMap == null || parentChildrenMap.getChildIdentifiers() == null) {
+            return;
+        }
+        String idString = treeNode.getNodeId().getValue();
+        parentChildrenMap = getWritableEntry(parentChildrenMap);
+        parentChildrenMap
+                .getChildIdentifiers()
+                .removeIf(childId -> childId != null && idString.equals(childId.getValue()));
+        if (parentChildrenMap.getChildIdentifiers().isEmpty()) {
+            parentChildren.remove(parentChildrenMap);
+            parentChildrenIndex.remove(parentId);
+            indexedParentChildrenSize = parentChildren.size();
+        }
+    }
+
+    private void setRootNode(SingleTreeNode singleTreeNode) {
+        listOfNodes = singleTreeNode;
+        nodeIndex = null;
+        getNodeIndex();
+    }
+
+    /**
+     * Installs nodes built outside this class, see {@link ParallelHierarchyBuilder}, together with
+     * the node index built for them. The parentChildren index is built on first use.
+     */
+    void setBuiltNodes(
+            SingleTreeNode listOfNodes,
+            List<ParentChildrenMap> parentChildren,
+            Map<String, TreeNode> nodeIndex) {
+        this.listOfNodes = listOfNodes;
+        this.parentChildren = parentChildren;
+        this.nodeIndex = nodeIndex;
+        indexedListOfNodes = listOfNodes;
+        indexedRootNode = listOfNodes.getTreeNode();
+        parentChildrenIndex = null;
+        modCount++;
+    }
+
+    /**
+     * Called before every change. If the tree has been shared since it last changed, it gives up
+     * ownership of its nodes and entries; it then gives itself its own lookup indexes and
+     * parentChildren list if they may be shared.
+     */
+    private void prepareChange() {
+        long copies = copyCount.get();
+        if (generation != copies) {
+            owner = new Object();
+            ownsUnmarked = false;
+            generation = copies;
+            sharedIndexes = true;
+        }
+        if (!sharedIndexes) {
+            return;
+        }
+        nodeIndex = new HashMap<>(getNodeIndex());
+        parentChildrenIndex = new HashMap<>(getParentChildrenIndex());
+        if (parentChildren != null) {
+            parentChildren = new ArrayList<>(parentChildren);
+        }
+        indexedParentChildren = parentChildren;
+        sharedIndexes = false;
+    }
+
+    private boolean isOwned(TreeNode treeNode) {
+        Object nodeOwner = treeNode.getOwner();
+        return nodeOwner == owner || (nodeOwner == null && ownsUnmarked);
+    }
+
+    private boolean isOwned(ParentChildrenMap parentChildrenMap) {
+        Object entryOwner = parentChildrenMap.getOwner();
+        return entryOwner == owner || (entryOwner == null && ownsUnmarked);
+    }
+
+    /**
+     * Returns the node to change in place of the given one. A node shared with a copy of this tree
+     * is copied first, together with its shared ancestors, which are re-pointed at the copies.
+     * Everything else stays shared, so a change costs O(depth) new nodes.
+     */
+    private TreeNode getWritableNode(TreeNode treeNode) {
+        if (isOwned(treeNode)) {
+            return treeNode;
+        }
+        List<TreeNode> path = new ArrayList<>();
+        TreeNode parentNode = treeNode;
+        while (parentNode != null && !isOwned(parentNode)) {
+            path.add(parentNode);
+            parentNode = getParentNode(parentNode);
+        }
+        TreeNode rootNode = listOfNodes.getTreeNode();
+        for (int i = path.size() - 1; i >= 0; i--) {
+            TreeNode node = path.get(i);
+            TreeNode copy = node.shallowCopy();
+            copy.setOwner(owner);
+            StringType indexId = node.getNodeId();
+            if (node == rootNode) {
+                listOfNodes = getSingleTreeNode(listOfNodes.getTreeNodeId(), copy);
+                indexedListOfNodes = listOfNodes;
+                indexedRootNode = copy;
+                indexId = listOfNodes.getTreeNodeId();
+            } else if (parentNode != null) {
+                parentNode.replaceChild(node, copy);
+            }
+            if (indexId != null && indexId.getValue() != null) {
+                nodeIndex.replace(indexId.getValue(), node, copy);
+            }
+            parentNode = copy;
+        }
+        return parentNode;
+    }
+
+    /**
+     * Returns the entry to change in place of the given one, see {@link #getWritableNode}. Copying
+     * an entry looks it up in the {@link #parentChildren} list, in O(number of entries) time.
+     */
+    private ParentChildrenMap getWritableEntry(ParentChildrenMap parentChildrenMap) {
+        if (isOwned(parentChildrenMap)) {
+            return parentChildrenMap;
+        }
+        ParentChildrenMap copy = parentChildrenMap.shallowCopy();
+        copy.setOwner(owner);
+        for (int i = 0; i < parentChildren.size(); i++) {
+            if (parentChildren.get(i) == parentChildrenMap) {
+                parentChildren.set(i, copy);
+                break;
+            }
+        }
+        parentChildrenIndex.replace(copy.getIdentifier().getValue(), parentChildrenMap, copy);
+        return copy;
+    }
+
+    /**
+     * Enables lazy location payloads. Nodes added with a {@code null} location, now or before this
+     * call, keep only their id, label and parent, and load their {@link Location} through the
+     * loader the first time {@link TreeNode#getNode()} is called. This keeps building and holding
+     * large hierarchies cheap when few payloads are ever used.
+     *
+     * <p>Locations that have not been loaded are not part of the FHIR JSON of the tree.
+     *
+     * @param locationLoader the loader, or null to turn lazy loading off for nodes added later
+     */
+    public void setLocationLoader(@Nullable LocationLoader locationLoader) {
+        this.locationLoader = locationLoader;
+        prepareChange();
+        for (String id : new ArrayList<>(getNodeIndex().keySet())) {
+            // Looked up again, as copying a node copies the ones above it
+            TreeNode treeNode = nodeIndex.get(id);
+            if (treeNode.peekNode() == null) {
+                getWritableNode(treeNode).setLocationLoader(locationLoader);
+            }
+        }
+        // Snapshots load through the loader they were taken with
+        modCount++;
+    }
+
+    @Nullable
+    public LocationLoader getLocationLoader() {
+        return locationLoader;
+    }
+
+    /**
+     * Returns a tree rooted at an existing node of this tree, without copying it. The returned tree
+     * shares the {@link TreeNode} and {@link ParentChildrenMap} instances of the subtree with this
+     * tree, so it costs O(subtree) work and no new nodes. As with {@link #copy()}, either tree
+     * copies a shared node the first time it changes it through the methods of this class, so
+     * changes to one tree are not visible in the other.
+     *
+     * @param id the id of the node to root the new tree at
+     * @return the subtree, or null if no node with the id exists
+     */
+    @Nullable
+    public Tree getSubtree(String id) {
+        TreeNode subtreeRoot = getNode(id);
+        if (subtreeRoot == null) {
+            return null;
+        }
+
+        Tree subtree = new Tree();
         SingleTreeNode singleTreeNode = new SingleTreeNode();
         StringType treeNodeId = new StringType();
-        treeNodeId.setValue(idString);
+        treeNodeId.setValue(Utils.cleanIdString(id));
         singleTreeNode.setTreeNodeId(treeNodeId);
+        singleTreeNode.setTreeNode(subtreeRoot);
+        subtree.listOfNodes = singleTreeNode;
+
+        Map<String, ParentChildrenMap> parentChildrenIndex = getParentChildrenIndex();
+        Deque<TreeNode> stack = new ArrayDeque<>();
+        stack.push(subtreeRoot);
+        while (!stack.isEmpty()) {
+            TreeNode current = stack.pop();
+            List<ChildTreeNode> children = current.getChildNodes();
+            if (children.isEmpty()) {
+                continue;
+            }
+            ParentChildrenMap parentChildrenMap =
+                    current == subtreeRoot
+                            ? parentChildrenIndex.get(treeNodeId.getValue())
+                            : parentChildrenIndex.get(current.getNodeId().getValue());
+            if (parentChildrenMap != null) {
+                subtree.parentChildren.add(parentChildrenMap);
+            }
+            for (int i = children.size() - 1; i >= 0; i--) {
+                ChildTreeNode child = children.get(i);
+                if (child != null && child.peekTreeNode() != null) {
+                    stack.push(child.peekTreeNode());
+                }
+            }
+        }
+        subtree.copyCount = copyCount;
+        subtree.generation = copyCount.incrementAndGet();
+        subtree.ownsUnmarked = false;
+        return subtree;
+    }
+
+    /**
+     * Returns an immutable snapshot of this tree. The snapshot is cached and only taken again after
+     * the tree has changed, so repeated queries between changes share one snapshot.
+     *
+     * @return the snapshot of the current tree
+     */
+    public CompactLocationHierarchy getCompactHierarchy() {
+        // Syncing the node index picks up a root replaced from outside this class
+        getNodeIndex();
+        if (compactHierarchy == null || compactHierarchyModCount != modCount) {
+            compactHierarchy = CompactLocationHierarchy.from(this);
+            compactHierarchyModCount = modCount;
+        }
+        return compactHierarchy;
+    }
+
+    /**
+     * Checks whether a node lies inside another one. A node is not its own descendant.
+     *
+     * <p>While the cached snapshot is current this uses its Euler tour intervals in O(1); after a
+     * change it walks up from the node in O(depth) rather than taking a new snapshot, so checks
+     * between incremental changes stay cheap.
+     *
+     * @param ancestorId the id of the enclosing node
+     * @param id the id of the node to check
+     * @return whether {@code id} lies strictly below {@code ancestorId}
+     */
+    public boolean isDescendant(String ancestorId, String id) {
+        // Syncing the node index picks up a root replaced from outside this class
+        Map<String, TreeNode> index = getNodeIndex();
+        if (compactHierarchy != null && compactHierarchyModCount == modCount) {
+            return compactHierarchy.isDescendant(ancestorId, id);
+        }
+        TreeNode ancestor = getNode(ancestorId);
+        TreeNode treeNode = getNode(id);
+        if (ancestor == null || treeNode == null) {
+            return false;
+        }
+        // Bounded by the number of nodes in case the parent ids form a cycle
+        int remainingSteps = index.size();
+        for (TreeNode parentNode = getParentNode(treeNode);
+                parentNode != null && remainingSteps > 0;
+                parentNode = getParentNode(parentNode), remainingSteps--) {
+            if (parentNode == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param id the id of the subtree root
+     * @return ids of the subtree in pre-order, starting with {@code id}; empty if it is not found
+     */
+    public List<String> getSubtreeIds(String id) {
+        return getCompactHierarchy().getSubtreeIds(id);
+    }
+
+    /**
+     * @param id the id of the node
+     * @return the depth of the node, {@code 0} for the root, or {@link
+     *     CompactLocationHierarchy#NO_NODE} if it is not found
+     */
+    public int getDepth(String id) {
+        return getCompactHierarchy().getDepth(id);
+    }
+
+    /**
+     * @param depth the depth of the nodes, {@code 0} for the root
+     * @return ids of all nodes at that depth in pre-order
+     */
+    public List<String> getLevelIds(int depth) {
+        return getCompactHierarchy().getLevelIds(depth);
+    }
+
+    /**
+     * @see CompactLocationHierarchy#getLevelIds(String, int)
+     */
+    public List<String> getLevelIds(String id, int depth) {
+        return getCompactHierarchy().getLevelIds(id, depth);
+    }
+
+    /**
+     * @see CompactLocationHierarchy#getSubtreeIds(String, int)
+     */
+    public List<String> getSubtreeIds(String id, int maxDepth) {
+        return getCompactHierarchy().getSubtreeIds(id, maxDepth);
+    }
+
+    /**
+     * Searches the labels of the nodes by prefix, see {@link LocationLabelIndex}. The index is
+     * built on the first search after a change to the tree.
+     *
+     * @param prefix the text typed so far, matched case-insensitively against each word of a label
+     * @param scopeId the id of the subtree to search, or null to search the whole tree
+     * @param limit the maximum number of matches to return
+     * @return ids of the first matches
+     */
+    public List<String> searchLabels(String prefix, @Nullable String scopeId, int limit) {
+        return getCompactHierarchy().getLabelIndex().search(prefix, scopeId, limit);
+    }
+
+    /**
+     * Finds the nodes whose location lies nearest to a point, see {@link LocationSpatialIndex}. The
+     * index is built on the first spatial query after a change to the tree.
+     *
+     * @param latitude the latitude of the point in degrees
+     * @param longitude the longitude of the point in degrees
+     * @param count the maximum number of nodes to return
+     * @param scopeId the id of the subtree to search, or null to search the whole tree
+     * @return ids of the nearest nodes, the nearest first
+     */
+    public List<String> findNearestLocations(
+            double latitude, double longitude, int count, @Nullable String scopeId) {
+        return getCompactHierarchy()
+                .getSpatialIndex()
+                .findNearest(latitude, longitude, count, scopeId);
+    }
+
+    /**
+     * @see LocationSpatialIndex#findWithin(double, double, double, double, String)
+     */
+    public List<String> findLocationsWithin(
+            double minLatitude,
+            double minLongitude,
+            double maxLatitude,
+            double maxLongitude,
+            @Nullable String scopeId) {
+        return getCompactHierarchy()
+                .getSpatialIndex()
+                .findWithin(minLatitude, minLongitude, maxLatitude, maxLongitude, scopeId);
+    }
+
+    /**
+     * @return iterator over the nodes in depth-first pre-order, each node before its children
+     */
+    public Iterator<TreeNode> preOrderIterator() {
+        return new TreeTraversal.PreOrderIterator(getRootNode());
+    }
+
+    /**
+     * @return iterator over the nodes in depth-first post-order, each node after its children
+     */
+    public Iterator<TreeNode> postOrderIterator() {
+        return new TreeTraversal.PostOrderIterator(getRootNode());
+    }
+
+    /**
+     * @return iterator over the nodes level by level, starting at the root
+     */
+    public Iterator<TreeNode> breadthFirstIterator() {
+        return new TreeTraversal.BreadthFirstIterator(getRootNode());
+    }
+
+    /**
+     * Returns a spliterator over the nodes in pre-order that splits by subtree, so that parallel
+     * streams hand whole subtrees to each worker. The tree must not change while it is in use.
+     */
+    public Spliterator<TreeNode> spliterator() {
+        return new TreeTraversal.SubtreeSpliterator(getRootNode(), getNodeIndex().size());
+    }
+
+    /**
+     * @return stream of the nodes in pre-order, see {@link #spliterator()}
+     */
+    public Stream<TreeNode> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    @Nullable
+    private TreeNode getRootNode() {
+        return listOfNodes != null ? listOfNodes.getTreeNode() : null;
+    }
+
+    private static SingleTreeNode getSingleTreeNode(StringType nodeId, TreeNode treeNode) {
+        SingleTreeNode singleTreeNode = new SingleTreeNode();
+        singleTreeNode.setTreeNodeId(nodeId);
         singleTreeNode.setTreeNode(treeNode);
         return singleTreeNode;
     }
 
-    private TreeNode makeNode(String currentNodeId, TreeNode treenode, String label, Location node, String parentId) {
-        if (treenode == null) {
-            treenode = new TreeNode();
-            StringType nodeId = new StringType();
-            String idString = Utils.cleanIdString(currentNodeId);
-            nodeId.setValue(idString);
-            treenode.setNodeId(nodeId);
-            StringType labelString = new StringType();
-            labelString.setValue(label);
-            treenode.setLabel(labelString);
-            treenode.setNode(node);
-            StringType parentIdString = new StringType();
-            String parentIdStringVar = Utils.cleanIdString(parentId);
-            parentIdString.setValue(parentIdStringVar);
-            treenode.setParent(parentIdString);
-        }
+    private TreeNode makeNode(
+            StringType nodeId,
+            String label,
+            Location node,
+            String parentId,
+            @Nullable TreeNode parentNode) {
+        TreeNode treenode = new TreeNode();
+        treenode.setNodeId(nodeId);
+        StringType labelString = new StringType();
+        labelString.setValue(label);
+        treenode.setLabel(labelString);
+        treenode.setNode(node);
+        treenode.setParent(internId(Utils.cleanIdString(parentId), parentNode));
+        treenode.setLocationLoader(locationLoader);
+        treenode.setOwner(owner);
         return treenode;
     }
 
     @Nullable
     public TreeNode getNode(String id) {
-        // Check if id is any root node
         String idString = Utils.cleanIdString(id);
+        return idString == null ? null : getNodeIndex().get(idString);
+    }
+
+    private Map<String, TreeNode> getNodeIndex() {
+        TreeNode rootNode = listOfNodes != null ? listOfNodes.getTreeNode() : null;
+        if (nodeIndex == null || indexedListOfNodes != listOfNodes || indexedRootNode != rootNode) {
+            nodeIndex = buildNodeIndex(listOfNodes);
+            indexedListOfNodes = listOfNodes;
+            indexedRootNode = rootNode;
+            modCount++;
+        }
+        return nodeIndex;
+    }
+
+    private static Map<String, TreeNode> buildNodeIndex(SingleTreeNode listOfNodes) {
+        Map<String, TreeNode> index = new HashMap<>();
+        if (listOfNodes == null || listOfNodes.getTreeNode() == null) {
+            return index;
+        }
 
+        // The root is matched by the id it is registered under, same as the previous lookup
+        TreeNode rootNode = listOfNodes.getTreeNode();
         if (listOfNodes.getTreeNodeId() != null
-                && StringUtils.isNotBlank(listOfNodes.getTreeNodeId().getValue())
-                && listOfNodes.getTreeNodeId().getValue().equals(idString)) {
-            return listOfNodes.getTreeNode();
+                && StringUtils.isNotBlank(listOfNodes.getTreeNodeId().getValue())) {
+            index.put(listOfNodes.getTreeNodeId().getValue(), rootNode);
+        }
 
-        } else {
-            if (listOfNodes != null && listOfNodes.getTreeNode() != null) {
-                return listOfNodes.getTreeNode().findChild(idString);
+        Deque<TreeNode> stack = new ArrayDeque<>();
+        stack.push(rootNode);
+        while (!stack.isEmpty()) {
+            TreeNode current = stack.pop();
+            List<ChildTreeNode> children = current.getChildNodes();
+            // Push in reverse so that the first match in depth-first order wins, as before
+            for (int i = children.size() - 1; i >= 0; i--) {
+                ChildTreeNode child = children.get(i);
+                if (child == null || child.peekTreeNode() == null) {
+                    continue;
+                }
+                stack.push(child.peekTreeNode());
+            }
+            if (current != rootNode
+                    && current.getNodeId() != null
+                    && StringUtils.isNotBlank(current.getNodeId().getValue())) {
+                index.putIfAbsent(current.getNodeId().getValue(), current);
             }
         }
-        return null;
+        return index;
     }
 
     public SingleTreeNode getListOfNodes() {
@@ -198,6 +880,7 @@ public class Tree extends Type implements ICompositeType {
 
     public void setListOfNodes(SingleTreeNode listOfNodes) {
         this.listOfNodes = listOfNodes;
+        this.nodeIndex = null;
     }
 
     public List<ParentChildrenMap> getParentChildren() {
@@ -206,12 +889,54 @@ public class Tree extends Type implements ICompositeType {
 
     public void setParentChildren(List<ParentChildrenMap> parentChildren) {
         this.parentChildren = parentChildren;
+        this.parentChildrenIndex = null;
     }
 
+    /**
+     * Returns a copy of this tree that shares its nodes, lookup indexes and snapshot with this tree,
+     * so copying takes O(1) time whatever the size of the tree. Both trees copy a node, and the
+     * nodes above it, the first time they change it through the methods of this class. Nodes changed
+     * directly, e.g. through {@link TreeNode#setLabel(StringType)}, and the {@link Location} payloads
+     * stay shared.
+     *
+     * <p>The lookup indexes and the {@link #getParentChildren()} list are shared until either tree
+     * first changes, which copies them in O(n) time. Changes after that cost what they cost on a
+     * tree that was never copied, plus O(depth) for the nodes they copy.
+     *
+     * <p>Copying does not write to this tree, so a tree that is not being changed may be copied by
+     * several threads at once.
+     */
     @Override
-    public Type copy() {
+    public Tree copy() {
         Tree tree = new Tree();
         copyValues(tree);
+        tree.listOfNodes = listOfNodes;
+        tree.parentChildren = parentChildren;
+        tree.locationLoader = locationLoader;
+        // Indexes are only handed over if they are up to date; the copy builds its own otherwise
+        if (nodeIndex != null
+                && indexedListOfNodes == listOfNodes
+                && indexedRootNode == getRootNode()) {
+            tree.nodeIndex = nodeIndex;
+            tree.indexedListOfNodes = indexedListOfNodes;
+            tree.indexedRootNode = indexedRootNode;
+            if (compactHierarchy != null && compactHierarchyModCount == modCount) {
+                tree.compactHierarchy = compactHierarchy;
+                tree.compactHierarchyModCount = tree.modCount;
+            }
+        }
+        if (parentChildrenIndex != null
+                && parentChildren != null
+                && indexedParentChildren == parentChildren
+                && indexedParentChildrenSize == parentChildren.size()) {
+            tree.parentChildrenIndex = parentChildrenIndex;
+            tree.indexedParentChildren = indexedParentChildren;
+            tree.indexedParentChildrenSize = indexedParentChildrenSize;
+        }
+        tree.copyCount = copyCount;
+        tree.generation = copyCount.incrementAndGet();
+        tree.ownsUnmarked = false;
+        tree.sharedIndexes = true;
         return tree;
     }
 
@@ -0,0 +1,617 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.StringType;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of a {@link Tree}, for sending hierarchies to devices over slow links.
+ *
+ * <p>The JSON form repeats every field name and nests {@code children} and {@code treeNode} objects
+ * for every node, and {@code parentChildren} repeats the structure once more. This format instead
+ * writes:
+ *
+ * <ol>
+ *   <li>a header, {@code LHT} and a version byte;
+ *   <li>a string table holding every distinct id, label and name once;
+ *   <li>the nodes in depth-first pre-order, each as string table references and a child count,
+ *       from which the nesting follows;
+ *   <li>the {@code parentChildren} entries, each flagged as equal to the children of its node
+ *       where possible, so that they take two bytes instead of a list of ids.
+ * </ol>
+ *
+ * All integers are unsigned LEB128 varints; string references are table index plus one, zero
+ * standing for a null value. A record's flags say which of its optional elements are present, so
+ * that an absent label, parent or name decodes as absent rather than as an element without a
+ * value. {@link Location} payloads are embedded as HAPI JSON when the codec is created
+ * with a {@link FhirContext}; payloads that were not loaded are not written.
+ *
+ * <p>Decoding restores the same nodes, child order, values and {@code parentChildren} list that
+ * were encoded. Element ids and extensions on the hierarchy types are not part of the format, and
+ * encoding a tree that carries them fails.
+ *
+ * <p>Instances hold no state besides the context and may be shared between threads.
+ */
+public class TreeBinaryCodec {
+
+    private static final byte[] MAGIC = {'L', 'H', 'T'};
+
+    private static final int VERSION = 2;
+
+    private static final int FLAG_PAYLOAD = 1;
+
+    private static final int FLAG_NAME = 1 << 1;
+
+    /** The ChildTreeNode holding the node has a childId other than the node id. */
+    private static final int FLAG_CHILD_ID = 1 << 2;
+
+    /** The record is a ChildTreeNode without a TreeNode; only its childId follows. */
+    private static final int FLAG_NO_TREE_NODE = 1 << 3;
+
+    private static final int FLAG_LABEL = 1 << 4;
+
+    private static final int FLAG_PARENT = 1 << 5;
+
+    private static final int KNOWN_FLAGS =
+            FLAG_PAYLOAD | FLAG_NAME | FLAG_CHILD_ID | FLAG_NO_TREE_NODE | FLAG_LABEL | FLAG_PARENT;
+
+    /**
+     * The most the decoder allocates up front for a count or length read from the input. Larger
+     * ones grow as the input turns out to hold them, so corrupt input cannot force large
+     * allocations.
+     */
+    private static final int MAX_PREALLOCATION = 1 << 16;
+
+    @Nullable private final FhirContext fhirContext;
+
+    /** Creates a codec that leaves out Location payloads. */
+    public TreeBinaryCodec() {
+        this(null);
+    }
+
+    /**
+     * @param fhirContext the context to encode and decode Location payloads with, or null to leave
+     *     them out
+     */
+    public TreeBinaryCodec(@Nullable FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+    }
+
+    public byte[] encode(Tree tree) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            encode(tree, outputStream);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Writes the tree. The stream is flushed but not closed.
+     *
+     * @throws IllegalArgumentException if the tree carries element ids or extensions
+     */
+    public void encode(Tree tree, OutputStream outputStream) throws IOException {
+        if (!LocationHierarchyJsonWriter.isPlainStructure(tree)) {
+            throw new IllegalArgumentException(
+                    "Trees with element ids or extensions have no binary form");
+        }
+        Encoder encoder = new Encoder(new BufferedOutputStream(outputStream));
+        encoder.encode(tree);
+        encoder.out.flush();
+    }
+
+    public Tree decode(byte[] bytes) throws IOException {
+        return decode(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Reads a tree written by {@link #encode(Tree, OutputStream)}. The stream is not closed.
+     *
+     * @throws IOException if the stream does not hold a tree in this format, or ends before the
+     *     tree does
+     */
+    public Tree decode(InputStream inputStream) throws IOException {
+        return new Decoder(new BufferedInputStream(inputStream)).decode();
+    }
+
+    private final class Encoder {
+
+        private final OutputStream out;
+
+        private final Map<String, Integer> stringIndexes = new HashMap<>();
+
+        private final List<String> strings = new ArrayList<>();
+
+        private Encoder(OutputStream out) {
+            this.out = out;
+        }
+
+        void encode(Tree tree) throws IOException {
+            SingleTreeNode listOfNodes = tree.getListOfNodes();
+            TreeNode rootNode = listOfNodes != null ? listOfNodes.getTreeNode() : null;
+            List<ParentChildrenMap> parentChildren = new ArrayList<>();
+            if (tree.getParentChildren() != null) {
+                for (ParentChildrenMap parentChildrenMap : tree.getParentChildren()) {
+                    if (parentChildrenMap != null) {
+                        parentChildren.add(parentChildrenMap);
+                    }
+                }
+            }
+            StringType treeNodeId = listOfNodes != null ? listOfNodes.getTreeNodeId() : null;
+
+            // Collect the strings first, so the table can precede the nodes
+            List<ChildTreeNode> records = collectRecords(rootNode);
+            addString(treeNodeId);
+            for (ChildTreeNode record : records) {
+                TreeNode node = record.peekTreeNode();
+                if (node != null) {
+                    addString(node.getNodeId());
+                    addString(node.getLabel());
+                    addString(node.getParent());
+                    addString(node.peekName());
+                }
+                addString(record.getChildId());
+            }
+            for (ParentChildrenMap parentChildrenMap : parentChildren) {
+                addString(parentChildrenMap.getIdentifier());
+                for (StringType childIdentifier : getChildIdentifiers(parentChildrenMap)) {
+                    addString(childIdentifier);
+                }
+            }
+
+            out.write(MAGIC);
+            out.write(VERSION);
+            writeVarint(strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                writeVarint(bytes.length);
+                out.write(bytes);
+            }
+
+            writeString(treeNodeId);
+            writeVarint(records.size());
+            IParser parser = fhirContext != null ? fhirContext.newJsonParser() : null;
+            Map<String, TreeNode> nodesById = new HashMap<>();
+            for (ChildTreeNode record : records) {
+                writeRecord(record, record == records.get(0), parser);
+                TreeNode node = record.peekTreeNode();
+                if (node != null && node.getNodeId() != null) {
+                    nodesById.putIfAbsent(node.getNodeId().getValue(), node);
+                }
+            }
+
+            writeVarint(parentChildren.size());
+            for (ParentChildrenMap parentChildrenMap : parentChildren) {
+                writeString(parentChildrenMap.getIdentifier());
+                List<StringType> childIdentifiers = getChildIdentifiers(parentChildrenMap);
+                StringType identifier = parentChildrenMap.getIdentifier();
+                TreeNode node = identifier != null ? nodesById.get(identifier.getValue()) : null;
+                boolean derived = node != null && isChildIdList(node, childIdentifiers);
+                writeVarint(childIdentifiers.size() << 1 | (derived ? 1 : 0));
+                if (!derived) {
+                    for (StringType childIdentifier : childIdentifiers) {
+                        writeString(childIdentifier);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the root, wrapped in a ChildTreeNode of its own, and every ChildTreeNode below it
+         *     in pre-order
+         */
+        private List<ChildTreeNode> collectRecords(TreeNode rootNode) {
+            List<ChildTreeNode> records = new ArrayList<>();
+            if (rootNode == null) {
+                return records;
+            }
+            Deque<ChildTreeNode> stack = new ArrayDeque<>();
+            stack.push(new ChildTreeNode().setChildren(rootNode));
+            while (!stack.isEmpty()) {
+                ChildTreeNode record = stack.pop();
+                records.add(record);
+                TreeNode node = record.peekTreeNode();
+                if (node == null) {
+                    continue;
+                }
+                List<ChildTreeNode> children = node.getChildNodes();
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    if (children.get(i) != null) {
+                        stack.push(children.get(i));
+                    }
+                }
+            }
+            return records;
+        }
+
+        private void writeRecord(ChildTreeNode record, boolean root, IParser parser)
+                throws IOException {
+            TreeNode node = record.peekTreeNode();
+            if (node == null) {
+                writeVarint(FLAG_NO_TREE_NODE);
+                writeString(record.getChildId());
+                return;
+            }
+            Location location = node.peekNode();
+            boolean hasPayload = parser != null && location != null;
+            boolean hasName = node.peekName() != null;
+            boolean hasChildId = !root && !sameValue(record.getChildId(), node.getNodeId());
+            boolean hasLabel = node.getLabel() != null;
+            boolean hasParent = node.getParent() != null;
+            writeVarint(
+                    (hasPayload ? FLAG_PAYLOAD : 0)
+                            | (hasName ? FLAG_NAME : 0)
+                            | (hasChildId ? FLAG_CHILD_ID : 0)
+                            | (hasLabel ? FLAG_LABEL : 0)
+                            | (hasParent ? FLAG_PARENT : 0));
+            writeString(node.getNodeId());
+            if (hasLabel) {
+                writeString(node.getLabel());
+            }
+            if (hasParent) {
+                writeString(node.getParent());
+            }
+            if (hasName) {
+                writeString(node.peekName());
+            }
+            if (hasChildId) {
+                writeString(record.getChildId());
+            }
+            int childCount = 0;
+            for (ChildTreeNode child : node.getChildNodes()) {
+                if (child != null) {
+                    childCount++;
+                }
+            }
+            writeVarint(childCount);
+            if (hasPayload) {
+                byte[] payload =
+                        parser.encodeResourceToString(location).getBytes(StandardCharsets.UTF_8);
+                writeVarint(payload.length);
+                out.write(payload);
+            }
+        }
+
+        private boolean isChildIdList(TreeNode node, List<StringType> childIdentifiers) {
+            List<ChildTreeNode> children = node.getChildNodes();
+            if (children.size() != childIdentifiers.size()) {
+                return false;
+            }
+            for (int i = 0; i < children.size(); i++) {
+                ChildTreeNode child = children.get(i);
+                if (child == null
+                        || childIdentifiers.get(i) == null
+                        || child.getChildId() == null
+                        || !sameValue(child.getChildId(), childIdentifiers.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void addString(StringType value) {
+            if (value != null && value.getValue() != null) {
+                stringIndexes.computeIfAbsent(
+                        value.getValue(),
+                        string -> {
+                            strings.add(string);
+                            return strings.size() - 1;
+                        });
+            }
+        }
+
+        private void writeString(StringType value) throws IOException {
+            writeVarint(
+                    value == null || value.getValue() == null
+                            ? 0
+                            : stringIndexes.get(value.getValue()) + 1);
+        }
+
+        private void writeVarint(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    private final class Decoder {
+
+        private final InputStream in;
+
+        private List<String> strings;
+
+        /** Number of children that follow the record read last. */
+        private int recordChildCount;
+
+        private Decoder(InputStream in) {
+            this.in = in;
+        }
+
+        Tree decode() throws IOException {
+            for (byte expected : MAGIC) {
+                if (in.read() != expected) {
+                    throw new IOException("Not a binary location hierarchy tree");
+                }
+            }
+            int version = in.read();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary tree version " + version);
+            }
+            int stringCount = readVarint();
+            strings = new ArrayList<>(Math.min(stringCount, MAX_PREALLOCATION));
+            for (int i = 0; i < stringCount; i++) {
+                strings.add(new String(readBytes(readVarint()), StandardCharsets.UTF_8));
+            }
+
+            String treeNodeId = readString();
+            int recordCount = readVarint();
+            IParser parser = fhirContext != null ? fhirContext.newJsonParser() : null;
+            Map<String, StringType> nodeIds = new HashMap<>();
+            TreeNode rootNode = null;
+            // Nodes whose children are still being read, with the number still to come
+            Deque<TreeNode> openNodes = new ArrayDeque<>();
+            Deque<int[]> remainingChildren = new ArrayDeque<>();
+            for (int i = 0; i < recordCount; i++) {
+                while (!remainingChildren.isEmpty() && remainingChildren.peek()[0] == 0) {
+                    openNodes.pop();
+                    remainingChildren.pop();
+                }
+                if (i > 0 && openNodes.isEmpty()) {
+                    throw new IOException("Binary tree holds more than one root");
+                }
+                ChildTreeNode record = readRecord(i == 0, parser, nodeIds, openNodes.peek());
+                if (i == 0) {
+                    rootNode = record.peekTreeNode();
+                } else {
+                    remainingChildren.peek()[0]--;
+                    openNodes.peek().getChildren().add(record);
+                }
+                if (recordChildCount > 0) {
+                    openNodes.push(record.peekTreeNode());
+                    remainingChildren.push(new int[] {recordChildCount});
+                }
+            }
+            for (int[] remaining : remainingChildren) {
+                if (remaining[0] > 0) {
+                    throw new IOException("Binary tree ends before the children of a node");
+                }
+            }
+
+            Tree tree = new Tree();
+            if (rootNode != null || treeNodeId != null) {
+                SingleTreeNode listOfNodes = new SingleTreeNode();
+                listOfNodes.setTreeNodeId(intern(treeNodeId, nodeIds));
+                listOfNodes.setTreeNode(rootNode);
+                tree.setListOfNodes(listOfNodes);
+            }
+
+            int entryCount = readVarint();
+            List<ParentChildrenMap> parentChildren =
+                    new ArrayList<>(Math.min(entryCount, MAX_PREALLOCATION));
+            Map<String, TreeNode> nodesById = indexNodes(rootNode);
+            for (int i = 0; i < entryCount; i++) {
+                StringType identifier = intern(readString(), nodeIds);
+                int header = readVarint();
+                int count = header >>> 1;
+                List<StringType> childIdentifiers =
+                        new ArrayList<>(Math.min(count, MAX_PREALLOCATION));
+                if ((header & 1) != 0) {
+                    TreeNode node =
+                            identifier != null ? nodesById.get(identifier.getValue()) : null;
+                    if (node == null || node.getChildNodes().size() != count) {
+                        throw new IOException("Parent children entry does not match its node");
+                    }
+                    for (ChildTreeNode child : node.getChildNodes()) {
+                        childIdentifiers.add(child.getChildId());
+                    }
+                } else {
+                    for (int j = 0; j < count; j++) {
+                        childIdentifiers.add(intern(readString(), nodeIds));
+                    }
+                }
+                parentChildren.add(
+                        new ParentChildrenMap()
+                                .setIdentifier(identifier)
+                                .setChildIdentifiers(childIdentifiers));
+            }
+            tree.setParentChildren(parentChildren);
+            return tree;
+        }
+
+        private ChildTreeNode readRecord(
+                boolean root, IParser parser, Map<String, StringType> nodeIds, TreeNode parentNode)
+                throws IOException {
+            int flags = readVarint();
+            if ((flags & ~KNOWN_FLAGS) != 0
+                    || (flags & FLAG_NO_TREE_NODE) != 0 && flags != FLAG_NO_TREE_NODE) {
+                throw new IOException("Unknown binary tree record flags " + flags);
+            }
+            ChildTreeNode record = new ChildTreeNode();
+            if ((flags & FLAG_NO_TREE_NODE) != 0) {
+                record.setChildId(intern(readString(), nodeIds));
+                recordChildCount = 0;
+                return record;
+            }
+
+            TreeNode node = new TreeNode();
+            String nodeId = readString();
+            StringType nodeIdType = new StringType(nodeId);
+            if (nodeId != null) {
+                nodeIds.putIfAbsent(nodeId, nodeIdType);
+            }
+            node.setNodeId(nodeIdType);
+            if ((flags & FLAG_LABEL) != 0) {
+                node.setLabel(new StringType(readString()));
+            }
+            if ((flags & FLAG_PARENT) != 0) {
+                String parentId = readString();
+                node.setParent(
+                        parentId != null
+                                        && parentNode != null
+                                        && sameValue(parentNode.getNodeId(), parentId)
+                                ? parentNode.getNodeId()
+                                : new StringType(parentId));
+            }
+            if ((flags & FLAG_NAME) != 0) {
+                node.setName(new StringType(readString()));
+            }
+            StringType childId = nodeIdType;
+            if ((flags & FLAG_CHILD_ID) != 0) {
+                childId = intern(readString(), nodeIds);
+            }
+            recordChildCount = readVarint();
+            if (recordChildCount > 0) {
+                node.setChildren(new ArrayList<>(Math.min(recordChildCount, MAX_PREALLOCATION)));
+            }
+            if ((flags & FLAG_PAYLOAD) != 0) {
+                byte[] payload = readBytes(readVarint());
+                if (parser != null) {
+                    node.setNode(parseLocation(parser, payload));
+                }
+            }
+            record.setChildId(root ? null : childId);
+            record.setChildren(node);
+            return record;
+        }
+
+        private Location parseLocation(IParser parser, byte[] payload) throws IOException {
+            try {
+                return parser.parseResource(
+                        Location.class, new String(payload, StandardCharsets.UTF_8));
+            } catch (RuntimeException e) {
+                // Mostly DataFormatException, but HAPI does not promise to throw only that
+                throw new IOException(
+                        "Binary tree holds a Location payload that does not parse", e);
+            }
+        }
+
+        private Map<String, TreeNode> indexNodes(TreeNode rootNode) {
+            Map<String, TreeNode> nodesById = new HashMap<>();
+            Deque<TreeNode> stack = new ArrayDeque<>();
+            if (rootNode != null) {
+                stack.push(rootNode);
+            }
+            while (!stack.isEmpty()) {
+                TreeNode node = stack.pop();
+                if (node.getNodeId() != null && node.getNodeId().getValue() != null) {
+                    nodesById.putIfAbsent(node.getNodeId().getValue(), node);
+                }
+                for (ChildTreeNode child : node.getChildNodes()) {
+                    if (child.peekTreeNode() != null) {
+                        stack.push(child.peekTreeNode());
+                    }
+                }
+            }
+            return nodesById;
+        }
+
+        /**
+         * @return the node id instance with that value, so ids are held once as in {@link Tree}
+         */
+        private StringType intern(String value, Map<String, StringType> nodeIds) {
+            if (value == null) {
+                return null;
+            }
+            StringType nodeId = nodeIds.get(value);
+            return nodeId != null ? nodeId : new StringType(value);
+        }
+
+        private String readString() throws IOException {
+            int reference = readVarint();
+            if (reference == 0) {
+                return null;
+            }
+            if (reference > strings.size()) {
+                throw new IOException("String reference " + reference + " out of range");
+            }
+            return strings.get(reference - 1);
+        }
+
+        private byte[] readBytes(int length) throws IOException {
+            byte[] bytes = new byte[Math.min(length, MAX_PREALLOCATION)];
+            int read = 0;
+            while (read < length) {
+                if (read == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+                }
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    throw new EOFException("Binary tree ends inside a string or payload");
+                }
+                read += count;
+            }
+            return bytes;
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("Binary tree ends early");
+                }
+                if (shift == 28 && (b & 0x78) != 0) {
+                    // Counts, lengths and references are non-negative ints
+                    break;
+                }
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+    }
+
+    private static List<StringType> getChildIdentifiers(ParentChildrenMap parentChildrenMap) {
+        List<StringType> childIdentifiers = parentChildrenMap.getChildIdentifiers();
+        return childIdentifiers != null ? childIdentifiers : new ArrayList<>();
+    }
+
+    private static boolean sameValue(StringType value, StringType other) {
+        return sameValue(value, other != null ? other.getValue() : null);
+    }
+
+    private static boolean sameValue(StringType value, String other) {
+        String string = value != null ? value.getValue() : null;
+        return string == null ? other == null : string.equals(other);
+    }
+}
@@ -25,9 +25,19 @@ import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Type;
 import org.smartregister.utils.Utils;
 
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 
+/**
+ * A node of a {@link Tree}. Changing the children or the parent of a node that belongs to a tree
+ * directly bypasses the tree's node index and snapshot, see {@link Tree}; use the methods of the
+ * tree instead.
+ */
 @DatatypeDef(name = "TreeNode")
 public class TreeNode extends Type implements ICompositeType {
 
@@ -75,9 +85,13 @@ public class TreeNode extends Type implements ICompositeType {
             summary = false)
     private List<ChildTreeNode> children;
 
-    public TreeNode() {
-        children = new ArrayList<>();
-    }
+    /** Loads {@link #node} on first access when the node was added without its location. */
+    private transient LocationLoader locationLoader;
+
+    /** See {@link #getOwner()}. */
+    private transient Object owner;
+
+    public TreeNode() {}
 
     public TreeNode(
             StringType name,
@@ -113,16 +127,82 @@ public class TreeNode extends Type implements ICompositeType {
         return this;
     }
 
+    /**
+     * Returns a deep copy of this node and the nodes below it. The copy is made without recursion,
+     * so it works for hierarchies of any depth.
+     */
     @Override
-    public Type copy() {
-        TreeNode treeNode = new TreeNode();
+    public TreeNode copy() {
+        TreeNode copy = copyFields();
+        Deque<TreeNode[]> stack = new ArrayDeque<>();
+        stack.push(new TreeNode[] {this, copy});
+        while (!stack.isEmpty()) {
+            TreeNode[] nodes = stack.pop();
+            List<ChildTreeNode> children = nodes[0].children;
+            if (children == null) {
+                continue;
+            }
+            List<ChildTreeNode> childCopies = new ArrayList<>(children.size());
+            for (ChildTreeNode child : children) {
+                TreeNode childNode = child != null ? child.peekTreeNode() : null;
+                TreeNode childNodeCopy = childNode != null ? childNode.copyFields() : null;
+                childCopies.add(child != null ? child.copyWith(childNodeCopy) : null);
+                if (childNode != null) {
+                    stack.push(new TreeNode[] {childNode, childNodeCopy});
+                }
+            }
+            nodes[1].children = childCopies;
+        }
+        return copy;
+    }
+
+    /** Returns a deep copy of the fields of this node, without its children. */
+    private TreeNode copyFields() {
+        TreeNode treeNode =
+                new TreeNode(
+                        copyOf(name),
+                        copyOf(nodeId),
+                        copyOf(label),
+                        node != null ? node.copy() : null,
+                        copyOf(parent));
         copyValues(treeNode);
+        treeNode.locationLoader = locationLoader;
         return treeNode;
     }
 
+    @Nullable
+    private static StringType copyOf(@Nullable StringType stringType) {
+        return stringType != null ? stringType.copy() : null;
+    }
+
+    /**
+     * Returns a copy of this node that shares its ids, label, location and child nodes with this
+     * node. The fields and the list of children of the copy are its own, the nodes below it are
+     * not. {@link Tree} uses it to copy shared nodes on write.
+     */
+    TreeNode shallowCopy() {
+        TreeNode treeNode = new TreeNode(name, nodeId, label, node, parent);
+        copyValues(treeNode);
+        treeNode.locationLoader = locationLoader;
+        if (children != null) {
+            treeNode.children = new ArrayList<>(children);
+        }
+        return treeNode;
+    }
+
+    /** @return the owner token of the tree that may change this node in place, if any */
+    @Nullable
+    Object getOwner() {
+        return owner;
+    }
+
+    void setOwner(@Nullable Object owner) {
+        this.owner = owner;
+    }
+
     @Override
     public boolean isEmpty() {
-        return ElementUtil.isEmpty(node);
+        return ElementUtil.isEmpty(nodeId, node);
     }
 
     @Override
@@ -139,15 +219,56 @@ public class TreeNode extends Type implements ICompositeType {
         return this;
     }
 
+    /**
+     * Returns the location of this node. For a node added without its location this loads it
+     * through the {@link LocationLoader} of the tree on first access and keeps it.
+     */
     public Location getNode() {
+        if (node == null && locationLoader != null) {
+            node = locationLoader.load(nodeId != null ? nodeId.getValue() : null);
+            locationLoader = null;
+        }
         return node;
     }
 
     public TreeNode setNode(Location node) {
         this.node = node;
+        this.locationLoader = null;
         return this;
     }
 
+    /**
+     * @return whether the location of this node is in memory, i.e. {@link #getNode()} will not
+     *     have to load it
+     */
+    public boolean isNodeLoaded() {
+        return node != null || locationLoader == null;
+    }
+
+    /**
+     * @return the location of this node if it is in memory, without loading it
+     */
+    Location peekNode() {
+        return node;
+    }
+
+    /**
+     * @return the name of this node, or null if it has none, without creating an empty one the way
+     *     {@link #getName()} does
+     */
+    @Nullable
+    StringType peekName() {
+        return name;
+    }
+
+    LocationLoader getLocationLoader() {
+        return locationLoader;
+    }
+
+    void setLocationLoader(LocationLoader locationLoader) {
+        this.locationLoader = node == null ? locationLoader : null;
+    }
+
     public StringType getParent() {
         return parent;
     }
@@ -175,39 +296,77 @@ public class TreeNode extends Type implements ICompositeType {
         }
         ChildTreeNode childTreeNode = new ChildTreeNode();
         childTreeNode.setChildId(node.getNodeId());
-        List<TreeNode> treeNodeList = new ArrayList<>();
         TreeNode treeNode = new TreeNode();
-        treeNode.setNode(node.getNode());
+        treeNode.setNode(node.peekNode());
+        treeNode.setLocationLoader(node.getLocationLoader());
         treeNode.setNodeId(node.getNodeId());
         treeNode.setLabel(node.getLabel());
         treeNode.setParent(node.getParent());
-        treeNodeList.add(treeNode);
         childTreeNode.setChildren(treeNode);
         children.add(childTreeNode);
     }
 
-    public TreeNode findChild(String childId) {
+    /**
+     * Attaches the given node itself, with its children, as the last child of this node. Unlike
+     * {@link #addChild(TreeNode)} the node is not copied.
+     */
+    void attachChild(TreeNode node) {
+        if (children == null) {
+            children = new ArrayList<>();
+        }
+        ChildTreeNode childTreeNode = new ChildTreeNode();
+        childTreeNode.setChildId(node.getNodeId());
+        childTreeNode.setChildren(node);
+        children.add(childTreeNode);
+    }
 
+    /** Points the entry of the given child at another node, keeping its position and child id. */
+    void replaceChild(TreeNode child, TreeNode replacement) {
+        List<ChildTreeNode> childNodes = getChildNodes();
+        for (int i = 0; i < childNodes.size(); i++) {
+            ChildTreeNode childTreeNode = childNodes.get(i);
+            if (childTreeNode != null && childTreeNode.peekTreeNode() == child) {
+                childNodes.set(
+                        i,
+                        new ChildTreeNode()
+                                .setChildId(childTreeNode.getChildId())
+                                .setChildren(replacement));
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the children of this node, without allocating a list for leaf nodes
+     */
+    List<ChildTreeNode> getChildNodes() {
+        return children != null ? children : Collections.emptyList();
+    }
+
+    /**
+     * Finds a node below this one, searching depth first. The search keeps its position on an
+     * explicit stack, so it works for hierarchies of any depth.
+     *
+     * @param childId the id of the node to find
+     * @return the first node with the id in pre-order, or null if there is none
+     */
+    public TreeNode findChild(String childId) {
         String idString = Utils.cleanIdString(childId);
-        if (children != null && !children.isEmpty()) {
-            for (ChildTreeNode child : children) {
-                if (isChildFound(child, idString)) {
-                    return child.getChildren();
-                } else if (child != null && child.getChildren() != null) {
-                    TreeNode node = child.getChildren().findChild(idString);
-                    if (node != null) return node;
-                }
+        Iterator<TreeNode> iterator = new TreeTraversal.PreOrderIterator(this);
+        // Skip this node itself
+        iterator.next();
+        while (iterator.hasNext()) {
+            TreeNode node = iterator.next();
+            if (isChildFound(node, idString)) {
+                return node;
             }
         }
         return null;
     }
 
-    private static boolean isChildFound(ChildTreeNode child, String idString) {
-        return child != null
-                && child.getChildren() != null
-                && child.getChildren().getNodeId() != null
-                && StringUtils.isNotBlank(
-                child.getChildren().getNodeId().getValue())
-                && child.getChildren().getNodeId().getValue().equals(idString);
+    private static boolean isChildFound(TreeNode node, String idString) {
+        return node.getNodeId() != null
+                && StringUtils.isNotBlank(node.getNodeId().getValue())
+                && node.getNodeId().getValue().equals(idString);
     }
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Iterators and spliterators over {@link TreeNode}s. They keep their position on an explicit stack
+ * or queue, so hierarchies of any depth can be walked without running out of call stack.
+ */
+final class TreeTraversal {
+
+    private TreeTraversal() {}
+
+    /** Pushes the children of the node so that the first child ends up on top. */
+    private static void pushChildren(Deque<TreeNode> stack, TreeNode node) {
+        List<ChildTreeNode> children = node.getChildNodes();
+        for (int i = children.size() - 1; i >= 0; i--) {
+            ChildTreeNode child = children.get(i);
+            if (child != null && child.peekTreeNode() != null) {
+                stack.push(child.peekTreeNode());
+            }
+        }
+    }
+
+    static final class PreOrderIterator implements Iterator<TreeNode> {
+
+        private final Deque<TreeNode> stack = new ArrayDeque<>();
+
+        PreOrderIterator(@Nullable TreeNode root) {
+            if (root != null) {
+                stack.push(root);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        public TreeNode next() {
+            if (stack.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            TreeNode node = stack.pop();
+            pushChildren(stack, node);
+            return node;
+        }
+    }
+
+    static final class PostOrderIterator implements Iterator<TreeNode> {
+
+        private final Deque<TreeNode> stack = new ArrayDeque<>();
+
+        /** For each node on the stack, the position of the next child to descend into. */
+        private final CompactLocationHierarchy.IntArrayBuilder positions =
+                new CompactLocationHierarchy.IntArrayBuilder();
+
+        PostOrderIterator(@Nullable TreeNode root) {
+            if (root != null) {
+                stack.push(root);
+                positions.add(0);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        public TreeNode next() {
+            if (stack.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            while (true) {
+                TreeNode node = stack.peek();
+                int top = positions.size() - 1;
+                List<ChildTreeNode> children = node.getChildNodes();
+                int position = positions.get(top);
+                while (position < children.size()
+                        && (children.get(position) == null
+                                || children.get(position).peekTreeNode() == null)) {
+                    position++;
+                }
+                if (position == children.size()) {
+                    stack.pop();
+                    positions.removeLast();
+                    return node;
+                }
+                positions.set(top, position + 1);
+                stack.push(children.get(position).peekTreeNode());
+                positions.add(0);
+            }
+        }
+    }
+
+    static final class BreadthFirstIterator implements Iterator<TreeNode> {
+
+        private final Deque<TreeNode> queue = new ArrayDeque<>();
+
+        BreadthFirstIterator(@Nullable TreeNode root) {
+            if (root != null) {
+                queue.add(root);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public TreeNode next() {
+            if (queue.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            TreeNode node = queue.poll();
+            for (ChildTreeNode child : node.getChildNodes()) {
+                if (child != null && child.peekTreeNode() != null) {
+                    queue.add(child.peekTreeNode());
+                }
+            }
+            return node;
+        }
+    }
+
+    /**
+     * Reports nodes in pre-order and splits off whole subtrees, so that each part of a parallel
+     * stream walks subtrees of its own. A part holding a single subtree is split by reporting its
+     * root on its own and dividing the subtrees of its children.
+     */
+    static final class SubtreeSpliterator implements Spliterator<TreeNode> {
+
+        /** Nodes to report on their own, before any of the subtrees. */
+        private Deque<TreeNode> nodes;
+
+        /** Roots of the subtrees still to report, the next one first. */
+        private final Deque<TreeNode> subtrees;
+
+        private long estimatedSize;
+
+        SubtreeSpliterator(@Nullable TreeNode root, long estimatedSize) {
+            this(new ArrayDeque<>(), new ArrayDeque<>(), estimatedSize);
+            if (root != null) {
+                subtrees.push(root);
+            }
+        }
+
+        private SubtreeSpliterator(
+                Deque<TreeNode> nodes, Deque<TreeNode> subtrees, long estimatedSize) {
+            this.nodes = nodes;
+            this.subtrees = subtrees;
+            this.estimatedSize = estimatedSize;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super TreeNode> action) {
+            TreeNode node = nodes.poll();
+            if (node == null) {
+                node = subtrees.poll();
+                if (node == null) {
+                    return false;
+                }
+                pushChildren(subtrees, node);
+            }
+            if (estimatedSize > 0) {
+                estimatedSize--;
+            }
+            action.accept(node);
+            return true;
+        }
+
+        @Nullable
+        @Override
+        public Spliterator<TreeNode> trySplit() {
+            while (subtrees.size() == 1) {
+                TreeNode node = subtrees.pop();
+                nodes.add(node);
+                pushChildren(subtrees, node);
+            }
+            if (subtrees.size() < 2) {
+                return null;
+            }
+            // The nodes and the first half of the subtrees come first in pre-order
+            Deque<TreeNode> prefixSubtrees = new ArrayDeque<>();
+            for (int i = subtrees.size() / 2; i > 0; i--) {
+                prefixSubtrees.add(subtrees.pop());
+            }
+            SubtreeSpliterator prefix =
+                    new SubtreeSpliterator(nodes, prefixSubtrees, estimatedSize / 2);
+            nodes = new ArrayDeque<>();
+            estimatedSize -= prefix.estimatedSize;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimatedSize;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | DISTINCT | NONNULL;
+        }
+    }
+}
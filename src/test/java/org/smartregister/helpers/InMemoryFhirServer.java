@@ -0,0 +1,565 @@
+package org.smartregister.helpers;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.OperationOutcome;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ICriterionInternal;
+import ca.uhn.fhir.rest.gclient.IGetPage;
+import ca.uhn.fhir.rest.gclient.IGetPageTyped;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.gclient.IRead;
+import ca.uhn.fhir.rest.gclient.IReadExecutable;
+import ca.uhn.fhir.rest.gclient.IReadTyped;
+import ca.uhn.fhir.rest.gclient.IUntypedQuery;
+import ca.uhn.fhir.rest.gclient.IUpdate;
+import ca.uhn.fhir.rest.gclient.IUpdateExecutable;
+import ca.uhn.fhir.rest.gclient.IUpdateTyped;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * An in-memory FHIR store for {@link Location}s with an {@link IGenericClient} on top, so that
+ * {@link LocationHelper} can be exercised and benchmarked against large hierarchies without a
+ * server.
+ *
+ * <p>The client implements the calls {@link LocationHelper} makes: read and update of a location,
+ * search by {@code partof} and paging through the results with {@code _getpages} links. Other calls
+ * throw {@link UnsupportedOperationException}. Resources travel between client and store as JSON,
+ * as they would over the wire, and errors surface as the exceptions HAPI throws for the status.
+ *
+ * <p>Each call can be slowed down by a fixed latency and made to fail at random with a 500
+ * response, per {@link Operation}. Failures are drawn from a seeded random, so a run can be
+ * repeated.
+ */
+public class InMemoryFhirServer {
+
+  public static final String SERVER_BASE = "http://localhost/fhir";
+
+  private static final String LOCATION = "Location";
+
+  private static final int DEFAULT_PAGE_SIZE = 20;
+
+  /** The calls the store serves. */
+  public enum Operation {
+    READ,
+    UPDATE,
+    SEARCH,
+    PAGE
+  }
+
+  private final FhirContext fhirContext;
+
+  private final Map<String, Location> locations = new HashMap<>();
+
+  /** Child ids by parent id, in the order the children were stored. */
+  private final Map<String, Set<String>> childIds = new HashMap<>();
+
+  /** The matches of each search that has more pages. */
+  private final Map<String, List<String>> searches = new HashMap<>();
+
+  private final Map<Operation, AtomicLong> callCounts = new EnumMap<>(Operation.class);
+
+  private final long[] latencyNanos = new long[Operation.values().length];
+
+  private final double[] failureRates = new double[Operation.values().length];
+
+  private Random random = new Random(42);
+
+  private long nextSearchId;
+
+  public InMemoryFhirServer(FhirContext fhirContext) {
+    this.fhirContext = fhirContext;
+    for (Operation operation : Operation.values()) {
+      callCounts.put(operation, new AtomicLong());
+    }
+  }
+
+  /** @return a client whose calls are answered by this store */
+  public IGenericClient newClient() {
+    return newProxy(new ClientHandler(), IGenericClient.class);
+  }
+
+  /** Stores copies of the locations, replacing those with the same id. */
+  public synchronized InMemoryFhirServer putLocations(Collection<Location> locations) {
+    for (Location location : locations) {
+      store(location.copy(), location.getIdElement().getIdPart());
+    }
+    return this;
+  }
+
+  /** @return a copy of the stored location, or null if there is none with the id */
+  public synchronized Location getLocation(String id) {
+    Location location = locations.get(id);
+    return location != null ? location.copy() : null;
+  }
+
+  public synchronized int size() {
+    return locations.size();
+  }
+
+  /** Delays every call by the given time. */
+  public InMemoryFhirServer setLatency(long latency, TimeUnit unit) {
+    for (Operation operation : Operation.values()) {
+      setLatency(operation, latency, unit);
+    }
+    return this;
+  }
+
+  public InMemoryFhirServer setLatency(Operation operation, long latency, TimeUnit unit) {
+    latencyNanos[operation.ordinal()] = unit.toNanos(latency);
+    return this;
+  }
+
+  /** Fails the given share of every call. */
+  public InMemoryFhirServer setFailureRate(double failureRate) {
+    for (Operation operation : Operation.values()) {
+      setFailureRate(operation, failureRate);
+    }
+    return this;
+  }
+
+  public InMemoryFhirServer setFailureRate(Operation operation, double failureRate) {
+    failureRates[operation.ordinal()] = failureRate;
+    return this;
+  }
+
+  /** Sets the seed of the random that decides which calls fail. */
+  public synchronized InMemoryFhirServer setSeed(long seed) {
+    random = new Random(seed);
+    return this;
+  }
+
+  /** @return the number of calls of the operation, including failed ones */
+  public long getCallCount(Operation operation) {
+    return callCounts.get(operation).get();
+  }
+
+  public void resetCallCounts() {
+    for (AtomicLong callCount : callCounts.values()) {
+      callCount.set(0);
+    }
+  }
+
+  private void store(Location location, String id) {
+    Location previous = locations.put(id, location);
+    String previousParentId = previous != null ? getParentId(previous) : null;
+    String parentId = getParentId(location);
+    if (previousParentId != null && !previousParentId.equals(parentId)) {
+      childIds.get(previousParentId).remove(id);
+    }
+    if (parentId != null) {
+      childIds.computeIfAbsent(parentId, key -> new LinkedHashSet<>()).add(id);
+    }
+  }
+
+  private static String getParentId(Location location) {
+    return location.hasPartOf() && location.getPartOf().hasReference()
+        ? location.getPartOf().getReferenceElement().getIdPart()
+        : null;
+  }
+
+  /**
+   * Answers a call the way a server would answer the request.
+   *
+   * @param body the JSON of the resource to update
+   * @return the status and the JSON body of the response
+   */
+  private Response handle(
+      Operation operation,
+      String resourceType,
+      String id,
+      Map<String, List<String>> params,
+      String body) {
+    callCounts.get(operation).incrementAndGet();
+    long latency = latencyNanos[operation.ordinal()];
+    if (latency > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      }
+    }
+
+    synchronized (this) {
+      if (failureRates[operation.ordinal()] > 0
+          && random.nextDouble() < failureRates[operation.ordinal()]) {
+        return error(
+            Constants.STATUS_HTTP_500_INTERNAL_ERROR, "Injected failure of " + operation);
+      }
+      if (resourceType != null && !LOCATION.equals(resourceType)) {
+        return error(
+            Constants.STATUS_HTTP_400_BAD_REQUEST, "Unsupported resource type " + resourceType);
+      }
+      switch (operation) {
+        case READ:
+          return read(id);
+        case UPDATE:
+          return update(id, body);
+        case SEARCH:
+          return search(params);
+        default:
+          return page(params);
+      }
+    }
+  }
+
+  private Response read(String id) {
+    Location location = locations.get(id);
+    if (location == null) {
+      return error(Constants.STATUS_HTTP_404_NOT_FOUND, "Location/" + id + " is not known");
+    }
+    return new Response(Constants.STATUS_HTTP_200_OK, encode(location));
+  }
+
+  private Response update(String id, String body) {
+    Location location = fhirContext.newJsonParser().parseResource(Location.class, body);
+    Location previous = locations.get(id);
+    int version = 1;
+    if (previous != null && previous.getMeta().hasVersionId()) {
+      version = Integer.parseInt(previous.getMeta().getVersionId()) + 1;
+    }
+    location.setId(LOCATION + "/" + id);
+    location.getMeta().setVersionId(String.valueOf(version));
+    store(location, id);
+    return new Response(
+        previous != null ? Constants.STATUS_HTTP_200_OK : Constants.STATUS_HTTP_201_CREATED,
+        encode(location));
+  }
+
+  private Response search(Map<String, List<String>> params) {
+    List<String> matches = new ArrayList<>();
+    List<String> parentIds = params.get(Location.SP_PARTOF);
+    if (parentIds == null) {
+      matches.addAll(locations.keySet());
+    } else {
+      for (String value : parentIds) {
+        for (String parentId : value.split(",")) {
+          String id = parentId.substring(parentId.lastIndexOf('/') + 1);
+          matches.addAll(childIds.getOrDefault(id, Collections.emptySet()));
+        }
+      }
+    }
+    return toBundle(matches, String.valueOf(nextSearchId++), 0, getCount(params));
+  }
+
+  private Response page(Map<String, List<String>> params) {
+    String searchId = getFirst(params, Constants.PARAM_PAGINGACTION);
+    List<String> matches = searchId != null ? searches.get(searchId) : null;
+    if (matches == null) {
+      return error(Constants.STATUS_HTTP_410_GONE, "Search " + searchId + " has expired");
+    }
+    int offset = Integer.parseInt(getFirst(params, Constants.PARAM_PAGINGOFFSET));
+    return toBundle(matches, searchId, offset, getCount(params));
+  }
+
+  private Response toBundle(List<String> matches, String searchId, int offset, int count) {
+    Bundle bundle = new Bundle();
+    bundle.setType(Bundle.BundleType.SEARCHSET);
+    bundle.setTotal(matches.size());
+    int end = Math.min(matches.size(), offset + count);
+    for (int i = offset; i < end; i++) {
+      Location location = locations.get(matches.get(i));
+      if (location != null) {
+        bundle
+            .addEntry()
+            .setFullUrl(SERVER_BASE + "/" + LOCATION + "/" + matches.get(i))
+            .setResource(location)
+            .getSearch()
+            .setMode(Bundle.SearchEntryMode.MATCH);
+      }
+    }
+    if (end < matches.size()) {
+      searches.put(searchId, matches);
+      bundle
+          .addLink()
+          .setRelation(Bundle.LINK_NEXT)
+          .setUrl(
+              SERVER_BASE
+                  + "?"
+                  + Constants.PARAM_PAGINGACTION
+                  + "="
+                  + searchId
+                  + "&"
+                  + Constants.PARAM_PAGINGOFFSET
+                  + "="
+                  + end
+                  + "&"
+                  + Constants.PARAM_COUNT
+                  + "="
+                  + count);
+    } else {
+      searches.remove(searchId);
+    }
+    return new Response(Constants.STATUS_HTTP_200_OK, encode(bundle));
+  }
+
+  private static int getCount(Map<String, List<String>> params) {
+    String count = getFirst(params, Constants.PARAM_COUNT);
+    return count != null ? Integer.parseInt(count) : DEFAULT_PAGE_SIZE;
+  }
+
+  private static String getFirst(Map<String, List<String>> params, String name) {
+    List<String> values = params.get(name);
+    return values != null && !values.isEmpty() ? values.get(0) : null;
+  }
+
+  private Response error(int status, String message) {
+    OperationOutcome operationOutcome = new OperationOutcome();
+    operationOutcome
+        .addIssue()
+        .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+        .setCode(OperationOutcome.IssueType.PROCESSING)
+        .setDiagnostics(message);
+    return new Response(status, encode(operationOutcome));
+  }
+
+  private String encode(IBaseResource resource) {
+    return newParser().encodeResourceToString(resource);
+  }
+
+  private IParser newParser() {
+    return fhirContext.newJsonParser().setStripVersionsFromReferences(false);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T newProxy(InvocationHandler handler, Class<?>... interfaces) {
+    return (T)
+        Proxy.newProxyInstance(InMemoryFhirServer.class.getClassLoader(), interfaces, handler);
+  }
+
+  /**
+   * @return the result of the methods every proxy has to answer, or null if the method is not one
+   *     of them
+   */
+  private static Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+    switch (method.getName()) {
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "toString":
+        return InMemoryFhirServer.class.getSimpleName() + " " + method.getDeclaringClass();
+      default:
+        return null;
+    }
+  }
+
+  private static final class Response {
+
+    private final int status;
+
+    private final String body;
+
+    private Response(int status, String body) {
+      this.status = status;
+      this.body = body;
+    }
+  }
+
+  private final class ClientHandler implements InvocationHandler {
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      Object result = invokeObjectMethod(proxy, method, args);
+      if (result != null) {
+        return result;
+      }
+      switch (method.getName()) {
+        case "read":
+          return newProxy(
+              new CallHandler(Operation.READ),
+              IRead.class,
+              IReadTyped.class,
+              IReadExecutable.class);
+        case "update":
+          return newProxy(
+              new CallHandler(Operation.UPDATE),
+              IUpdate.class,
+              IUpdateTyped.class,
+              IUpdateExecutable.class);
+        case "search":
+          return newProxy(new CallHandler(Operation.SEARCH), IUntypedQuery.class, IQuery.class);
+        case "loadPage":
+          return newProxy(new CallHandler(Operation.PAGE), IGetPage.class, IGetPageTyped.class);
+        case "getServerBase":
+          return SERVER_BASE;
+        case "getFhirContext":
+          return fhirContext;
+        case "getEncoding":
+          return EncodingEnum.JSON;
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    }
+  }
+
+  /**
+   * Collects the arguments of a fluent call and runs it on {@code execute()}. Builder methods that
+   * the call does not need are accepted and ignored.
+   */
+  private final class CallHandler implements InvocationHandler {
+
+    private final Operation operation;
+
+    private final Map<String, Object> arguments = new HashMap<>();
+
+    private final Map<String, List<String>> params = new LinkedHashMap<>();
+
+    private CallHandler(Operation operation) {
+      this.operation = operation;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      Object result = invokeObjectMethod(proxy, method, args);
+      if (result != null) {
+        return result;
+      }
+      String name = method.getName();
+      if ("execute".equals(name)) {
+        return execute();
+      }
+      if ("where".equals(name) || "and".equals(name)) {
+        ICriterionInternal criterion = (ICriterionInternal) args[0];
+        params
+            .computeIfAbsent(criterion.getParameterName(), key -> new ArrayList<>())
+            .add(criterion.getParameterValue(fhirContext));
+      } else if ("count".equals(name)) {
+        params.put(Constants.PARAM_COUNT, Collections.singletonList(String.valueOf(args[0])));
+      } else if (args != null && args.length == 1) {
+        arguments.put(name, args[0]);
+      }
+      if (!method.getReturnType().isInstance(proxy)) {
+        throw new UnsupportedOperationException(name);
+      }
+      return proxy;
+    }
+
+    private Object execute() {
+      switch (operation) {
+        case READ:
+          {
+            Class<? extends IBaseResource> type = getResourceClass("resource");
+            String id = getId(arguments.get("withId"));
+            Response response = handle(operation, getResourceType(type), id, null, null);
+            return parse(response, type);
+          }
+        case UPDATE:
+          {
+            Object resource = arguments.get("resource");
+            String body =
+                resource instanceof String ? (String) resource : encode((IBaseResource) resource);
+            IBaseResource parsed = newParser().parseResource(body);
+            Object id = arguments.get("withId");
+            Response response =
+                handle(
+                    operation,
+                    fhirContext.getResourceType(parsed),
+                    id != null ? getId(id) : parsed.getIdElement().getIdPart(),
+                    null,
+                    body);
+            IBaseResource updated = parse(response, parsed.getClass());
+            MethodOutcome methodOutcome = new MethodOutcome(updated.getIdElement());
+            methodOutcome.setResource(updated);
+            methodOutcome.setCreated(response.status == Constants.STATUS_HTTP_201_CREATED);
+            return methodOutcome;
+          }
+        case SEARCH:
+          {
+            Class<? extends IBaseResource> type = getResourceClass("forResource");
+            Response response = handle(operation, getResourceType(type), null, params, null);
+            return parse(response, getBundleClass(arguments.get("returnBundle")));
+          }
+        default:
+          {
+            IBaseBundle bundle = (IBaseBundle) arguments.get("next");
+            Map<String, List<String>> pageParams = new LinkedHashMap<>();
+            String url = ((Bundle) bundle).getLink(Bundle.LINK_NEXT).getUrl();
+            parseQuery(url.substring(url.indexOf('?') + 1), pageParams);
+            Response response = handle(operation, null, null, pageParams, null);
+            return parse(response, bundle.getClass());
+          }
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Class<? extends IBaseResource> getResourceClass(String name) {
+      Object type = arguments.get(name);
+      return type instanceof String
+          ? fhirContext.getResourceDefinition((String) type).getImplementingClass()
+          : (Class<? extends IBaseResource>) type;
+    }
+
+    private String getResourceType(Class<? extends IBaseResource> type) {
+      return fhirContext.getResourceType(type);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Class<? extends IBaseResource> getBundleClass(Object type) {
+      return type != null ? (Class<? extends IBaseResource>) type : Bundle.class;
+    }
+
+    private String getId(Object id) {
+      return id instanceof IIdType ? ((IIdType) id).getIdPart() : String.valueOf(id);
+    }
+
+    private <T extends IBaseResource> T parse(Response response, Class<T> type) {
+      if (response.status >= Constants.STATUS_HTTP_400_BAD_REQUEST) {
+        OperationOutcome operationOutcome =
+            newParser().parseResource(OperationOutcome.class, response.body);
+        BaseServerResponseException exception =
+            BaseServerResponseException.newInstance(
+                response.status, operationOutcome.getIssueFirstRep().getDiagnostics());
+        exception.setOperationOutcome(operationOutcome);
+        throw exception;
+      }
+      return newParser().parseResource(type, response.body);
+    }
+  }
+
+  private static void parseQuery(String query, Map<String, List<String>> params) {
+    try {
+      for (String param : query.split("&")) {
+        int separator = param.indexOf('=');
+        if (separator > 0) {
+          params
+              .computeIfAbsent(
+                  URLDecoder.decode(param.substring(0, separator), "UTF-8"),
+                  key -> new ArrayList<>())
+              .add(URLDecoder.decode(param.substring(separator + 1), "UTF-8"));
+        }
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
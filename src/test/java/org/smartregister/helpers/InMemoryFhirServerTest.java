@@ -0,0 +1,134 @@
+package org.smartregister.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Location;
+import org.junit.Test;
+import org.smartregister.model.location.utils.LocationHierarchyGenerator;
+import org.smartregister.utils.Constants;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ReferenceClientParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+public class InMemoryFhirServerTest {
+
+  private static final FhirContext fhirContext = FhirContext.forR4();
+
+  @Test
+  public void testUpdateLocationLineageOfLargeHierarchy() {
+    // Locations 1 to 20 have more children than fit on a page of 100
+    List<Location> locations =
+        new LocationHierarchyGenerator()
+            .setDepth(Integer.MAX_VALUE)
+            .setFanOut(150, 150)
+            .setMaxLocations(3000)
+            .generateLocations();
+    InMemoryFhirServer server = new InMemoryFhirServer(fhirContext).putLocations(locations);
+
+    Location root = LocationHelper.updateLocationLineage(server.newClient(), "1");
+
+    assertEquals("1", root.getIdElement().getIdPart());
+    assertEquals(1, server.getCallCount(InMemoryFhirServer.Operation.READ));
+    assertEquals(3000, server.getCallCount(InMemoryFhirServer.Operation.UPDATE));
+    assertEquals(3000, server.getCallCount(InMemoryFhirServer.Operation.SEARCH));
+    assertEquals(20, server.getCallCount(InMemoryFhirServer.Operation.PAGE));
+    for (Location location : locations) {
+      String id = location.getIdElement().getIdPart();
+      assertEquals(getAncestorIds(server, id), getLineageTags(server.getLocation(id)));
+    }
+    assertTrue(server.getLocation("2000").getMeta().getVersionId().compareTo("1") >= 0);
+  }
+
+  @Test
+  public void testSearchPagesThroughChildren() {
+    List<Location> locations =
+        new LocationHierarchyGenerator().setDepth(1).setFanOut(45, 45).generateLocations();
+    InMemoryFhirServer server = new InMemoryFhirServer(fhirContext).putLocations(locations);
+    IGenericClient client = server.newClient();
+
+    Bundle bundle =
+        client
+            .search()
+            .forResource(Location.class)
+            .where(new ReferenceClientParam(Location.SP_PARTOF).hasAnyOfIds("Location/1"))
+            .returnBundle(Bundle.class)
+            .execute();
+    assertEquals(45, bundle.getTotal());
+    assertEquals(20, bundle.getEntry().size());
+
+    LocationHelper.fetchAllBundlePagesAndInject(client, bundle);
+    assertEquals(45, bundle.getEntry().size());
+    assertEquals("Location 46", ((Location) bundle.getEntry().get(44).getResource()).getName());
+    assertEquals(2, server.getCallCount(InMemoryFhirServer.Operation.PAGE));
+    assertNull(server.getLocation("47"));
+  }
+
+  @Test
+  public void testInjectedLatencyAndFailures() {
+    List<Location> locations =
+        new LocationHierarchyGenerator().setDepth(2).setFanOut(3, 3).generateLocations();
+    InMemoryFhirServer server =
+        new InMemoryFhirServer(fhirContext)
+            .putLocations(locations)
+            .setLatency(InMemoryFhirServer.Operation.READ, 20, TimeUnit.MILLISECONDS)
+            .setFailureRate(InMemoryFhirServer.Operation.UPDATE, 1);
+    IGenericClient client = server.newClient();
+
+    long start = System.nanoTime();
+    Location location = client.read().resource(Location.class).withId("5").execute();
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    assertEquals("Location 5", location.getName());
+
+    try {
+      client.read().resource(Location.class).withId("100").execute();
+      fail();
+    } catch (ResourceNotFoundException e) {
+      assertTrue(e.getMessage().contains("Location/100"));
+    }
+    try {
+      LocationHelper.updateLocationLineage(client, "2");
+      fail();
+    } catch (InternalErrorException e) {
+      assertTrue(e.getMessage().contains("Injected failure of UPDATE"));
+    }
+
+    server.setFailureRate(0);
+    client.update().resource(location).execute();
+    assertEquals("1", server.getLocation("5").getMeta().getVersionId());
+    client.update().resource(location).execute();
+    assertEquals("2", server.getLocation("5").getMeta().getVersionId());
+  }
+
+  private static List<String> getAncestorIds(InMemoryFhirServer server, String id) {
+    List<String> ancestorIds = new ArrayList<>();
+    Location location = server.getLocation(id);
+    while (location.hasPartOf()) {
+      String parentId = location.getPartOf().getReferenceElement().getIdPart();
+      ancestorIds.add(parentId);
+      location = server.getLocation(parentId);
+    }
+    Collections.reverse(ancestorIds);
+    return ancestorIds;
+  }
+
+  private static List<String> getLineageTags(Location location) {
+    return location.getMeta().getTag().stream()
+        .filter(tag -> Constants.DEFAULT_LOCATION_LINEAGE_TAG_URL.equals(tag.getSystem()))
+        .map(Coding::getCode)
+        .collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import org.hl7.fhir.r4.model.Location;
+import org.junit.Test;
+import org.smartregister.model.location.utils.TestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CompactLocationHierarchyTest {
+
+    @Test
+    public void testSnapshotOfTree() {
+        Tree tree = new Tree();
+        Location location = new Location();
+        location.setId("Location/1");
+        tree.addNode("Location/1", "root", location, "Location/0");
+        tree.addNode("Location/2", "child2", new Location(), "Location/1");
+        tree.addNode("Location/3", "child3", new Location(), "Location/1");
+        tree.addNode("Location/4", "grandChild4", new Location(), "Location/2");
+
+        CompactLocationHierarchy hierarchy = CompactLocationHierarchy.from(tree);
+
+        assertEquals(4, hierarchy.size());
+        assertEquals("Location/1", hierarchy.getRootId());
+        assertEquals("Location/0", hierarchy.getRootParentId());
+        assertEquals(0, hierarchy.indexOf("Location/1"));
+        assertEquals(1, hierarchy.indexOf("Location/2"));
+        assertEquals(2, hierarchy.indexOf("Location/4/_history/1"));
+        assertEquals(3, hierarchy.indexOf("Location/3"));
+        assertEquals(CompactLocationHierarchy.NO_NODE, hierarchy.indexOf("Location/5"));
+
+        assertEquals(
+                Arrays.asList("Location/2", "Location/3"),
+                hierarchy.getChildIds("Location/1"));
+        assertEquals(Collections.singletonList("Location/4"), hierarchy.getChildIds("Location/2"));
+        assertEquals(Collections.emptyList(), hierarchy.getChildIds("Location/3"));
+        assertEquals("Location/2", hierarchy.getParentId("Location/4"));
+        assertEquals("Location/0", hierarchy.getParentId("Location/1"));
+        assertNull(hierarchy.getParentId("Location/5"));
+
+        assertEquals(0, hierarchy.getDepth("Location/1"));
+        assertEquals(2, hierarchy.getDepth("Location/4"));
+        assertEquals("grandChild4", hierarchy.getLabel("Location/4"));
+        assertSame(location, hierarchy.getLocation("Location/1"));
+    }
+
+    @Test
+    public void testDescendantChecksAndSubtreeIds() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", new Location(), null);
+        tree.addNode("Location/2", "child2", new Location(), "Location/1");
+        tree.addNode("Location/3", "child3", new Location(), "Location/1");
+        tree.addNode("Location/4", "grandChild4", new Location(), "Location/2");
+        tree.addNode("Location/5", "grandChild5", new Location(), "Location/3");
+
+        CompactLocationHierarchy hierarchy = CompactLocationHierarchy.from(tree);
+
+        assertTrue(hierarchy.isDescendant("Location/1", "Location/4"));
+        assertTrue(hierarchy.isDescendant("Location/2", "Location/4"));
+        assertTrue(hierarchy.isDescendant("Location/3", "Location/5"));
+        assertFalse(hierarchy.isDescendant("Location/2", "Location/5"));
+        assertFalse(hierarchy.isDescendant("Location/4", "Location/2"));
+        assertFalse(hierarchy.isDescendant("Location/2", "Location/2"));
+        assertFalse(hierarchy.isDescendant("Location/9", "Location/2"));
+
+        assertEquals(
+                Arrays.asList("Location/1", "Location/2", "Location/4", "Location/3", "Location/5"),
+                hierarchy.getSubtreeIds("Location/1"));
+        assertEquals(
+                Arrays.asList("Location/3", "Location/5"),
+                hierarchy.getSubtreeIds("Location/3"));
+        assertEquals(
+                Collections.singletonList("Location/5"),
+                hierarchy.getSubtreeIds("Location/5"));
+        assertEquals(2, hierarchy.getSubtreeSize(hierarchy.indexOf("Location/2")));
+        assertEquals(5, hierarchy.getSubtreeEnd(0));
+    }
+
+    @Test
+    public void testLevelQueries() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", new Location(), null);
+        tree.addNode("Location/2", "child2", new Location(), "Location/1");
+        tree.addNode("Location/3", "child3", new Location(), "Location/1");
+        tree.addNode("Location/4", "grandChild4", new Location(), "Location/2");
+        tree.addNode("Location/5", "grandChild5", new Location(), "Location/3");
+        tree.addNode("Location/6", "grandChild6", new Location(), "Location/3");
+        tree.addNode("Location/7", "greatGrandChild7", new Location(), "Location/4");
+
+        CompactLocationHierarchy hierarchy = CompactLocationHierarchy.from(tree);
+
+        assertEquals(4, hierarchy.getLevelCount());
+        assertEquals(3, hierarchy.getLevelSize(2));
+        assertEquals(0, hierarchy.getLevelSize(4));
+        assertEquals(Arrays.asList("Location/2", "Location/3"), hierarchy.getLevelIds(1));
+        assertEquals(
+                Arrays.asList("Location/4", "Location/5", "Location/6"), hierarchy.getLevelIds(2));
+        assertEquals(
+                Arrays.asList("Location/5", "Location/6"),
+                hierarchy.getLevelIds("Location/3", 2));
+        assertEquals(
+                Collections.singletonList("Location/4"),
+                hierarchy.getLevelIds("Location/2", 2));
+        assertEquals(
+                Collections.singletonList("Location/2"),
+                hierarchy.getLevelIds("Location/2", 1));
+        assertEquals(Collections.emptyList(), hierarchy.getLevelIds("Location/3", 3));
+        assertEquals(Collections.emptyList(), hierarchy.getLevelIds("Location/3", 0));
+        assertEquals(Collections.emptyList(), hierarchy.getLevelIds("Location/9", 1));
+        assertEquals(2, hierarchy.getLevelSize("Location/3", 2));
+
+        assertEquals(
+                Arrays.asList(
+                        "Location/1",
+                        "Location/2",
+                        "Location/3",
+                        "Location/4",
+                        "Location/5",
+                        "Location/6"),
+                hierarchy.getSubtreeIds("Location/1", 2));
+        assertEquals(
+                Arrays.asList("Location/2", "Location/4", "Location/7"),
+                hierarchy.getSubtreeIds("Location/2", 5));
+        assertEquals(
+                Collections.singletonList("Location/3"),
+                hierarchy.getSubtreeIds("Location/3", 1));
+    }
+
+    @Test
+    public void testLevelQueriesOfLargeTree() {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromList(TestUtils.getTestLocations());
+        CompactLocationHierarchy hierarchy =
+                locationHierarchyTree.getLocationsHierarchy().getCompactHierarchy();
+
+        int total = 0;
+        for (int depth = 0; depth < hierarchy.getLevelCount(); depth++) {
+            total += hierarchy.getLevelSize(depth);
+        }
+        assertEquals(TestUtils.TOTAL_LOCATIONS, total);
+        for (int i = 1; i <= TestUtils.TOTAL_LOCATIONS; i += 997) {
+            String id = "Location/" + i;
+            int depth = hierarchy.getDepth(id) + 2;
+            List<String> expected = new ArrayList<>();
+            for (String subtreeId : hierarchy.getSubtreeIds(id)) {
+                if (hierarchy.getDepth(subtreeId) == depth) {
+                    expected.add(subtreeId);
+                }
+            }
+            assertEquals(expected, hierarchy.getLevelIds(id, depth));
+            assertEquals(
+                    hierarchy.getSubtreeIds(id).size(),
+                    hierarchy.getSubtreeIds(id, Integer.MAX_VALUE).size());
+        }
+    }
+
+    @Test
+    public void testSnapshotOfEmptyTree() {
+        CompactLocationHierarchy hierarchy = CompactLocationHierarchy.from(new Tree());
+
+        assertTrue(hierarchy.isEmpty());
+        assertNull(hierarchy.getRootId());
+        assertEquals(CompactLocationHierarchy.NO_NODE, hierarchy.indexOf("Location/1"));
+    }
+
+    @Test
+    public void testSnapshotOfLargeTree() {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromList(TestUtils.getTestLocations());
+        Tree tree = locationHierarchyTree.getLocationsHierarchy();
+
+        CompactLocationHierarchy hierarchy = CompactLocationHierarchy.from(tree);
+
+        assertEquals(TestUtils.TOTAL_LOCATIONS, hierarchy.size());
+        for (int i = 1; i <= TestUtils.TOTAL_LOCATIONS; i += 101) {
+            String id = "Location/" + i;
+            TreeNode node = tree.getNode(id);
+            int index = hierarchy.indexOf(id);
+            assertEquals(id, hierarchy.getId(index));
+            assertEquals(node.getChildren().size(), hierarchy.getChildCount(index));
+            if (i > 1) {
+                assertEquals(node.getParent().getValue(), hierarchy.getParentId(id));
+                assertEquals(
+                        hierarchy.getDepth(hierarchy.getParentIndex(index)) + 1,
+                        hierarchy.getDepth(index));
+            }
+        }
+    }
+}
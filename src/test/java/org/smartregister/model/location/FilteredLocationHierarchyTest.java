@@ -0,0 +1,157 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Location.LocationStatus;
+import org.junit.Test;
+import org.smartregister.model.location.utils.TestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FilteredLocationHierarchyTest {
+
+    @Test
+    public void testFilterKeepsAncestorsOfMatches() {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromLocations(
+                Arrays.asList(
+                        newLocation("Location/1", null, LocationStatus.ACTIVE, null),
+                        newLocation("Location/2", "Location/1", LocationStatus.ACTIVE, null),
+                        newLocation("Location/3", "Location/2", LocationStatus.INACTIVE, null),
+                        newLocation("Location/4", "Location/3", LocationStatus.ACTIVE, "bu"),
+                        newLocation("Location/5", "Location/3", LocationStatus.SUSPENDED, "bu"),
+                        newLocation("Location/6", "Location/1", LocationStatus.ACTIVE, "ro")));
+
+        FilteredLocationHierarchy view =
+                locationHierarchyTree.filter(
+                        new LocationFilter()
+                                .setStatuses(LocationStatus.ACTIVE)
+                                .setPhysicalTypeCodes("bu"),
+                        null);
+
+        assertEquals(Collections.singletonList("Location/4"), view.getMatchIds());
+        assertEquals(
+                Arrays.asList("Location/1", "Location/2", "Location/3", "Location/4"),
+                view.getIds());
+        assertEquals(4, view.size());
+        assertEquals("Location/1", view.getRootId());
+        assertTrue(view.contains("Location/3"));
+        assertFalse(view.isMatch("Location/3"));
+        assertFalse(view.contains("Location/5"));
+        assertEquals(Collections.singletonList("Location/2"), view.getChildIds("Location/1"));
+        assertEquals(Collections.singletonList("Location/4"), view.getChildIds("Location/3"));
+
+        Tree tree = view.toTree();
+        assertEquals(view.getIds(), tree.getSubtreeIds("Location/1"));
+        assertEquals("Location/3", tree.getNode("Location/4").getParent().getValue());
+        assertSame(
+                locationHierarchyTree.getLocationsHierarchy().getNode("Location/4").getNode(),
+                tree.getNode("Location/4").getNode());
+    }
+
+    @Test
+    public void testFilterScopedToSubtree() {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromLocations(
+                Arrays.asList(
+                        newLocation("Location/1", null, LocationStatus.ACTIVE, null),
+                        newLocation("Location/2", "Location/1", LocationStatus.ACTIVE, null),
+                        newLocation("Location/3", "Location/2", LocationStatus.ACTIVE, "bu"),
+                        newLocation("Location/4", "Location/2", LocationStatus.SUSPENDED, "bu"),
+                        newLocation("Location/5", "Location/1", LocationStatus.ACTIVE, "ro")));
+
+        FilteredLocationHierarchy view =
+                locationHierarchyTree.filter(
+                        new LocationFilter()
+                                .setStatuses(
+                                        LocationStatus.ACTIVE,
+                                        LocationStatus.SUSPENDED)
+                                .setTypeCodes("HOSP"),
+                        "Location/2");
+        assertEquals(Arrays.asList("Location/2", "Location/3", "Location/4"), view.getIds());
+        Tree tree = view.toTree();
+        assertEquals("Location/2", tree.getTree().getTreeNodeId().getValue());
+        assertEquals("Location/1", tree.getTree().getTreeNode().getParent().getValue());
+
+        FilteredLocationHierarchy empty =
+                locationHierarchyTree.filter(
+                        new LocationFilter().setPhysicalTypeCodes("ro"), "Location/2");
+        assertTrue(empty.isEmpty());
+        assertNull(empty.getRootId());
+        assertTrue(empty.toTree().getCompactHierarchy().isEmpty());
+        assertTrue(locationHierarchyTree.filter(new LocationFilter(), "Location/9").isEmpty());
+    }
+
+    @Test
+    public void testFilterOfLargeTreeMatchesLinearFilter() {
+        List<Location> locationList = TestUtils.getTestLocations();
+        LocationStatus[] statuses = LocationStatus.values();
+        for (int i = 0; i < locationList.size(); i++) {
+            locationList.get(i).setStatus(statuses[i * 7 % 3]);
+        }
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromList(locationList);
+        CompactLocationHierarchy hierarchy =
+                locationHierarchyTree.getLocationsHierarchy().getCompactHierarchy();
+
+        FilteredLocationHierarchy view =
+                locationHierarchyTree.filter(
+                        new LocationFilter().setStatuses(LocationStatus.SUSPENDED),
+                        "Location/3");
+
+        List<String> expected = new ArrayList<>();
+        for (String id : hierarchy.getSubtreeIds("Location/3")) {
+            if (hierarchy.getLocation(id).getStatus() == LocationStatus.SUSPENDED) {
+                expected.add(id);
+            }
+        }
+        assertEquals(expected, view.getMatchIds());
+        for (String id : view.getIds()) {
+            assertTrue(id.equals("Location/3") || view.contains(hierarchy.getParentId(id)));
+        }
+    }
+
+    private static Location newLocation(
+            String id,
+            String parentId,
+            LocationStatus status,
+            String physicalTypeCode) {
+        Location location = new Location();
+        location.setId(id);
+        location.setName("Test " + id);
+        location.setStatus(status);
+        if (parentId != null) {
+            location.getPartOf().setReference(parentId);
+        }
+        if (physicalTypeCode != null) {
+            location.setPhysicalType(new CodeableConcept(new Coding(null, physicalTypeCode, null)));
+            location.addType(new CodeableConcept(new Coding(null, "HOSP", null)));
+        }
+        return location;
+    }
+}
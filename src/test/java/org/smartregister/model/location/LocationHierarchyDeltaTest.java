@@ -0,0 +1,185 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Test;
+import org.smartregister.model.location.utils.TestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LocationHierarchyDeltaTest {
+
+    @Test
+    public void testApplyingDeltaGivesNewerVersion() {
+        List<Location> locations = TestUtils.getTestLocations().subList(0, 2000);
+        List<Location> changedLocations = new ArrayList<>();
+        for (Location location : locations) {
+            Location changedLocation = location.copy();
+            changedLocation.setId(location.getId());
+            changedLocations.add(changedLocation);
+        }
+        // Location/2 and its subtree are removed, except Location/6 which moves to Location/3
+        changedLocations.removeIf(location -> location.getId().equals("Location/2"));
+        getLocation(changedLocations, "Location/6").setPartOf(new Reference("Location/3"));
+        getLocation(changedLocations, "Location/1500").setPartOf(new Reference("Location/3"));
+        getLocation(changedLocations, "Location/700").setName("Renamed 700");
+        getLocation(changedLocations, "Location/12").setStatus(Location.LocationStatus.INACTIVE);
+        changedLocations.add(newLocation("Location/5000", "Location/6"));
+        changedLocations.add(newLocation("Location/5001", "Location/5000"));
+
+        LocationHierarchyTree from = newHierarchy(locations);
+        LocationHierarchyTree to = newHierarchy(changedLocations);
+        LocationHierarchyDelta delta = LocationHierarchyDelta.between(from, to);
+
+        assertEquals(2, delta.getAdded().size());
+        assertEquals("Location/5000", delta.getAdded().get(0).getNodeId().getValue());
+        assertEquals(2, delta.getMoved().size());
+        // Both moved locations changed their partOf as well
+        assertEquals(4, delta.getModified().size());
+        assertEquals(1, delta.getRemoved().size());
+        assertEquals("Location/2", delta.getRemoved().get(0).getValue());
+
+        delta.applyTo(from);
+
+        assertSameHierarchy(to, from);
+        assertEquals(
+                Location.LocationStatus.INACTIVE,
+                from.getLocationsHierarchy().getNode("Location/12").getNode().getStatus());
+        assertTrue(LocationHierarchyDelta.between(from, to).isEmpty());
+    }
+
+    @Test
+    public void testMovesApplyParentsFirst() {
+        LocationHierarchyTree from = new LocationHierarchyTree();
+        from.addLocation("Location/1", "root", null);
+        from.addLocation("Location/2", "a", "Location/1");
+        from.addLocation("Location/3", "b", "Location/2");
+        LocationHierarchyTree to = new LocationHierarchyTree();
+        to.addLocation("Location/1", "root", null);
+        to.addLocation("Location/3", "b", "Location/1");
+        to.addLocation("Location/2", "a", "Location/3");
+
+        LocationHierarchyDelta delta = LocationHierarchyDelta.between(from, to);
+        delta.applyTo(from);
+
+        assertEquals(
+                Arrays.asList("Location/3", "Location/2"),
+                Arrays.asList(
+                        delta.getMoved().get(0).getNodeId().getValue(),
+                        delta.getMoved().get(1).getNodeId().getValue()));
+        assertSameHierarchy(to, from);
+    }
+
+    @Test
+    public void testReplacedRootRebuildsHierarchy() {
+        LocationHierarchyTree from = new LocationHierarchyTree();
+        from.addLocation("Location/1", "root", null);
+        from.addLocation("Location/2", "child", "Location/1");
+        LocationHierarchyTree to = new LocationHierarchyTree();
+        to.addLocation("Location/0", "new root", null);
+        to.addLocation("Location/1", "root", "Location/0");
+        to.addLocation("Location/2", "child", "Location/1");
+
+        LocationHierarchyDelta delta = LocationHierarchyDelta.between(from, to);
+        delta.applyTo(from);
+
+        assertEquals(3, delta.getAdded().size());
+        assertEquals(Arrays.asList("Location/1"), getValues(delta.getRemoved()));
+        assertSameHierarchy(to, from);
+
+        LocationHierarchyTree empty = new LocationHierarchyTree();
+        LocationHierarchyDelta.between(from, empty).applyTo(from);
+        assertTrue(from.getLocationsHierarchy().getCompactHierarchy().isEmpty());
+    }
+
+    @Test
+    public void testCopiedDeltaAppliesSameChanges() {
+        LocationHierarchyTree from = new LocationHierarchyTree();
+        from.addLocation("Location/1", "root", null);
+        LocationHierarchyTree to = new LocationHierarchyTree();
+        to.addLocation("Location/1", "renamed", null);
+        to.addLocation("Location/2", "child", "Location/1");
+
+        LocationHierarchyDelta delta = LocationHierarchyDelta.between(from, to);
+        LocationHierarchyDelta copy = (LocationHierarchyDelta) delta.copy();
+        copy.applyTo(from);
+
+        assertSameHierarchy(to, from);
+        assertEquals(2, delta.getAdded().size() + delta.getModified().size());
+        assertSame(
+                from.getLocationsHierarchy().getNode("Location/1").getNodeId(),
+                from.getLocationsHierarchy().getNode("Location/2").getParent());
+        assertTrue(new LocationHierarchyDelta().isEmpty());
+    }
+
+    private static void assertSameHierarchy(
+            LocationHierarchyTree expected, LocationHierarchyTree actual) {
+        CompactLocationHierarchy expectedHierarchy =
+                expected.getLocationsHierarchy().getCompactHierarchy();
+        CompactLocationHierarchy actualHierarchy =
+                actual.getLocationsHierarchy().getCompactHierarchy();
+        assertEquals(expectedHierarchy.size(), actualHierarchy.size());
+        for (int i = 0; i < expectedHierarchy.size(); i++) {
+            String id = expectedHierarchy.getId(i);
+            assertEquals(expectedHierarchy.getParentId(id), actualHierarchy.getParentId(id));
+            assertEquals(expectedHierarchy.getLabel(id), actualHierarchy.getLabel(id));
+            assertEquals(
+                    new HashSet<>(expectedHierarchy.getChildIds(id)),
+                    new HashSet<>(actualHierarchy.getChildIds(id)));
+        }
+    }
+
+    private static LocationHierarchyTree newHierarchy(List<Location> locations) {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromLocations(locations);
+        return locationHierarchyTree;
+    }
+
+    private static Location getLocation(List<Location> locations, String id) {
+        for (Location location : locations) {
+            if (location.getId().equals(id)) {
+                return location;
+            }
+        }
+        throw new IllegalArgumentException(id);
+    }
+
+    private static Location newLocation(String id, String parentId) {
+        Location location = new Location();
+        location.setId(id);
+        location.setName("Test Location " + id);
+        location.setPartOf(new Reference(parentId));
+        return location;
+    }
+
+    private static List<String> getValues(List<StringType> stringTypes) {
+        List<String> values = new ArrayList<>();
+        for (StringType stringType : stringTypes) {
+            values.add(stringType.getValue());
+        }
+        return values;
+    }
+}
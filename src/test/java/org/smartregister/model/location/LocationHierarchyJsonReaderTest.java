@@ -0,0 +1,204 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Test;
+import org.smartregister.model.location.utils.TestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocationHierarchyJsonReaderTest {
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+    @Test
+    public void testReadsSameHierarchyAsTree() throws IOException {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromList(TestUtils.getTestLocations().subList(0, 5000));
+        CompactLocationHierarchy expected =
+                locationHierarchyTree.getLocationsHierarchy().getCompactHierarchy();
+
+        CompactLocationHierarchy hierarchy =
+                new LocationHierarchyJsonReader()
+                        .readCompactHierarchy(toJson(locationHierarchyTree));
+
+        assertEquals(expected.size(), hierarchy.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getId(i), hierarchy.getId(i));
+            assertEquals(expected.getLabel(i), hierarchy.getLabel(i));
+            assertEquals(expected.getParentIndex(i), hierarchy.getParentIndex(i));
+            assertEquals(expected.getSubtreeEnd(i), hierarchy.getSubtreeEnd(i));
+            assertNull(hierarchy.getLocation(i));
+        }
+    }
+
+    @Test
+    public void testReadsSubtreeAndStopsOnceComplete() throws IOException {
+        LocationHierarchyTree locationHierarchyTree = newHierarchy();
+        // Locations after the subtree, enough to outlast the read buffer of the parser
+        for (int i = 100; i < 2000; i++) {
+            locationHierarchyTree.addLocation("Location/" + i, "child" + i, "Location/3");
+        }
+        CountingInputStream inputStream = new CountingInputStream(toJson(locationHierarchyTree));
+        int length = inputStream.available();
+
+        CompactLocationHierarchy hierarchy =
+                new LocationHierarchyJsonReader(FHIR_CONTEXT)
+                        .readCompactHierarchy(inputStream, "Location/2/_history/1");
+
+        assertEquals(
+                Arrays.asList("Location/2", "Location/4"), hierarchy.getSubtreeIds("Location/2"));
+        assertEquals("Location/1", hierarchy.getRootParentId());
+        assertEquals("Location/4", hierarchy.getLocation("Location/4").getName());
+        assertTrue(inputStream.getCount() < length);
+
+        assertTrue(
+                new LocationHierarchyJsonReader()
+                        .readCompactHierarchy(toJson(locationHierarchyTree), "Location/9")
+                        .isEmpty());
+    }
+
+    @Test
+    public void testHandlerReceivesNodesInPreOrderAndCanStop() throws IOException {
+        List<String> events = new ArrayList<>();
+        LocationNodeHandler handler =
+                new LocationNodeHandler() {
+                    @Override
+                    public boolean onNode(
+                            String nodeId,
+                            String label,
+                            String parentId,
+                            int depth,
+                            Location location) {
+                        events.add(
+                                nodeId + ":" + parentId + ":" + depth + ":" + location.getName());
+                        return !"Location/4".equals(nodeId);
+                    }
+
+                    @Override
+                    public boolean onNodeEnd(String nodeId, int depth) {
+                        events.add("end " + nodeId);
+                        return true;
+                    }
+                };
+
+        new LocationHierarchyJsonReader(FHIR_CONTEXT).read(toJson(newHierarchy()), handler);
+
+        assertEquals(
+                Arrays.asList(
+                        "Location/1:null:0:Location/1",
+                        "Location/2:Location/1:1:Location/2",
+                        "Location/4:Location/2:2:Location/4"),
+                events);
+    }
+
+    @Test
+    public void testReadsDeepHierarchy() throws IOException {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.addLocation("Location/0", "level 0", null);
+        for (int i = 1; i < 500; i++) {
+            locationHierarchyTree.addLocation("Location/" + i, "level " + i, "Location/" + (i - 1));
+        }
+
+        LocationHierarchy locationHierarchy = new LocationHierarchy();
+        locationHierarchy.setLocationHierarchyTree(locationHierarchyTree);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        // HAPI encodes recursively and runs out of stack on hierarchies this deep
+        new LocationHierarchyJsonWriter(FHIR_CONTEXT).write(locationHierarchy, outputStream);
+
+        CompactLocationHierarchy hierarchy =
+                new LocationHierarchyJsonReader()
+                        .readCompactHierarchy(
+                                new ByteArrayInputStream(outputStream.toByteArray()),
+                                "Location/250");
+
+        assertEquals(250, hierarchy.size());
+        assertEquals(249, hierarchy.getDepth("Location/499"));
+        assertEquals("Location/249", hierarchy.getRootParentId());
+    }
+
+    @Test
+    public void testReadsDocumentWithoutTree() throws IOException {
+        LocationHierarchy locationHierarchy = new LocationHierarchy();
+        locationHierarchy.setId("Location/1");
+        locationHierarchy.setLocationId(new StringType("Location/1"));
+        String json = FHIR_CONTEXT.newJsonParser().encodeResourceToString(locationHierarchy);
+
+        assertTrue(
+                new LocationHierarchyJsonReader()
+                        .readCompactHierarchy(
+                                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)))
+                        .isEmpty());
+    }
+
+    private static LocationHierarchyTree newHierarchy() {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.setLocationLoader(
+                id -> {
+                    Location location = new Location();
+                    location.setId(id);
+                    location.setName(id);
+                    return location;
+                });
+        locationHierarchyTree.addLocation("Location/1", "root", null);
+        locationHierarchyTree.addLocation("Location/2", "child2", "Location/1");
+        locationHierarchyTree.addLocation("Location/3", "child3", "Location/1");
+        locationHierarchyTree.addLocation("Location/4", "grandChild4", "Location/2");
+        locationHierarchyTree.addLocation("Location/5", "grandChild5", "Location/3");
+        for (String id : locationHierarchyTree.getLocationsHierarchy().getSubtreeIds("Location/1")) {
+            locationHierarchyTree.getLocationsHierarchy().getNode(id).getNode();
+        }
+        return locationHierarchyTree;
+    }
+
+    private static ByteArrayInputStream toJson(LocationHierarchyTree locationHierarchyTree)
+            throws IOException {
+        LocationHierarchy locationHierarchy = new LocationHierarchy();
+        locationHierarchy.setId("Location/1");
+        locationHierarchy.setLocationId(new StringType("Location/1"));
+        locationHierarchy.setLocationHierarchyTree(locationHierarchyTree);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new LocationHierarchyJsonWriter(FHIR_CONTEXT).write(locationHierarchy, outputStream);
+        return new ByteArrayInputStream(outputStream.toByteArray());
+    }
+
+    private static final class CountingInputStream extends ByteArrayInputStream {
+
+        private final int length;
+
+        private CountingInputStream(ByteArrayInputStream inputStream) {
+            super(inputStream.readAllBytes());
+            this.length = count;
+        }
+
+        int getCount() {
+            return length - available();
+        }
+    }
+}
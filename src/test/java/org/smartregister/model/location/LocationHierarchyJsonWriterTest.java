@@ -0,0 +1,256 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.annotation.Child;
+import ca.uhn.fhir.model.api.annotation.ResourceDef;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Test;
+import org.smartregister.model.location.utils.TestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+public class LocationHierarchyJsonWriterTest {
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+    /** Encodes {@link MirrorLocationHierarchy}, which takes the name of the real resource type */
+    private static final FhirContext MIRROR_CONTEXT = FhirContext.forR4();
+
+    private final LocationHierarchyJsonWriter jsonWriter =
+            new LocationHierarchyJsonWriter(FHIR_CONTEXT);
+
+    @Test
+    public void testWritesSameJsonAsHapi() throws IOException {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        Location root = new Location();
+        root.setId("Location/1");
+        root.setName("Root \"quoted\" \\ é ✓ </x>\n\t\u0001\u001f");
+        locationHierarchyTree.addLocation(root);
+        Location child = new Location();
+        child.setId("http://test-server/fhir/Location/2/_history/3");
+        child.setName("Child");
+        child.setPartOf(new Reference("Location/1"));
+        child.getMeta().addTag("https://smartregister.org/", "tag", "Tag");
+        child.addContained(new Organization().setName("Owner").setId("owner"));
+        child.setManagingOrganization(new Reference("#owner"));
+        locationHierarchyTree.addLocation(child);
+        Location secondChild = new Location();
+        secondChild.setId("Location/3");
+        secondChild.setName("  ");
+        secondChild.setPartOf(new Reference("Location/1"));
+        locationHierarchyTree.addLocation(secondChild);
+        locationHierarchyTree.addLocation("Location/4", "Not loaded", "Location/2");
+
+        assertSameAsHapi(newLocationHierarchy(locationHierarchyTree));
+
+        // The tree follows every other element of the resource
+        LocationHierarchy locationHierarchy = newLocationHierarchy(locationHierarchyTree);
+        locationHierarchy.setName("Hierarchy");
+        locationHierarchy.setStatus(Location.LocationStatus.ACTIVE);
+        locationHierarchy.setPartOf(new Reference("Location/0"));
+        locationHierarchy.getMeta().setVersionId("2");
+        locationHierarchy.addExtension(
+                new Extension("http://example.org/hierarchy", new StringType("x")));
+        locationHierarchy.addEndpoint(new Reference("Endpoint/1"));
+        assertSameAsHapi(locationHierarchy);
+        locationHierarchy
+                .getLocationId()
+                .addExtension(new Extension("http://example.org/id", new StringType("y")));
+        assertSameAsHapi(locationHierarchy);
+        locationHierarchy.getLocationId().setValue(null);
+        assertSameAsHapi(locationHierarchy);
+    }
+
+    @Test
+    public void testWritesLargeHierarchy() throws IOException {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromList(TestUtils.getTestLocations().subList(0, 5000));
+
+        assertSameAsHapi(newLocationHierarchy(locationHierarchyTree));
+    }
+
+    @Test
+    public void testWritesDeepHierarchy() throws IOException {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.addLocation("Location/0", "level 0", null);
+        for (int i = 1; i < 200; i++) {
+            locationHierarchyTree.addLocation("Location/" + i, "level " + i, "Location/" + (i - 1));
+        }
+
+        assertSameAsHapi(newLocationHierarchy(locationHierarchyTree));
+    }
+
+    @Test
+    public void testWritesEmptyAndUnusualHierarchies() throws IOException {
+        LocationHierarchy withoutTree = new LocationHierarchy();
+        withoutTree.setId("Location/1");
+        assertSameAsHapi(withoutTree);
+
+        assertSameAsHapi(newLocationHierarchy(new LocationHierarchyTree()));
+
+        LocationHierarchyTree withEmptyChildren = new LocationHierarchyTree();
+        withEmptyChildren.addLocation("Location/1", "root", null);
+        withEmptyChildren.addLocation("Location/2", "child", "Location/1");
+        TreeNode rootNode = withEmptyChildren.getLocationsHierarchy().getNode("Location/1");
+        rootNode.getChildren().add(0, new ChildTreeNode());
+        rootNode.getChildren().add(new ChildTreeNode().setChildId(new StringType("Location/3")));
+        rootNode.setName(new StringType("named"));
+        withEmptyChildren.getLocationsHierarchy().getParentChildren().add(new ParentChildrenMap());
+        withEmptyChildren
+                .getLocationsHierarchy()
+                .getParentChildren()
+                .get(0)
+                .getChildIdentifiers()
+                .add(new StringType(""));
+        assertSameAsHapi(newLocationHierarchy(withEmptyChildren));
+    }
+
+    @Test
+    public void testFallsBackToHapiForExtensions() throws IOException {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.addLocation("Location/1", "root", null);
+        locationHierarchyTree.addLocation("Location/2", "child", "Location/1");
+        locationHierarchyTree
+                .getLocationsHierarchy()
+                .getNode("Location/2")
+                .getLabel()
+                .addExtension(new Extension("http://example.org/label", new StringType("x")));
+
+        assertSameAsHapi(newLocationHierarchy(locationHierarchyTree));
+    }
+
+    @Test
+    public void testWritingLeavesUnnamedNodesUnchanged() throws IOException {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.addLocation("Location/1", "root", null);
+        locationHierarchyTree.addLocation("Location/2", "child", "Location/1");
+        locationHierarchyTree.addLocation("Location/3", "grandChild", "Location/2");
+        LocationHierarchy locationHierarchy = newLocationHierarchy(locationHierarchyTree);
+        Tree tree = locationHierarchyTree.getLocationsHierarchy();
+        String original = write(locationHierarchy);
+
+        Iterator<TreeNode> treeNodes = tree.preOrderIterator();
+        while (treeNodes.hasNext()) {
+            assertNull(treeNodes.next().peekName());
+        }
+        assertEquals(original, write(locationHierarchy));
+    }
+
+    @Test
+    public void testMirrorHasSameElementsAsLocationHierarchy() {
+        List<String> expected = new ArrayList<>();
+        for (BaseRuntimeChildDefinition child :
+                FHIR_CONTEXT.getResourceDefinition(LocationHierarchy.class).getChildren()) {
+            expected.add(child.getElementName());
+        }
+        List<String> actual = new ArrayList<>();
+        for (BaseRuntimeChildDefinition child :
+                MIRROR_CONTEXT.getResourceDefinition(MirrorLocationHierarchy.class).getChildren()) {
+            actual.add(
+                    child.getElementName()
+                            .replace(MirrorLocationHierarchy.TREE, "LocationHierarchyTree"));
+        }
+        assertEquals(expected, actual);
+    }
+
+    private static LocationHierarchy newLocationHierarchy(
+            LocationHierarchyTree locationHierarchyTree) {
+        LocationHierarchy locationHierarchy = new LocationHierarchy();
+        locationHierarchy.setId("Location/1");
+        locationHierarchy.setLocationId(new StringType("Location/1"));
+        locationHierarchy.setLocationHierarchyTree(locationHierarchyTree);
+        return locationHierarchy;
+    }
+
+    private String write(LocationHierarchy locationHierarchy) throws IOException {
+        StringWriter writer = new StringWriter();
+        jsonWriter.write(locationHierarchy, writer);
+        return writer.toString();
+    }
+
+    /**
+     * Compares the writer's output with HAPI's encoding of the same resource. HAPI's encoder
+     * asserts that element names start in lower case, so the expected JSON comes from a mirror of
+     * the resource whose tree element is named in lower case, renamed afterwards.
+     */
+    private void assertSameAsHapi(LocationHierarchy locationHierarchy) throws IOException {
+        MirrorLocationHierarchy mirror = new MirrorLocationHierarchy();
+        locationHierarchy.copyValues(mirror);
+        mirror.locationId = locationHierarchy.getLocationId();
+        mirror.locationHierarchyTree = locationHierarchy.getLocationHierarchyTree();
+        String mirrorJson = MIRROR_CONTEXT.newJsonParser().encodeResourceToString(mirror);
+        String mirrorField = "\"" + MirrorLocationHierarchy.TREE + "\":";
+        int treeField = mirrorJson.indexOf(mirrorField);
+        assertEquals(treeField, mirrorJson.lastIndexOf(mirrorField));
+        String expected =
+                treeField < 0
+                        ? mirrorJson
+                        : mirrorJson.substring(0, treeField)
+                                + "\"LocationHierarchyTree\":"
+                                + mirrorJson.substring(treeField + mirrorField.length());
+
+        assertEquals(expected, write(locationHierarchy));
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        jsonWriter.write(locationHierarchy, outputStream);
+        assertEquals(expected, new String(outputStream.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * {@link LocationHierarchy} with its tree element named in lower case, which HAPI encodes with
+     * its assertions enabled.
+     */
+    @ResourceDef(
+            name = "LocationHierarchy",
+            profile = "http://hl7.org/fhir/profiles/custom-resource")
+    public static class MirrorLocationHierarchy extends Location {
+
+        static final String TREE = "locationHierarchyTree";
+
+        @Child(
+                name = "locationId",
+                type = {StringType.class},
+                order = 5,
+                min = 0,
+                max = 1,
+                modifier = false,
+                summary = true)
+        protected StringType locationId;
+
+        @Child(
+                name = TREE,
+                type = {LocationHierarchyTree.class})
+        private LocationHierarchyTree locationHierarchyTree;
+
+        public MirrorLocationHierarchy() {}
+    }
+}
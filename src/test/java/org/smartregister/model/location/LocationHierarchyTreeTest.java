@@ -15,16 +15,25 @@
  */
 package org.smartregister.model.location;
 
+import ca.uhn.fhir.context.FhirContext;
 import org.hl7.fhir.r4.model.Location;
 import org.hl7.fhir.r4.model.Reference;
 import org.junit.Test;
+import org.smartregister.model.location.utils.TestUtils;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNull;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 public class LocationHierarchyTreeTest {
 
@@ -223,6 +232,24 @@ public class LocationHierarchyTreeTest {
                         .getValue());
     }
 
+    @Test
+    public void testAddLocationWithoutPayload() {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.addLocation("Location/1", "root", "");
+        locationHierarchyTree.addLocation("Location/2/_history/1", "child", "Location/1");
+        locationHierarchyTree.addLocation("Location/3", "grandChild", "Location/2");
+        Location location = new Location();
+        location.setId("Location/3");
+        locationHierarchyTree.setLocationLoader(id -> "Location/3".equals(id) ? location : null);
+
+        Tree tree = locationHierarchyTree.getLocationsHierarchy();
+        assertEquals(3, tree.getCompactHierarchy().size());
+        assertNull(tree.getNode("Location/1").getParent().getValue());
+        assertEquals("grandChild", tree.getNode("Location/3").getLabel().getValue());
+        assertEquals(location, tree.getNode("Location/3").getNode());
+        assertNull(tree.getNode("Location/1").getNode());
+    }
+
     @Test
     public void testAddLocationWithMalformedIdUsesCorrectId() {
         Location location = new Location();
@@ -244,6 +271,228 @@ public class LocationHierarchyTreeTest {
         assertEquals(0, tree.getTree().getTreeNode().getChildren().size());
     }
 
+    @Test
+    public void testAddLocationExtractsLocationIds() {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        Location root = new Location();
+        root.setId("Location/1/_history/2");
+        locationHierarchyTree.addLocation(root);
+        Location child = new Location();
+        child.setId("http://test-server/fhir//Location//2");
+        child.setPartOf(new Reference("Location/1"));
+        locationHierarchyTree.addLocation(child);
+        Location unqualified = new Location();
+        unqualified.setId("3");
+        unqualified.setPartOf(new Reference("Location/2"));
+        locationHierarchyTree.addLocation(unqualified);
+
+        Tree tree = locationHierarchyTree.getLocationsHierarchy();
+        assertEquals("Location/1", tree.getTree().getTreeNodeId().getValue());
+        assertEquals("Location/2", tree.getNode("Location/2").getNodeId().getValue());
+        assertEquals("3", tree.getNode("3").getNodeId().getValue());
+        assertEquals("Location/2", tree.getNode("3").getParent().getValue());
+    }
+
+    @Test
+    public void testBuildTreeFromLargeList() {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromList(TestUtils.getTestLocations());
+
+        Tree tree = locationHierarchyTree.getLocationsHierarchy();
+        assertEquals("Location/1", tree.getTree().getTreeNodeId().getValue());
+        assertEquals(3, tree.getTree().getTreeNode().getChildren().size());
+
+        TreeNode lastNode = tree.getNode("Location/" + TestUtils.TOTAL_LOCATIONS);
+        assertNotNull(lastNode);
+        String parentId = lastNode.getParent().getValue();
+        assertNotNull(tree.getNode(parentId));
+
+        int childCount = 0;
+        for (ParentChildrenMap parentChildrenMap : tree.getParentChildren()) {
+            childCount += parentChildrenMap.getChildIdentifiers().size();
+        }
+        assertEquals(TestUtils.TOTAL_LOCATIONS - 1, childCount);
+    }
+
+    @Test
+    public void testBuildTreeFromLocationsInAnyOrder() {
+        List<Location> locationList = getLocationList();
+        Collections.reverse(locationList);
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+
+        LocationHierarchyBuildReport report =
+                locationHierarchyTree.buildTreeFromLocations(locationList);
+
+        assertTrue(report.isComplete());
+        assertEquals("Location/1", report.getRootId());
+        assertEquals(3, report.getNodeCount());
+        Tree tree = locationHierarchyTree.getLocationsHierarchy();
+        assertEquals("Location/1", tree.getTree().getTreeNodeId().getValue());
+        assertEquals("Location/2", tree.getNode("Location/3").getParent().getValue());
+        assertEquals(2, tree.getParentChildren().size());
+        assertEquals("Location/1", tree.getParentChildren().get(0).getIdentifier().getValue());
+    }
+
+    @Test
+    public void testBuildTreeFromLocationsMatchesSortedBuild() {
+        List<Location> locationList = TestUtils.getTestLocations();
+        LocationHierarchyTree sortedTree = new LocationHierarchyTree();
+        sortedTree.buildTreeFromList(locationList);
+
+        List<Location> shuffledList = new ArrayList<>(locationList);
+        Collections.shuffle(shuffledList, new Random(42));
+        LocationHierarchyTree shuffledTree = new LocationHierarchyTree();
+        LocationHierarchyBuildReport report = shuffledTree.buildTreeFromLocations(shuffledList);
+
+        assertTrue(report.isComplete());
+        assertEquals(TestUtils.TOTAL_LOCATIONS, report.getNodeCount());
+        for (int i = 1; i <= TestUtils.TOTAL_LOCATIONS; i += 97) {
+            TreeNode expected = sortedTree.getLocationsHierarchy().getNode("Location/" + i);
+            TreeNode actual = shuffledTree.getLocationsHierarchy().getNode("Location/" + i);
+            assertEquals(expected.getParent().getValue(), actual.getParent().getValue());
+            assertEquals(expected.getChildren().size(), actual.getChildren().size());
+        }
+    }
+
+    @Test
+    public void testBuildTreeFromLocationsReportsOrphansAndDuplicates() {
+        List<Location> locationList = getLocationList();
+        locationList.add(0, locationList.get(2).copy());
+
+        Location orphan = new Location();
+        orphan.setId("Location/5");
+        orphan.setName("Test Location 5");
+        orphan.setPartOf(new Reference("Location/4"));
+        locationList.add(orphan);
+
+        Location orphanChild = new Location();
+        orphanChild.setId("Location/6");
+        orphanChild.setName("Test Location 6");
+        orphanChild.setPartOf(new Reference("Location/5"));
+        locationList.add(orphanChild);
+
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        LocationHierarchyBuildReport report =
+                locationHierarchyTree.buildTreeFromLocations(locationList);
+
+        assertFalse(report.isComplete());
+        assertEquals(Collections.singletonList("Location/3"), report.getDuplicateIds());
+        assertEquals(2, report.getOrphanIds().size());
+        assertEquals("Location/5", report.getOrphanIds().get(0));
+        assertEquals("Location/6", report.getOrphanIds().get(1));
+        assertEquals(3, report.getNodeCount());
+        assertNull(locationHierarchyTree.getLocationsHierarchy().getNode("Location/5"));
+        assertNotNull(locationHierarchyTree.getLocationsHierarchy().getNode("Location/3"));
+    }
+
+    @Test
+    public void testGetSubHierarchy() {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromList(getLocationList());
+
+        LocationHierarchyTree subHierarchy = locationHierarchyTree.getSubHierarchy("Location/2");
+
+        assertNotNull(subHierarchy);
+        Tree tree = subHierarchy.getLocationsHierarchy();
+        assertEquals("Location/2", tree.getTree().getTreeNodeId().getValue());
+        assertEquals("Location/1", tree.getTree().getTreeNode().getParent().getValue());
+        assertEquals("Location/3", tree.getNode("Location/3").getNodeId().getValue());
+        assertNull(tree.getNode("Location/1"));
+        assertNull(locationHierarchyTree.getSubHierarchy("Location/4"));
+    }
+
+    @Test
+    public void testCopyEncodesSameAsOriginal() throws IOException {
+        FhirContext fhirContext = FhirContext.forR4();
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromList(TestUtils.getTestLocations().subList(0, 2000));
+        String json = toJson(fhirContext, locationHierarchyTree);
+
+        LocationHierarchyTree copy = locationHierarchyTree.copy();
+        assertEquals(json, toJson(fhirContext, copy));
+
+        copy.addLocation("Location/5000", "added", "Location/1999");
+        copy.getLocationsHierarchy().moveNode("Location/6", "Location/3");
+        assertEquals(json, toJson(fhirContext, locationHierarchyTree));
+        assertEquals(
+                "Location/3",
+                copy.getLocationsHierarchy().getCompactHierarchy().getParentId("Location/6"));
+    }
+
+    @Test
+    public void testParallelBuildMatchesSequentialBuild() throws IOException {
+        List<Location> locationList =
+                new ArrayList<>(TestUtils.getTestLocations().subList(0, 5000));
+        Collections.shuffle(locationList, new Random(7));
+        locationList.add(locationList.get(100).copy());
+        locationList.get(10).setPartOf(new Reference("Location/4/_history/2"));
+        locationList.get(20).setPartOf(new Reference("Location/9000"));
+        locationList.get(30).setPartOf(new Reference("Location/4/_history/1"));
+
+        FhirContext fhirContext = FhirContext.forR4();
+        LocationHierarchyTree sequentialTree = new LocationHierarchyTree();
+        LocationHierarchyBuildReport expected = sequentialTree.buildTreeFromLocations(locationList);
+        String json = toJson(fhirContext, sequentialTree);
+
+        for (int parallelism : new int[] {1, 4}) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                LocationHierarchyTree parallelTree = new LocationHierarchyTree();
+                LocationHierarchyBuildReport report =
+                        parallelTree.buildTreeFromLocations(locationList, pool);
+
+                assertEquals(expected.getRootId(), report.getRootId());
+                assertEquals(expected.getNodeCount(), report.getNodeCount());
+                assertEquals(expected.getDuplicateIds(), report.getDuplicateIds());
+                assertEquals(expected.getOrphanIds(), report.getOrphanIds());
+                assertEquals(json, toJson(fhirContext, parallelTree));
+                Tree tree = parallelTree.getLocationsHierarchy();
+                assertTrue(tree.isDescendant("Location/1", "Location/4999"));
+                parallelTree.addLocation("Location/9000", "added", "Location/4");
+                assertEquals("Location/4", tree.getNode("Location/9000").getParent().getValue());
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testParallelBuildFallsBackToRootWithMissingParent() throws IOException {
+        List<Location> locationList = getLocationList();
+        locationList.remove(0);
+        locationList.add(0, locationList.remove(1));
+
+        LocationHierarchyTree sequentialTree = new LocationHierarchyTree();
+        LocationHierarchyBuildReport expected = sequentialTree.buildTreeFromLocations(locationList);
+        LocationHierarchyTree parallelTree = new LocationHierarchyTree();
+        LocationHierarchyBuildReport report =
+                parallelTree.buildTreeFromLocations(locationList, ForkJoinPool.commonPool());
+
+        FhirContext fhirContext = FhirContext.forR4();
+        assertEquals("Location/2", report.getRootId());
+        assertEquals(expected.getNodeCount(), report.getNodeCount());
+        assertEquals(toJson(fhirContext, sequentialTree), toJson(fhirContext, parallelTree));
+        assertEquals(
+                "Location/1",
+                parallelTree.getLocationsHierarchy().getParentChildren().get(0).getIdentifier()
+                        .getValue());
+
+        LocationHierarchyTree emptyTree = new LocationHierarchyTree();
+        report = emptyTree.buildTreeFromLocations(new ArrayList<>(), ForkJoinPool.commonPool());
+        assertNull(report.getRootId());
+        assertEquals(0, report.getNodeCount());
+    }
+
+    private static String toJson(
+            FhirContext fhirContext, LocationHierarchyTree locationHierarchyTree)
+            throws IOException {
+        LocationHierarchy locationHierarchy = new LocationHierarchy();
+        locationHierarchy.setLocationHierarchyTree(locationHierarchyTree);
+        StringWriter writer = new StringWriter();
+        new LocationHierarchyJsonWriter(fhirContext).write(locationHierarchy, writer);
+        return writer.toString();
+    }
+
     private static List<Location> getLocationList() {
         Location location1 = new Location();
         location1.setId("Location/1");
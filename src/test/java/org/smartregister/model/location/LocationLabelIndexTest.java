@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import org.junit.Test;
+import org.smartregister.model.location.utils.TestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static junit.framework.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LocationLabelIndexTest {
+
+    @Test
+    public void testSearchMatchesWordPrefixes() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "Kenya", null, null);
+        tree.addNode("Location/2", "Nairobi County", null, "Location/1");
+        tree.addNode("Location/3", "Kisumu County", null, "Location/1");
+        tree.addNode("Location/4", "Nairobi West", null, "Location/2");
+        tree.addNode("Location/5", "Kisumu East", null, "Location/3");
+        tree.addNode("Location/6", "kisumu-central", null, "Location/3");
+        tree.addNode("Location/7", null, null, "Location/3");
+
+        LocationLabelIndex index = LocationLabelIndex.from(tree.getCompactHierarchy());
+
+        assertEquals(Arrays.asList("Location/2", "Location/4"), index.search("NAIR", 10));
+        assertEquals(Arrays.asList("Location/2", "Location/3"), index.search("coun", 10));
+        assertEquals(Collections.singletonList("Location/2"), index.search("nairobi co", 10));
+        assertEquals(Collections.singletonList("Location/6"), index.search("centr", 10));
+        assertEquals(
+                Arrays.asList("Location/3", "Location/5", "Location/6"),
+                index.search("kisumu", 10));
+        assertEquals(Arrays.asList("Location/3", "Location/5"), index.search("kisumu", 2));
+        assertEquals(Collections.emptyList(), index.search("isumu", 10));
+        assertEquals(Collections.emptyList(), index.search("kisumu", 0));
+    }
+
+    @Test
+    public void testSearchScopedToSubtree() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "Kenya", null, null);
+        tree.addNode("Location/2", "Nairobi County", null, "Location/1");
+        tree.addNode("Location/3", "Kisumu County", null, "Location/1");
+        tree.addNode("Location/4", "Nairobi West", null, "Location/2");
+        tree.addNode("Location/5", "Kisumu East", null, "Location/3");
+        tree.addNode("Location/6", "Kisumu Nairobi Road", null, "Location/3");
+
+        LocationLabelIndex index = LocationLabelIndex.from(tree.getCompactHierarchy());
+
+        assertEquals(
+                Arrays.asList("Location/2", "Location/6", "Location/4"),
+                index.search("nairobi", "Location/1", 10));
+        assertEquals(
+                Collections.singletonList("Location/6"), index.search("nairobi", "Location/3", 10));
+        assertEquals(Collections.singletonList("Location/5"), index.search("e", "Location/5", 10));
+        assertEquals(Collections.emptyList(), index.search("nairobi", "Location/9", 10));
+    }
+
+    @Test
+    public void testSearchOfLargeTreeMatchesLinearFilter() {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromList(TestUtils.getTestLocations());
+        Tree tree = locationHierarchyTree.getLocationsHierarchy();
+        CompactLocationHierarchy hierarchy = tree.getCompactHierarchy();
+
+        // Scopes both smaller and larger than the set of matching keys
+        for (String scopeId : new String[] {"Location/1", "Location/2", "Location/13"}) {
+            List<String> expected = new ArrayList<>();
+            for (String id : hierarchy.getSubtreeIds(scopeId)) {
+                if (hierarchy.getLabel(id).toLowerCase(Locale.ROOT).contains("location 12")) {
+                    expected.add(id);
+                }
+            }
+            List<String> found = tree.searchLabels("Location 12", scopeId, Integer.MAX_VALUE);
+            assertEquals(expected.size(), found.size());
+            assertTrue(found.containsAll(expected));
+        }
+        assertEquals(
+                Arrays.asList("Location/12", "Location/120", "Location/1200"),
+                tree.searchLabels("test location 12", null, 3));
+    }
+}
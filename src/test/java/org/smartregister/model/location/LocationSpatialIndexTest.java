@@ -0,0 +1,151 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import org.hl7.fhir.r4.model.Location;
+import org.junit.Test;
+import org.smartregister.model.location.utils.TestUtils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+
+public class LocationSpatialIndexTest {
+
+    @Test
+    public void testNearestAndBoundingBoxQueries() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "Kenya", newLocation(1.5, 38.5), null);
+        tree.addNode("Location/2", "Nairobi", null, "Location/1");
+        tree.addNode("Location/3", "Kisumu", null, "Location/1");
+        tree.addNode("Location/4", "Kenyatta Hospital", newLocation(-1.30, 36.81), "Location/2");
+        tree.addNode("Location/5", "Mbagathi Hospital", newLocation(-1.31, 36.80), "Location/2");
+        tree.addNode("Location/6", "Kisumu Hospital", newLocation(-0.09, 34.77), "Location/3");
+        tree.addNode("Location/7", "Unmapped Clinic", new Location(), "Location/3");
+
+        LocationSpatialIndex index = tree.getCompactHierarchy().getSpatialIndex();
+
+        assertEquals(4, index.size());
+        assertEquals(
+                Arrays.asList("Location/5", "Location/4", "Location/6"),
+                index.findNearest(-1.32, 36.79, 3));
+        assertEquals(
+                Collections.singletonList("Location/6"),
+                tree.findNearestLocations(-1.32, 36.79, 5, "Location/3"));
+        assertEquals(Collections.emptyList(), index.findNearest(-1.32, 36.79, 3, "Location/9"));
+        assertEquals(
+                Arrays.asList("Location/4", "Location/5"),
+                tree.findLocationsWithin(-2, 36, -1, 37, null));
+        assertEquals(
+                Collections.singletonList("Location/6"),
+                tree.findLocationsWithin(-1, 34, 1, 38, "Location/3"));
+        assertEquals(Collections.emptyList(), tree.findLocationsWithin(-1, 170, 1, -170, null));
+        assertEquals(
+                LocationSpatialIndex.distance(-1.30, 36.81, -0.09, 34.77),
+                LocationSpatialIndex.distance(-0.09, 34.77, -1.30, 36.81),
+                1e-6);
+    }
+
+    @Test
+    public void testQueriesMatchBruteForce() {
+        Random random = new Random(11);
+        List<Location> locationList = TestUtils.getTestLocations().subList(0, 5000);
+        for (Location location : locationList) {
+            // Points cluster near the poles and the antimeridian as well as elsewhere
+            double latitude =
+                    random.nextInt(10) == 0
+                            ? 85 + random.nextDouble() * 5
+                            : -90 + random.nextDouble() * 180;
+            double longitude =
+                    random.nextInt(10) == 0
+                            ? 178 + random.nextDouble() * 2
+                            : -180 + random.nextDouble() * 360;
+            location.setPosition(
+                    new Location.LocationPositionComponent()
+                            .setLatitude(BigDecimal.valueOf(latitude))
+                            .setLongitude(BigDecimal.valueOf(longitude)));
+        }
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromLocations(locationList);
+        Tree tree = locationHierarchyTree.getLocationsHierarchy();
+        CompactLocationHierarchy hierarchy = tree.getCompactHierarchy();
+
+        for (int query = 0; query < 50; query++) {
+            double latitude = -90 + random.nextDouble() * 180;
+            double longitude = -180 + random.nextDouble() * 360;
+            String scopeId = query % 2 == 0 ? null : "Location/" + (2 + random.nextInt(30));
+            List<String> candidates =
+                    scopeId == null
+                            ? hierarchy.getSubtreeIds(hierarchy.getRootId())
+                            : hierarchy.getSubtreeIds(scopeId);
+
+            List<String> expected = new ArrayList<>(candidates);
+            expected.sort(
+                    Comparator.comparingDouble(
+                                    (String id) -> distanceTo(hierarchy, id, latitude, longitude))
+                            .thenComparingInt(hierarchy::indexOf));
+            expected = expected.subList(0, Math.min(10, expected.size()));
+            assertEquals(expected, tree.findNearestLocations(latitude, longitude, 10, scopeId));
+
+            double minLongitude = longitude;
+            double maxLongitude = longitude + 40 > 180 ? longitude - 320 : longitude + 40;
+            List<String> inside = new ArrayList<>();
+            for (String id : candidates) {
+                Location.LocationPositionComponent position =
+                        hierarchy.getLocation(id).getPosition();
+                double pointLongitude = position.getLongitude().doubleValue();
+                boolean insideLongitudes =
+                        minLongitude <= maxLongitude
+                                ? pointLongitude >= minLongitude && pointLongitude <= maxLongitude
+                                : pointLongitude >= minLongitude || pointLongitude <= maxLongitude;
+                if (insideLongitudes
+                        && position.getLatitude().doubleValue() >= latitude - 20
+                        && position.getLatitude().doubleValue() <= latitude + 20) {
+                    inside.add(id);
+                }
+            }
+            assertEquals(
+                    inside,
+                    tree.findLocationsWithin(
+                            latitude - 20, minLongitude, latitude + 20, maxLongitude, scopeId));
+        }
+    }
+
+    private static double distanceTo(
+            CompactLocationHierarchy hierarchy, String id, double latitude, double longitude) {
+        Location.LocationPositionComponent position = hierarchy.getLocation(id).getPosition();
+        return LocationSpatialIndex.distance(
+                latitude,
+                longitude,
+                position.getLatitude().doubleValue(),
+                position.getLongitude().doubleValue());
+    }
+
+    private static Location newLocation(double latitude, double longitude) {
+        Location location = new Location();
+        location.setPosition(
+                new Location.LocationPositionComponent()
+                        .setLatitude(BigDecimal.valueOf(latitude))
+                        .setLongitude(BigDecimal.valueOf(longitude)));
+        return location;
+    }
+}
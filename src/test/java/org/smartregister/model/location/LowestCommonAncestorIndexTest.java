@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import org.hl7.fhir.r4.model.Location;
+import org.junit.Before;
+import org.junit.Test;
+import org.smartregister.model.location.utils.TestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+public class LowestCommonAncestorIndexTest {
+
+    private LowestCommonAncestorIndex index;
+
+    @Before
+    public void setUp() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "country", new Location(), null);
+        tree.addNode("Location/2", "region2", new Location(), "Location/1");
+        tree.addNode("Location/3", "region3", new Location(), "Location/1");
+        tree.addNode("Location/4", "district4", new Location(), "Location/2");
+        tree.addNode("Location/5", "district5", new Location(), "Location/2");
+        tree.addNode("Location/6", "facility6", new Location(), "Location/4");
+        tree.addNode("Location/7", "district7", new Location(), "Location/3");
+        index = new LowestCommonAncestorIndex(tree.getCompactHierarchy());
+    }
+
+    @Test
+    public void testLowestCommonAncestor() {
+        assertEquals("Location/2", index.lowestCommonAncestor("Location/6", "Location/5"));
+        assertEquals("Location/1", index.lowestCommonAncestor("Location/6", "Location/7"));
+        assertEquals("Location/4", index.lowestCommonAncestor("Location/4", "Location/6"));
+        assertEquals("Location/4", index.lowestCommonAncestor("Location/6", "Location/4"));
+        assertEquals("Location/5", index.lowestCommonAncestor("Location/5", "Location/5"));
+        assertNull(index.lowestCommonAncestor("Location/5", "Location/9"));
+    }
+
+    @Test
+    public void testPathAndDistance() {
+        assertEquals(
+                Arrays.asList(
+                        "Location/6", "Location/4", "Location/2", "Location/1", "Location/3", "Location/7"),
+                index.getPath("Location/6", "Location/7"));
+        assertEquals(
+                Arrays.asList("Location/1", "Location/2", "Location/4"),
+                index.getPath("Location/1", "Location/4"));
+        assertEquals(Collections.singletonList("Location/5"), index.getPath("Location/5", "Location/5"));
+        assertEquals(Collections.emptyList(), index.getPath("Location/5", "Location/9"));
+
+        CompactLocationHierarchy hierarchy = index.getHierarchy();
+        assertEquals(
+                5,
+                index.getDistance(hierarchy.indexOf("Location/6"), hierarchy.indexOf("Location/7")));
+    }
+
+    @Test
+    public void testAncestorAtDepth() {
+        CompactLocationHierarchy hierarchy = index.getHierarchy();
+        int facility = hierarchy.indexOf("Location/6");
+
+        assertEquals("Location/1", hierarchy.getId(index.getAncestorAtDepth(facility, 0)));
+        assertEquals("Location/2", hierarchy.getId(index.getAncestorAtDepth(facility, 1)));
+        assertEquals("Location/6", hierarchy.getId(index.getAncestorAtDepth(facility, 3)));
+        assertEquals(CompactLocationHierarchy.NO_NODE, index.getAncestorAtDepth(facility, 4));
+    }
+
+    @Test
+    public void testBatchQueriesMatchParentWalk() {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromList(TestUtils.getTestLocations());
+        LowestCommonAncestorIndex largeIndex = LowestCommonAncestorIndex.of(locationHierarchyTree);
+        CompactLocationHierarchy hierarchy = largeIndex.getHierarchy();
+
+        int pairs = 500;
+        int[] first = new int[pairs];
+        int[] second = new int[pairs];
+        for (int i = 0; i < pairs; i++) {
+            first[i] = (i * 7919) % hierarchy.size();
+            second[i] = (i * 104729 + 13) % hierarchy.size();
+        }
+        int[] result = largeIndex.lowestCommonAncestors(first, second);
+
+        for (int i = 0; i < pairs; i++) {
+            assertEquals(walkLowestCommonAncestor(hierarchy, first[i], second[i]), result[i]);
+        }
+    }
+
+    private static int walkLowestCommonAncestor(
+            CompactLocationHierarchy hierarchy, int first, int second) {
+        List<Integer> firstAncestors = new ArrayList<>();
+        for (int current = first;
+                current != CompactLocationHierarchy.NO_NODE;
+                current = hierarchy.getParentIndex(current)) {
+            firstAncestors.add(current);
+        }
+        for (int current = second; ; current = hierarchy.getParentIndex(current)) {
+            if (firstAncestors.contains(current)) {
+                return current;
+            }
+        }
+    }
+}
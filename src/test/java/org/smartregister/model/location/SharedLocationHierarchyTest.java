@@ -0,0 +1,155 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import org.hl7.fhir.r4.model.Location;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SharedLocationHierarchyTest {
+
+    @Test
+    public void testSubmittedMutationsArePublishedTogether() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", new Location(), null);
+        SharedLocationHierarchy sharedHierarchy = new SharedLocationHierarchy(tree);
+        CompactLocationHierarchy initial = sharedHierarchy.get();
+
+        sharedHierarchy.submit(t -> t.addNode("Location/2", "child2", new Location(), "Location/1"));
+        sharedHierarchy.submit(t -> t.addNode("Location/3", "child3", new Location(), "Location/2"));
+
+        assertSame(initial, sharedHierarchy.get());
+        assertEquals(1, sharedHierarchy.get().size());
+
+        CompactLocationHierarchy published = sharedHierarchy.publish();
+
+        assertSame(published, sharedHierarchy.get());
+        assertEquals(3, published.size());
+        assertTrue(published.isDescendant("Location/1", "Location/3"));
+        assertEquals(1, initial.size());
+    }
+
+    @Test
+    public void testFailedMutationIsNotPublished() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", new Location(), null);
+        SharedLocationHierarchy sharedHierarchy = new SharedLocationHierarchy(tree);
+        CompactLocationHierarchy initial = sharedHierarchy.get();
+
+        sharedHierarchy.submit(t -> t.addNode("Location/1", "root", new Location(), null));
+        sharedHierarchy.submit(t -> t.addNode("Location/2", "child2", new Location(), "Location/1"));
+        try {
+            sharedHierarchy.publish();
+            fail("Expected the duplicate node to be rejected");
+        } catch (IllegalArgumentException expected) {
+            assertSame(initial, sharedHierarchy.get());
+        }
+
+        assertEquals(2, sharedHierarchy.publish().size());
+    }
+
+    @Test
+    public void testFailedBatchLeavesNoPartialChanges() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", new Location(), null);
+        tree.addNode("Location/2", "child2", new Location(), "Location/1");
+        SharedLocationHierarchy sharedHierarchy = new SharedLocationHierarchy(tree);
+        CompactLocationHierarchy initial = sharedHierarchy.get();
+
+        sharedHierarchy.submit(t -> t.addNode("Location/3", "child3", new Location(), "Location/1"));
+        sharedHierarchy.submit(t -> t.updateNode("Location/2", "renamed", null));
+        sharedHierarchy.submit(t -> t.removeNode("Location/9"));
+        try {
+            sharedHierarchy.publish();
+            fail("Expected the missing node to be rejected");
+        } catch (IllegalArgumentException expected) {
+            assertSame(initial, sharedHierarchy.get());
+        }
+
+        sharedHierarchy.submit(t -> t.addNode("Location/4", "child4", new Location(), "Location/2"));
+        CompactLocationHierarchy published = sharedHierarchy.publish();
+
+        assertEquals(3, published.size());
+        assertEquals(CompactLocationHierarchy.NO_NODE, published.indexOf("Location/3"));
+        assertEquals("child2", published.getLabel("Location/2"));
+        assertTrue(published.isDescendant("Location/2", "Location/4"));
+        assertEquals(2, initial.size());
+    }
+
+    @Test
+    public void testReadersOnlySeeCompleteSnapshots() throws Exception {
+        Tree tree = new Tree();
+        tree.addNode("Location/0", "root", new Location(), null);
+        SharedLocationHierarchy sharedHierarchy = new SharedLocationHierarchy(tree);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> readers = new ArrayList<>();
+            for (int r = 0; r < 3; r++) {
+                readers.add(
+                        executor.submit(
+                                () -> {
+                                    while (writing.get()) {
+                                        assertConsistent(sharedHierarchy.get());
+                                    }
+                                }));
+            }
+
+            for (int batch = 0; batch < 50; batch++) {
+                int first = batch * 10 + 1;
+                sharedHierarchy.update(
+                        t -> {
+                            for (int i = first; i < first + 10; i++) {
+                                t.addNode(
+                                        "Location/" + i,
+                                        "child" + i,
+                                        new Location(),
+                                        "Location/" + (i / 2));
+                            }
+                        });
+            }
+            writing.set(false);
+            for (Future<?> reader : readers) {
+                reader.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(501, sharedHierarchy.get().size());
+    }
+
+    private static void assertConsistent(CompactLocationHierarchy hierarchy) {
+        // Batches add ten nodes at a time, so a half applied batch would show up in the size
+        assertEquals(1, hierarchy.size() % 10);
+        for (int i = 1; i < hierarchy.size(); i++) {
+            assertTrue(hierarchy.getParentIndex(i) < i);
+            assertTrue(hierarchy.isDescendant(0, i));
+        }
+    }
+}
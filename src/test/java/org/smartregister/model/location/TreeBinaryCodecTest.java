@@ -0,0 +1,250 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Test;
+import org.smartregister.model.location.utils.TestUtils;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TreeBinaryCodecTest {
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+    @Test
+    public void testRoundTripIsLossless() throws IOException {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromList(TestUtils.getTestLocations().subList(0, 2000));
+        Tree tree = locationHierarchyTree.getLocationsHierarchy();
+
+        byte[] bytes = new TreeBinaryCodec(FHIR_CONTEXT).encode(tree);
+        Tree decoded = new TreeBinaryCodec(FHIR_CONTEXT).decode(bytes);
+
+        String json = toJson(tree);
+        assertEquals(json, toJson(decoded));
+        int jsonLength = json.getBytes(StandardCharsets.UTF_8).length;
+        assertTrue(bytes.length < jsonLength);
+        assertTrue(new TreeBinaryCodec().encode(tree).length < jsonLength / 4);
+    }
+
+    @Test
+    public void testRoundTripWithoutPayloads() throws IOException {
+        Tree tree = new Tree();
+        Location location = new Location();
+        location.setId("Location/1");
+        tree.addNode("Location/1", "root", location, null);
+        tree.addNode("Location/2", "child", new Location(), "Location/1");
+        tree.addNode("Location/3", "grandChild", new Location(), "Location/2");
+
+        Tree decoded = new TreeBinaryCodec().decode(new TreeBinaryCodec().encode(tree));
+
+        assertNull(decoded.getNode("Location/1").getNode());
+        assertEquals("grandChild", decoded.getNode("Location/3").getLabel().getValue());
+        assertEquals(
+                Arrays.asList("Location/1", "Location/2", "Location/3"),
+                decoded.getSubtreeIds("Location/1"));
+        TreeNode child = decoded.getNode("Location/2");
+        assertSame(child.getNodeId(), decoded.getNode("Location/3").getParent());
+        assertSame(child.getNodeId(), decoded.getParentChildren().get(1).getIdentifier());
+
+        decoded.addNode("Location/4", "added", null, "Location/3");
+        assertEquals("Location/3", decoded.getNode("Location/4").getParent().getValue());
+    }
+
+    @Test
+    public void testRoundTripOfUnusualTree() throws IOException {
+        Tree tree = new Tree();
+        Location location = new Location();
+        location.setId("Location/1");
+        location.setPartOf(new Reference("Location/0"));
+        tree.addNode("Location/1", "root é✓", location, "Location/0");
+        tree.addNode("Location/2", null, null, "Location/1");
+        tree.addNode("Location/3", "child3", null, "Location/1");
+        TreeNode root = tree.getNode("Location/1");
+        root.setName(new StringType("named"));
+        root.getChildren().get(1).setChildId(new StringType("Location/other"));
+        root.getChildren().add(new ChildTreeNode().setChildId(new StringType("Location/9")));
+        tree.getParentChildren()
+                .add(
+                        new ParentChildrenMap()
+                                .setIdentifier(new StringType("Location/3"))
+                                .setChildIdentifiers(
+                                        Arrays.asList(
+                                                new StringType("Location/8"),
+                                                new StringType(null))));
+
+        TreeBinaryCodec codec = new TreeBinaryCodec(FHIR_CONTEXT);
+        Tree decoded = codec.decode(codec.encode(tree));
+
+        assertEquals(toJson(tree), toJson(decoded));
+        assertEquals("Location/0", decoded.getNode("Location/1").getParent().getValue());
+    }
+
+    @Test
+    public void testRoundTripOfEmptyTree() throws IOException {
+        Tree decoded = new TreeBinaryCodec().decode(new TreeBinaryCodec().encode(new Tree()));
+
+        assertTrue(decoded.getTree().isEmpty());
+        assertNull(decoded.getNode("Location/1"));
+        assertTrue(decoded.getParentChildren().isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeRejectsOtherData() throws IOException {
+        new TreeBinaryCodec()
+                .decode("{\"resourceType\":\"Location\"}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRoundTripOfUnnamedNodes() throws IOException {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", null, null);
+        tree.addNode("Location/2", "child", null, "Location/1");
+        tree.addNode("Location/3", "grandChild", null, "Location/2");
+        String json = toJson(tree);
+
+        TreeBinaryCodec codec = new TreeBinaryCodec(FHIR_CONTEXT);
+        Tree decoded = codec.decode(codec.encode(tree));
+
+        for (String id : Arrays.asList("Location/1", "Location/2", "Location/3")) {
+            assertNull(tree.getNode(id).peekName());
+            assertNull(decoded.getNode(id).peekName());
+        }
+        assertEquals(json, toJson(tree));
+        assertEquals(json, toJson(decoded));
+    }
+
+    @Test
+    public void testDecodeRejectsTruncatedInput() {
+        Tree tree = new Tree();
+        Location location = new Location();
+        location.setId("Location/1");
+        tree.addNode("Location/1", "root", location, null);
+        tree.addNode("Location/2", "child", null, "Location/1");
+        tree.addNode("Location/3", "grandChild", null, "Location/2");
+        tree.getNode("Location/2").setName(new StringType("named"));
+        byte[] bytes = new TreeBinaryCodec(FHIR_CONTEXT).encode(tree);
+
+        for (int length = 0; length < bytes.length; length++) {
+            try {
+                new TreeBinaryCodec(FHIR_CONTEXT).decode(Arrays.copyOf(bytes, length));
+                fail("Decoded a tree from the first " + length + " bytes");
+            } catch (IOException expected) {
+                // Every prefix is missing part of the tree
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeRejectsCountsBeyondTheInput() {
+        // Counts and lengths far beyond the input, and a count that does not fit an int
+        byte[][] inputs = {
+            {'L', 'H', 'T', 2, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0},
+            {'L', 'H', 'T', 2, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 'a'},
+            {'L', 'H', 'T', 2, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F}
+        };
+        for (byte[] input : inputs) {
+            try {
+                new TreeBinaryCodec().decode(input);
+                fail("Decoded a tree from " + Arrays.toString(input));
+            } catch (IOException expected) {
+                // The input ends long before the counts it declares
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTripKeepsAbsentLabelsAndParents() throws IOException {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", null, null);
+        tree.addNode("Location/2", "child", null, "Location/1");
+        tree.addNode("Location/3", "grandChild", null, "Location/2");
+        tree.getNode("Location/1").setLabel(null).setParent(null);
+        tree.getNode("Location/2").setLabel(new StringType(null)).setParent(null);
+        tree.getNode("Location/3").setParent(new StringType(null));
+
+        TreeBinaryCodec codec = new TreeBinaryCodec(FHIR_CONTEXT);
+        Tree decoded = codec.decode(codec.encode(tree));
+
+        TreeNode root = decoded.getNode("Location/1");
+        assertNull(root.getLabel());
+        assertNull(root.getParent());
+        TreeNode child = decoded.getNode("Location/2");
+        assertNull(child.getLabel().getValue());
+        assertNull(child.getParent());
+        TreeNode grandChild = decoded.getNode("Location/3");
+        assertEquals("grandChild", grandChild.getLabel().getValue());
+        assertNull(grandChild.getParent().getValue());
+        assertEquals(toJson(tree), toJson(decoded));
+    }
+
+    @Test
+    public void testDecodeRejectsCorruptRecords() {
+        byte[][] inputs = {
+            // A record flag this version does not know
+            {'L', 'H', 'T', 2, 0, 0, 1, 1 << 6, 0, 0, 0},
+            // A record without a node that has node flags too
+            {'L', 'H', 'T', 2, 0, 0, 1, 1 << 3 | 1 << 1, 0, 0, 0},
+            // A payload that is not JSON
+            {'L', 'H', 'T', 2, 0, 0, 1, 1, 0, 0, 3, '{', 'x', '}', 0},
+            // A payload that is not a Location
+            {'L', 'H', 'T', 2, 0, 0, 1, 1, 0, 0, 26, '{', '"', 'r', 'e', 's', 'o', 'u', 'r', 'c',
+                'e', 'T', 'y', 'p', 'e', '"', ':', '"', 'P', 'a', 't', 'i', 'e', 'n', 't', '"',
+                '}', 0}
+        };
+        for (byte[] input : inputs) {
+            try {
+                new TreeBinaryCodec(FHIR_CONTEXT).decode(input);
+                fail("Decoded a tree from " + Arrays.toString(input));
+            } catch (IOException expected) {
+                // Corrupt input fails as IOException, not as whatever HAPI throws
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeRejectsExtensions() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", null, null);
+        tree.getNode("Location/1")
+                .addExtension(new Extension("http://example.org/node", new StringType("x")));
+
+        new TreeBinaryCodec().encode(tree);
+    }
+
+    private static String toJson(Tree tree) throws IOException {
+        LocationHierarchy locationHierarchy = new LocationHierarchy();
+        locationHierarchy.setLocationHierarchyTree(
+                new LocationHierarchyTree().setLocationsHierarchy(tree));
+        StringWriter writer = new StringWriter();
+        new LocationHierarchyJsonWriter(FHIR_CONTEXT).write(locationHierarchy, writer);
+        return writer.toString();
+    }
+}
@@ -21,6 +21,7 @@ import org.junit.Test;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
 
 public class TreeNodeTest {
 
@@ -79,4 +80,29 @@ public class TreeNodeTest {
         assertEquals(0, rootNode.getChildren().size());
         assertNull(rootNode.findChild("Location/2"));
     }
+
+    @Test
+    public void testCopyIsDeep() {
+        StringType rootNodeId = new StringType("Location/1");
+        Location location = new Location();
+        location.setId("Location/1");
+        TreeNode rootNode =
+                new TreeNode(new StringType("Root Node"), rootNodeId, null, location, null);
+        TreeNode childNode =
+                new TreeNode(null, new StringType("Location/2"), null, null, rootNodeId);
+        rootNode.attachChild(childNode);
+
+        TreeNode copy = rootNode.copy();
+        copy.attachChild(new TreeNode(null, new StringType("Location/3"), null, null, rootNodeId));
+        copy.getNodeId().setValue("Location/10");
+        copy.getNode().setName("Copied");
+        copy.findChild("Location/2").setLabel(new StringType("Copied child"));
+
+        assertNotSame(childNode, copy.findChild("Location/2"));
+        assertEquals("Location/1", rootNode.getNodeId().getValue());
+        assertNull(location.getName());
+        assertNull(childNode.getLabel());
+        assertEquals(1, rootNode.getChildren().size());
+        assertEquals(2, copy.getChildren().size());
+    }
 }
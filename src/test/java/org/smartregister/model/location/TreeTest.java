@@ -16,11 +16,31 @@
 package org.smartregister.model.location;
 
 import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.StringType;
 import org.junit.Test;
+import org.smartregister.model.location.utils.TestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNull;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class TreeTest {
 
@@ -67,4 +87,559 @@ public class TreeTest {
 
         assertEquals("Location/1", parentNodeId);
     }
+
+    @Test
+    public void testGetNodeFindsNestedNodes() {
+        Tree tree = new Tree();
+        Location location = new Location();
+        location.setId("testId");
+        tree.addNode("Location/1", "test", location, null);
+        tree.addNode("Location/2", "test2", location, "Location/1");
+        tree.addNode("Location/3", "test3", location, "Location/2");
+        tree.addNode("Location/4", "test4", location, "Location/1");
+
+        TreeNode grandChild = tree.getNode("Location/3/_history/2");
+
+        assertNotNull(grandChild);
+        assertEquals("Location/3", grandChild.getNodeId().getValue());
+        assertEquals(
+                grandChild,
+                tree.getNode("Location/2").getChildren().get(0).getChildren());
+        assertEquals("Location/4", tree.getNode("Location/4").getNodeId().getValue());
+        assertNull(tree.getNode("Location/5"));
+        assertNull(tree.getNode(null));
+    }
+
+    @Test
+    public void testGetNodeAfterRootIsReplaced() {
+        Tree tree = new Tree();
+        Location location = new Location();
+        location.setId("testId");
+        tree.addNode("Location/2", "test2", location, "Location/1");
+        tree.addNode("Location/3", "test3", location, "Location/2");
+        tree.addNode("Location/4", "test4", location, null);
+
+        assertNull(tree.getNode("Location/2"));
+        assertNull(tree.getNode("Location/3"));
+        assertEquals("Location/4", tree.getNode("Location/4").getNodeId().getValue());
+    }
+
+    @Test
+    public void testGetNodeAfterSetListOfNodes() {
+        Tree source = new Tree();
+        Location location = new Location();
+        location.setId("testId");
+        source.addNode("Location/1", "test", location, null);
+        source.addNode("Location/2", "test2", location, "Location/1");
+
+        Tree tree = new Tree();
+        tree.addNode("Location/9", "test9", location, null);
+        tree.setListOfNodes(source.getListOfNodes());
+
+        assertNull(tree.getNode("Location/9"));
+        assertEquals("Location/2", tree.getNode("Location/2").getNodeId().getValue());
+
+        tree.addNode("Location/3", "test3", location, "Location/2");
+        assertEquals("Location/2", tree.getNode("Location/3").getParent().getValue());
+    }
+
+    @Test
+    public void testParentChildrenAfterSetParentChildren() {
+        Tree tree = new Tree();
+        Location location = new Location();
+        location.setId("testId");
+        tree.addNode("Location/1", "test", location, null);
+        tree.addNode("Location/2", "test2", location, "Location/1");
+
+        List<ParentChildrenMap> parentChildren = new ArrayList<>(tree.getParentChildren());
+        tree.setParentChildren(parentChildren);
+        tree.addNode("Location/3", "test3", location, "Location/1");
+        tree.getParentChildren().add(new ParentChildrenMap().setIdentifier(new StringType("Location/3")));
+        tree.addNode("Location/4", "test4", location, "Location/3");
+
+        assertEquals(2, parentChildren.size());
+        assertEquals(2, parentChildren.get(0).getChildIdentifiers().size());
+        assertEquals("Location/3", parentChildren.get(0).getChildIdentifiers().get(1).getValue());
+        assertEquals("Location/4", parentChildren.get(1).getChildIdentifiers().get(0).getValue());
+    }
+
+    @Test
+    public void testIsDescendantAfterIncrementalAdds() {
+        Tree tree = new Tree();
+        Location location = new Location();
+        tree.addNode("Location/1", "test", location, null);
+        tree.addNode("Location/2", "test2", location, "Location/1");
+
+        assertTrue(tree.isDescendant("Location/1", "Location/2"));
+        assertFalse(tree.isDescendant("Location/2", "Location/3"));
+        assertSame(tree.getCompactHierarchy(), tree.getCompactHierarchy());
+
+        tree.addNode("Location/3", "test3", location, "Location/2");
+
+        assertTrue(tree.isDescendant("Location/2", "Location/3"));
+        assertTrue(tree.isDescendant("Location/1", "Location/3"));
+        assertEquals(3, tree.getSubtreeIds("Location/1").size());
+
+        tree.addNode("Location/0", "test0", location, null);
+
+        assertFalse(tree.isDescendant("Location/1", "Location/3"));
+        assertEquals(1, tree.getSubtreeIds("Location/0").size());
+    }
+
+    @Test
+    public void testDirectNodeChangesAreSeenAfterResync() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", null, null);
+        tree.addNode("Location/2", "child2", null, "Location/1");
+        CompactLocationHierarchy snapshot = tree.getCompactHierarchy();
+
+        StringType parentId = new StringType("Location/2");
+        tree.getNode("Location/2")
+                .addChild(new TreeNode(null, new StringType("Location/3"), null, null, parentId));
+
+        assertNull(tree.getNode("Location/3"));
+        assertFalse(tree.isDescendant("Location/1", "Location/3"));
+        assertSame(snapshot, tree.getCompactHierarchy());
+
+        tree.setListOfNodes(tree.getListOfNodes());
+
+        assertNotNull(tree.getNode("Location/3"));
+        assertTrue(tree.isDescendant("Location/1", "Location/3"));
+        assertEquals(
+                Arrays.asList("Location/1", "Location/2", "Location/3"),
+                tree.getSubtreeIds("Location/1"));
+    }
+
+    @Test
+    public void testGetSubtreeSharesNodes() {
+        Tree tree = new Tree();
+        Location location = new Location();
+        tree.addNode("Location/1", "test", location, null);
+        tree.addNode("Location/2", "test2", location, "Location/1");
+        tree.addNode("Location/3", "test3", location, "Location/2");
+        tree.addNode("Location/4", "test4", location, "Location/2");
+        tree.addNode("Location/5", "test5", location, "Location/1");
+
+        Tree subtree = tree.getSubtree("Location/2");
+
+        assertNotNull(subtree);
+        assertEquals("Location/2", subtree.getTree().getTreeNodeId().getValue());
+        assertSame(tree.getNode("Location/2"), subtree.getTree().getTreeNode());
+        assertSame(tree.getNode("Location/4"), subtree.getNode("Location/4"));
+        assertNull(subtree.getNode("Location/5"));
+        assertNull(subtree.getNode("Location/1"));
+        assertEquals(1, subtree.getParentChildren().size());
+        assertSame(tree.getParentChildren().get(1), subtree.getParentChildren().get(0));
+        assertEquals(3, subtree.getSubtreeIds("Location/2").size());
+        assertNull(tree.getSubtree("Location/9"));
+    }
+
+    @Test
+    public void testChangingSubtreeLeavesSourceUnchanged() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", null, null);
+        tree.addNode("Location/2", "child2", null, "Location/1");
+        tree.addNode("Location/3", "grandChild3", null, "Location/2");
+        tree.addNode("Location/4", "grandChild4", null, "Location/2");
+        TreeNode childNode = tree.getNode("Location/2");
+
+        Tree subtree = tree.getSubtree("Location/2");
+        subtree.addNode("Location/5", "grandChild5", null, "Location/3");
+        subtree.updateNode("Location/4", "renamed", null);
+        subtree.removeNode("Location/3");
+        tree.updateNode("Location/2", "changed", null);
+
+        assertNotSame(childNode, tree.getNode("Location/2"));
+        assertEquals(
+                Arrays.asList("Location/1", "Location/2", "Location/3", "Location/4"),
+                tree.getSubtreeIds("Location/1"));
+        assertTrue(tree.getNode("Location/3").getChildren().isEmpty());
+        assertEquals("grandChild4", tree.getNode("Location/4").getLabel().getValue());
+        assertEquals(2, tree.getParentChildren().get(1).getChildIdentifiers().size());
+        assertEquals("child2", childNode.getLabel().getValue());
+        assertEquals("changed", tree.getNode("Location/2").getLabel().getValue());
+
+        assertEquals(
+                Arrays.asList("Location/2", "Location/4"), subtree.getSubtreeIds("Location/2"));
+        assertEquals("renamed", subtree.getNode("Location/4").getLabel().getValue());
+        assertEquals("child2", subtree.getNode("Location/2").getLabel().getValue());
+        assertNull(subtree.getNode("Location/5"));
+    }
+
+    @Test
+    public void testRemoveNodeRemovesSubtree() {
+        Tree tree = new Tree();
+        Location location = new Location();
+        tree.addNode("Location/1", "test", location, null);
+        tree.addNode("Location/2", "test2", location, "Location/1");
+        tree.addNode("Location/3", "test3", location, "Location/2");
+        tree.addNode("Location/4", "test4", location, "Location/1");
+
+        tree.removeNode("Location/2");
+
+        assertNull(tree.getNode("Location/2"));
+        assertNull(tree.getNode("Location/3"));
+        assertEquals(1, tree.getNode("Location/1").getChildren().size());
+        assertEquals(1, tree.getParentChildren().size());
+        assertEquals(1, tree.getParentChildren().get(0).getChildIdentifiers().size());
+        assertEquals(
+                "Location/4", tree.getParentChildren().get(0).getChildIdentifiers().get(0).getValue());
+        assertEquals(2, tree.getSubtreeIds("Location/1").size());
+
+        tree.removeNode("Location/4");
+
+        assertEquals(0, tree.getNode("Location/1").getChildren().size());
+        assertEquals(0, tree.getParentChildren().size());
+
+        tree.addNode("Location/2", "test2", location, "Location/1");
+        assertEquals("Location/1", tree.getNode("Location/2").getParent().getValue());
+    }
+
+    @Test
+    public void testRemoveRootEmptiesTree() {
+        Tree tree = new Tree();
+        Location location = new Location();
+        tree.addNode("Location/1", "test", location, null);
+        tree.addNode("Location/2", "test2", location, "Location/1");
+
+        tree.removeNode("Location/1");
+
+        assertNull(tree.getNode("Location/1"));
+        assertNull(tree.getNode("Location/2"));
+        assertTrue(tree.getParentChildren().isEmpty());
+        assertTrue(tree.getCompactHierarchy().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCannotRemoveMissingNode() {
+        new Tree().removeNode("Location/1");
+    }
+
+    @Test
+    public void testMoveNodeKeepsSubtree() {
+        Tree tree = new Tree();
+        Location location = new Location();
+        tree.addNode("Location/1", "test", location, null);
+        tree.addNode("Location/2", "test2", location, "Location/1");
+        tree.addNode("Location/3", "test3", location, "Location/2");
+        tree.addNode("Location/4", "test4", location, "Location/1");
+        assertTrue(tree.isDescendant("Location/2", "Location/3"));
+
+        tree.moveNode("Location/3", "Location/4");
+
+        assertEquals("Location/4", tree.getNode("Location/3").getParent().getValue());
+        assertEquals(0, tree.getNode("Location/2").getChildren().size());
+        assertEquals(1, tree.getNode("Location/4").getChildren().size());
+        assertTrue(tree.isDescendant("Location/4", "Location/3"));
+        assertFalse(tree.isDescendant("Location/2", "Location/3"));
+        assertEquals(2, tree.getParentChildren().size());
+        assertEquals("Location/4", tree.getParentChildren().get(1).getIdentifier().getValue());
+
+        tree.moveNode("Location/4", "Location/2");
+
+        assertTrue(tree.isDescendant("Location/2", "Location/3"));
+        assertSame(
+                tree.getNode("Location/3"),
+                tree.getNode("Location/4").getChildren().get(0).getChildren());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCannotMoveNodeUnderItsDescendant() {
+        Tree tree = new Tree();
+        Location location = new Location();
+        tree.addNode("Location/1", "test", location, null);
+        tree.addNode("Location/2", "test2", location, "Location/1");
+        tree.addNode("Location/3", "test3", location, "Location/2");
+
+        tree.moveNode("Location/2", "Location/3");
+    }
+
+    @Test
+    public void testIdsAreStoredOncePerNode() {
+        Tree tree = new Tree();
+        Location location = new Location();
+        tree.addNode("Location/1", "test", location, null);
+        tree.addNode("Location/2/_history/1", "test2", location, "Location/1");
+        tree.addNode("Location/3", "test3", location, "Location/2");
+
+        TreeNode root = tree.getNode("Location/1");
+        TreeNode child = tree.getNode("Location/2");
+        TreeNode grandChild = tree.getNode("Location/3");
+
+        assertSame(root.getNodeId(), tree.getTree().getTreeNodeId());
+        assertSame(root.getNodeId(), child.getParent());
+        assertSame(child.getNodeId(), root.getChildren().get(0).getChildId());
+        assertSame(child.getNodeId(), grandChild.getParent());
+        assertSame(root.getNodeId(), tree.getParentChildren().get(0).getIdentifier());
+        assertSame(child.getNodeId(), tree.getParentChildren().get(0).getChildIdentifiers().get(0));
+        assertSame(child.getNodeId(), tree.getParentChildren().get(1).getIdentifier());
+        assertEquals("Location/2", child.getNodeId().getValue());
+    }
+
+    @Test
+    public void testLocationsAreLoadedLazily() {
+        Tree tree = new Tree();
+        List<String> loadedIds = new ArrayList<>();
+        tree.setLocationLoader(
+                id -> {
+                    loadedIds.add(id);
+                    Location location = new Location();
+                    location.setId(id);
+                    return location;
+                });
+        tree.addNode("Location/1", "test", null, null);
+        tree.addNode("Location/2", "test2", null, "Location/1");
+        Location location = new Location();
+        tree.addNode("Location/3", "test3", location, "Location/1");
+
+        TreeNode child = tree.getNode("Location/2");
+        assertFalse(child.isNodeLoaded());
+        assertTrue(tree.getNode("Location/3").isNodeLoaded());
+        assertTrue(tree.getCompactHierarchy().contains("Location/2"));
+        assertTrue(loadedIds.isEmpty());
+
+        assertEquals("Location/2", child.getNode().getId());
+        assertSame(child.getNode(), child.getNode());
+        assertTrue(child.isNodeLoaded());
+        assertSame(location, tree.getNode("Location/3").getNode());
+        assertEquals(1, loadedIds.size());
+        assertFalse(tree.getNode("Location/1").isEmpty());
+    }
+
+    @Test
+    public void testLocationLoaderAppliesToExistingNodes() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "test", null, null);
+        tree.addNode("Location/2", "test2", null, "Location/1");
+        assertNull(tree.getNode("Location/2").getNode());
+
+        tree.setLocationLoader(id -> new Location().setName(id));
+
+        assertEquals("Location/2", tree.getNode("Location/2").getNode().getName());
+        assertEquals("Location/1", tree.getCompactHierarchy().getLocation(0).getName());
+    }
+
+    @Test
+    public void testLocationLoaderAppliesToTakenSnapshot() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "test", null, null);
+        tree.addNode("Location/2", "test2", null, "Location/1");
+        assertNull(tree.getCompactHierarchy().getLocation("Location/2"));
+
+        tree.setLocationLoader(id -> new Location().setName(id));
+
+        assertEquals("Location/2", tree.getCompactHierarchy().getLocation("Location/2").getName());
+    }
+
+    @Test
+    public void testUpdateNodeRefreshesSnapshot() {
+        Tree tree = new Tree();
+        Location location = new Location();
+        location.setName("before");
+        tree.addNode("Location/1", "test", location, null);
+        assertEquals("test", tree.getCompactHierarchy().getLabel("Location/1"));
+
+        tree.updateNode("Location/1", "renamed", null);
+        assertEquals("renamed", tree.getCompactHierarchy().getLabel("Location/1"));
+        assertSame(location, tree.getNode("Location/1").getNode());
+
+        Location updatedLocation = new Location();
+        tree.updateNode("Location/1", "renamed", updatedLocation);
+        assertSame(updatedLocation, tree.getCompactHierarchy().getLocation("Location/1"));
+    }
+
+    @Test
+    public void testLevelQueriesFollowChanges() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", null, null);
+        tree.addNode("Location/2", "child2", null, "Location/1");
+        tree.addNode("Location/3", "child3", null, "Location/1");
+        tree.addNode("Location/4", "grandChild4", null, "Location/2");
+        assertEquals(Arrays.asList("Location/4"), tree.getLevelIds(2));
+
+        tree.moveNode("Location/4", "Location/3");
+        tree.addNode("Location/5", "grandChild5", null, "Location/4");
+
+        assertEquals(3, tree.getDepth("Location/5"));
+        assertEquals(Arrays.asList("Location/4"), tree.getLevelIds("Location/3", 2));
+        assertTrue(tree.getLevelIds("Location/2", 2).isEmpty());
+        assertEquals(
+                Arrays.asList("Location/3", "Location/4"), tree.getSubtreeIds("Location/3", 2));
+    }
+
+    @Test
+    public void testCopySharesNodesUntilTheyChange() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", null, null);
+        tree.addNode("Location/2", "child2", null, "Location/1");
+        tree.addNode("Location/3", "grandChild3", null, "Location/2");
+        tree.addNode("Location/4", "child4", null, "Location/1");
+        CompactLocationHierarchy snapshot = tree.getCompactHierarchy();
+
+        Tree copy = tree.copy();
+
+        assertSame(tree.getNode("Location/3"), copy.getNode("Location/3"));
+        assertSame(snapshot, copy.getCompactHierarchy());
+
+        copy.addNode("Location/5", "grandChild5", null, "Location/3");
+        // Only the nodes on the path to the change are copied
+        assertNotSame(tree.getNode("Location/2"), copy.getNode("Location/2"));
+        assertSame(tree.getNode("Location/4"), copy.getNode("Location/4"));
+        copy.updateNode("Location/4", "renamed", null);
+
+        assertNull(tree.getNode("Location/5"));
+        assertTrue(tree.getNode("Location/3").getChildren().isEmpty());
+        assertEquals("child4", tree.getNode("Location/4").getLabel().getValue());
+        assertEquals(2, tree.getParentChildren().size());
+        assertSame(snapshot, tree.getCompactHierarchy());
+        assertEquals(
+                Arrays.asList("Location/1", "Location/2", "Location/3", "Location/5", "Location/4"),
+                copy.getSubtreeIds("Location/1"));
+        assertEquals("renamed", copy.getCompactHierarchy().getLabel("Location/4"));
+        assertEquals(3, copy.getParentChildren().size());
+
+        tree.moveNode("Location/3", "Location/4");
+        copy.removeNode("Location/2");
+
+        assertEquals(
+                Arrays.asList("Location/1", "Location/2", "Location/4", "Location/3"),
+                tree.getSubtreeIds("Location/1"));
+        assertEquals(Arrays.asList("Location/1", "Location/4"), copy.getSubtreeIds("Location/1"));
+        assertNull(copy.getNode("Location/3"));
+        assertEquals(1, copy.getParentChildren().size());
+        assertEquals(2, tree.getParentChildren().size());
+    }
+
+    @Test
+    public void testConcurrentCopiesLeaveSourceUnchanged() throws Exception {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", null, null);
+        for (int i = 2; i <= 50; i++) {
+            tree.addNode("Location/" + i, "child" + i, null, "Location/" + (i / 2));
+        }
+        List<String> ids = tree.getSubtreeIds("Location/1");
+        TreeNode leaf = tree.getNode("Location/50");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Tree>> copies = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                String label = "copy" + i;
+                copies.add(
+                        executor.submit(
+                                () -> {
+                                    Tree copy = tree.copy();
+                                    copy.updateNode("Location/50", label, null);
+                                    copy.removeNode("Location/2");
+                                    return copy;
+                                }));
+            }
+            for (int i = 0; i < copies.size(); i++) {
+                Tree copy = copies.get(i).get();
+                assertEquals("copy" + i, copy.getNode("Location/50").getLabel().getValue());
+                assertNull(copy.getNode("Location/4"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(ids, tree.getSubtreeIds("Location/1"));
+        assertSame(leaf, tree.getNode("Location/50"));
+        assertEquals("child50", leaf.getLabel().getValue());
+        tree.updateNode("Location/50", "changed", null);
+        assertEquals("changed", tree.getNode("Location/50").getLabel().getValue());
+        assertEquals("child50", leaf.getLabel().getValue());
+    }
+
+    @Test
+    public void testDeserializedTreeCanChangeAndCopy() throws Exception {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", null, null);
+        tree.addNode("Location/2", "child2", null, "Location/1");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(tree);
+        }
+
+        Tree deserialized;
+        try (ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            deserialized = (Tree) in.readObject();
+        }
+        deserialized.addNode("Location/3", "child3", null, "Location/1");
+        Tree copy = deserialized.copy();
+        copy.addNode("Location/4", "grandChild4", null, "Location/2");
+        deserialized.updateNode("Location/2", "renamed", null);
+
+        assertEquals(
+                Arrays.asList("Location/1", "Location/2", "Location/3"),
+                deserialized.getSubtreeIds("Location/1"));
+        assertEquals(
+                Arrays.asList("Location/1", "Location/2", "Location/4", "Location/3"),
+                copy.getSubtreeIds("Location/1"));
+        assertEquals("child2", copy.getNode("Location/2").getLabel().getValue());
+        assertEquals("renamed", deserialized.getNode("Location/2").getLabel().getValue());
+        assertEquals(2, tree.getSubtreeIds("Location/1").size());
+    }
+
+    @Test
+    public void testTraversalOrders() {
+        Tree tree = new Tree();
+        tree.addNode("Location/1", "root", null, null);
+        tree.addNode("Location/2", "child2", null, "Location/1");
+        tree.addNode("Location/3", "child3", null, "Location/1");
+        tree.addNode("Location/4", "grandChild4", null, "Location/2");
+        tree.addNode("Location/5", "grandChild5", null, "Location/2");
+        tree.addNode("Location/6", "grandChild6", null, "Location/3");
+
+        assertEquals(Arrays.asList(1, 2, 4, 5, 3, 6), getIds(tree.preOrderIterator()));
+        assertEquals(Arrays.asList(4, 5, 2, 6, 3, 1), getIds(tree.postOrderIterator()));
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), getIds(tree.breadthFirstIterator()));
+        assertEquals(
+                Arrays.asList(1, 2, 4, 5, 3, 6),
+                getIds(tree.stream().parallel().collect(Collectors.toList()).iterator()));
+        assertFalse(new Tree().preOrderIterator().hasNext());
+        assertEquals(0, new Tree().stream().count());
+    }
+
+    @Test
+    public void testTraversalOfDeepTree() {
+        Tree tree = new Tree();
+        tree.addNode("Location/0", "level 0", null, null);
+        for (int i = 1; i < 100000; i++) {
+            tree.addNode("Location/" + i, "level " + i, null, "Location/" + (i - 1));
+        }
+
+        Iterator<TreeNode> postOrder = tree.postOrderIterator();
+        assertEquals("Location/99999", postOrder.next().getNodeId().getValue());
+        assertEquals(100000, tree.stream().parallel().count());
+        assertSame(
+                tree.getNode("Location/99999"),
+                tree.getNode("Location/0").findChild("Location/99999"));
+    }
+
+    @Test
+    public void testParallelStreamSplitsBySubtree() {
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        locationHierarchyTree.buildTreeFromList(TestUtils.getTestLocations().subList(0, 20000));
+        Tree tree = locationHierarchyTree.getLocationsHierarchy();
+
+        Spliterator<TreeNode> spliterator = tree.spliterator();
+        assertNotNull(spliterator.trySplit());
+        assertEquals(
+                tree.getSubtreeIds("Location/1"),
+                tree.stream()
+                        .parallel()
+                        .map(treeNode -> treeNode.getNodeId().getValue())
+                        .collect(Collectors.toList()));
+    }
+
+    private static List<Integer> getIds(Iterator<TreeNode> iterator) {
+        List<Integer> ids = new ArrayList<>();
+        while (iterator.hasNext()) {
+            String id = iterator.next().getNodeId().getValue();
+            ids.add(Integer.parseInt(id.substring(id.indexOf('/') + 1)));
+        }
+        return ids;
+    }
 }
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location.utils;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.smartregister.model.location.LocationHierarchy;
+import org.smartregister.model.location.LocationHierarchyTree;
+import org.smartregister.utils.Constants;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates location hierarchies of a configurable shape for load and scale tests and benchmarks.
+ * The same settings and seed always produce the same locations.
+ *
+ * <p>Locations are generated level by level from a single root: every location above the last
+ * level gets a number of children drawn uniformly from the fan-out range, until the depth or the
+ * maximum number of locations is reached. Locations are numbered in that breadth-first order from
+ * {@code 1}, which is the number in their id and name, e.g. {@code Location/7} and {@code Location
+ * 7}. With the defaults and a fixed fan-out {@code f}, the parent of location {@code n} is location
+ * {@code (n - 2) / f + 1}.
+ *
+ * <p>Optionally ids and {@code partOf} references carry {@code /_history} suffixes, locations carry
+ * positions near their parent and lineage tags listing their ancestors, and the list is shuffled so
+ * that children may come before their parents.
+ */
+public class LocationHierarchyGenerator {
+
+    /** Forms of the generated location ids. */
+    public enum IdFormat {
+        /** {@code Location/<number>} */
+        SEQUENTIAL,
+        /** {@code Location/<uuid>}, with uuids derived from the seed */
+        UUID,
+        /** {@code http://example.org/fhir/Location/<number>} */
+        FULL_URL
+    }
+
+    private static final String BASE_URL = "http://example.org/fhir/";
+
+    private long seed = 42;
+
+    private int depth = 5;
+
+    private int minFanOut = 2;
+
+    private int maxFanOut = 10;
+
+    private int maxLocations = Integer.MAX_VALUE;
+
+    private IdFormat idFormat = IdFormat.SEQUENTIAL;
+
+    private double historyRatio;
+
+    private boolean positions;
+
+    private double rootLatitude;
+
+    private double rootLongitude = 37;
+
+    private double rootSpread = 4;
+
+    private boolean lineageTags;
+
+    private boolean shuffled;
+
+    public LocationHierarchyGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @param depth the number of levels below the root
+     */
+    public LocationHierarchyGenerator setDepth(int depth) {
+        this.depth = depth;
+        return this;
+    }
+
+    /**
+     * @param minFanOut the smallest number of children of a location above the last level
+     * @param maxFanOut the largest number of children of a location above the last level
+     */
+    public LocationHierarchyGenerator setFanOut(int minFanOut, int maxFanOut) {
+        if (minFanOut < 0 || maxFanOut < minFanOut) {
+            throw new IllegalArgumentException(
+                    "Invalid fan-out range " + minFanOut + " to " + maxFanOut);
+        }
+        this.minFanOut = minFanOut;
+        this.maxFanOut = maxFanOut;
+        return this;
+    }
+
+    /**
+     * @param maxLocations the number of locations after which generation stops, whatever the depth
+     */
+    public LocationHierarchyGenerator setMaxLocations(int maxLocations) {
+        this.maxLocations = maxLocations;
+        return this;
+    }
+
+    public LocationHierarchyGenerator setIdFormat(IdFormat idFormat) {
+        this.idFormat = idFormat;
+        return this;
+    }
+
+    /**
+     * @param historyRatio the share of ids and, independently, of {@code partOf} references that
+     *     get a {@code /_history/<version>} suffix
+     */
+    public LocationHierarchyGenerator setHistoryRatio(double historyRatio) {
+        this.historyRatio = historyRatio;
+        return this;
+    }
+
+    /**
+     * Gives every location a position. The root is placed at the given point and every other
+     * location around its parent, at a normally distributed offset whose spread halves with each
+     * level, so that subtrees cover nested regions.
+     *
+     * @param spread the standard deviation in degrees of the offsets of the root's children
+     */
+    public LocationHierarchyGenerator setPositions(
+            double rootLatitude, double rootLongitude, double spread) {
+        this.positions = true;
+        this.rootLatitude = rootLatitude;
+        this.rootLongitude = rootLongitude;
+        this.rootSpread = spread;
+        return this;
+    }
+
+    /**
+     * @param lineageTags whether locations carry a tag for each ancestor, as added by {@link
+     *     org.smartregister.helpers.LocationHelper}
+     */
+    public LocationHierarchyGenerator setLineageTags(boolean lineageTags) {
+        this.lineageTags = lineageTags;
+        return this;
+    }
+
+    /**
+     * @param shuffled whether the generated list is shuffled instead of listing parents first
+     */
+    public LocationHierarchyGenerator setShuffled(boolean shuffled) {
+        this.shuffled = shuffled;
+        return this;
+    }
+
+    /**
+     * @return the generated locations, parents first unless {@link #setShuffled(boolean)} is set
+     */
+    public List<Location> generateLocations() {
+        Random random = new Random(seed);
+        List<Location> locations = new ArrayList<>();
+        List<String> idParts = new ArrayList<>();
+        // Parent index and level of each location, by number - 1
+        List<int[]> lineage = new ArrayList<>();
+        List<double[]> coordinates = new ArrayList<>();
+
+        addLocation(random, locations, idParts, lineage, coordinates, -1);
+        int levelStart = 0;
+        for (int level = 1; level <= depth && locations.size() < maxLocations; level++) {
+            int levelEnd = locations.size();
+            for (int parent = levelStart;
+                    parent < levelEnd && locations.size() < maxLocations;
+                    parent++) {
+                int fanOut = minFanOut + random.nextInt(maxFanOut - minFanOut + 1);
+                for (int child = 0; child < fanOut && locations.size() < maxLocations; child++) {
+                    addLocation(random, locations, idParts, lineage, coordinates, parent);
+                }
+            }
+            if (levelEnd == locations.size()) {
+                break;
+            }
+            levelStart = levelEnd;
+        }
+        if (shuffled) {
+            Collections.shuffle(locations, random);
+        }
+        return locations;
+    }
+
+    private void addLocation(
+            Random random,
+            List<Location> locations,
+            List<String> idParts,
+            List<int[]> lineage,
+            List<double[]> coordinates,
+            int parent) {
+        int number = locations.size() + 1;
+        String idPart =
+                idFormat == IdFormat.UUID
+                        ? new UUID(random.nextLong(), random.nextLong()).toString()
+                        : String.valueOf(number);
+        int level = parent < 0 ? 0 : lineage.get(parent)[1] + 1;
+        idParts.add(idPart);
+        lineage.add(new int[] {parent, level});
+
+        Location location = new Location();
+        String id = Constants.LOCATION + Constants.FORWARD_SLASH + idPart;
+        location.setId(withHistory(random, idFormat == IdFormat.FULL_URL ? BASE_URL + id : id));
+        location.setName(Constants.LOCATION + Constants.SPACE + number);
+        location.setStatus(Location.LocationStatus.ACTIVE);
+        if (parent >= 0) {
+            location.setPartOf(
+                    new Reference(
+                            withHistory(
+                                    random,
+                                    Constants.LOCATION
+                                            + Constants.FORWARD_SLASH
+                                            + idParts.get(parent))));
+        }
+
+        if (positions) {
+            double[] point;
+            if (parent < 0) {
+                point = new double[] {rootLatitude, rootLongitude};
+            } else {
+                double spread = rootSpread / (1 << Math.min(level - 1, 30));
+                double[] parentPoint = coordinates.get(parent);
+                double latitude = parentPoint[0] + random.nextGaussian() * spread;
+                double longitude = parentPoint[1] + random.nextGaussian() * spread;
+                point =
+                        new double[] {
+                            Math.max(-90, Math.min(90, latitude)), wrapLongitude(longitude)
+                        };
+            }
+            coordinates.add(point);
+            location.setPosition(
+                    new Location.LocationPositionComponent()
+                            .setLatitude(BigDecimal.valueOf(point[0]))
+                            .setLongitude(BigDecimal.valueOf(point[1])));
+        }
+
+        if (lineageTags) {
+            for (int ancestor = parent; ancestor >= 0; ancestor = lineage.get(ancestor)[0]) {
+                location.getMeta()
+                        .addTag(
+                                new Coding()
+                                        .setSystem(Constants.DEFAULT_LOCATION_LINEAGE_TAG_URL)
+                                        .setCode(idParts.get(ancestor)));
+            }
+        }
+        locations.add(location);
+    }
+
+    private String withHistory(Random random, String id) {
+        if (historyRatio > 0 && random.nextDouble() < historyRatio) {
+            return id + "/_history/" + (1 + random.nextInt(9));
+        }
+        return id;
+    }
+
+    private static double wrapLongitude(double longitude) {
+        double wrapped = (longitude + 180) % 360;
+        return (wrapped < 0 ? wrapped + 360 : wrapped) - 180;
+    }
+
+    /**
+     * @return a hierarchy built from the generated locations, identified by the id of the root
+     */
+    public LocationHierarchy generateHierarchy() {
+        List<Location> locations = generateLocations();
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        String rootId = locationHierarchyTree.buildTreeFromLocations(locations).getRootId();
+        LocationHierarchy locationHierarchy = new LocationHierarchy();
+        locationHierarchy.setId(rootId);
+        locationHierarchy.setLocationId(new StringType(rootId));
+        locationHierarchy.setLocationHierarchyTree(locationHierarchyTree);
+        return locationHierarchy;
+    }
+
+    /**
+     * Writes the generated locations as NDJSON, one FHIR JSON resource per line, as used by bulk
+     * data exports and imports. Versions in {@code partOf} references are kept.
+     */
+    public void writeNdjson(FhirContext fhirContext, Writer writer) throws IOException {
+        IParser parser =
+                fhirContext
+                        .newJsonParser()
+                        .setPrettyPrint(false)
+                        .setStripVersionsFromReferences(false);
+        for (Location location : generateLocations()) {
+            writer.write(parser.encodeResourceToString(location));
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * @see #writeNdjson(FhirContext, Writer)
+     */
+    public void writeNdjson(FhirContext fhirContext, Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writeNdjson(fhirContext, writer);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2021 Ona Systems, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartregister.model.location.utils;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Location;
+import org.junit.Test;
+import org.smartregister.model.location.CompactLocationHierarchy;
+import org.smartregister.model.location.LocationHierarchy;
+import org.smartregister.model.location.LocationHierarchyBuildReport;
+import org.smartregister.model.location.LocationHierarchyJsonWriter;
+import org.smartregister.model.location.LocationHierarchyTree;
+import org.smartregister.utils.Constants;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LocationHierarchyGeneratorTest {
+
+    @Test
+    public void testGeneratesCompleteTreeWithFixedFanOut() {
+        List<Location> locations =
+                new LocationHierarchyGenerator()
+                        .setDepth(Integer.MAX_VALUE)
+                        .setFanOut(5, 5)
+                        .setMaxLocations(1000)
+                        .generateLocations();
+
+        assertEquals(1000, locations.size());
+        assertEquals("Location/1", locations.get(0).getId());
+        assertEquals("Location 1", locations.get(0).getName());
+        assertEquals("Location/1", locations.get(5).getPartOf().getReference());
+        assertEquals("Location/2", locations.get(6).getPartOf().getReference());
+        // Location n has parent (n - 2) / 5 + 1
+        assertEquals("Location/200", locations.get(999).getPartOf().getReference());
+    }
+
+    @Test
+    public void testSameSeedGivesSameHierarchy() throws IOException {
+        LocationHierarchyGenerator generator =
+                new LocationHierarchyGenerator()
+                        .setSeed(7)
+                        .setDepth(4)
+                        .setFanOut(1, 6)
+                        .setIdFormat(LocationHierarchyGenerator.IdFormat.UUID)
+                        .setHistoryRatio(0.3)
+                        .setPositions(-1.29, 36.82, 2)
+                        .setLineageTags(true)
+                        .setShuffled(true);
+        FhirContext fhirContext = FhirContext.forR4();
+
+        LocationHierarchyJsonWriter jsonWriter = new LocationHierarchyJsonWriter(fhirContext);
+        StringWriter first = new StringWriter();
+        jsonWriter.write(generator.generateHierarchy(), first);
+        StringWriter second = new StringWriter();
+        jsonWriter.write(generator.setSeed(7).generateHierarchy(), second);
+        assertEquals(first.toString(), second.toString());
+
+        LocationHierarchyTree locationHierarchyTree = new LocationHierarchyTree();
+        List<Location> locations = generator.generateLocations();
+        LocationHierarchyBuildReport report =
+                locationHierarchyTree.buildTreeFromLocations(locations);
+        assertTrue(report.isComplete());
+        CompactLocationHierarchy hierarchy =
+                locationHierarchyTree.getLocationsHierarchy().getCompactHierarchy();
+        assertTrue(hierarchy.getLevelCount() <= 5);
+        for (Location location : locations) {
+            String id = location.getIdElement().toUnqualifiedVersionless().getValue();
+            assertEquals(hierarchy.getDepth(id), location.getMeta().getTag().size());
+            assertTrue(location.hasPosition());
+        }
+        assertEquals(
+                Constants.DEFAULT_LOCATION_LINEAGE_TAG_URL,
+                locations.stream()
+                        .filter(location -> location.hasPartOf())
+                        .findFirst()
+                        .get()
+                        .getMeta()
+                        .getTag()
+                        .get(0)
+                        .getSystem());
+    }
+
+    @Test
+    public void testWritesOneLocationPerLine() throws IOException {
+        LocationHierarchyGenerator generator =
+                new LocationHierarchyGenerator()
+                        .setDepth(3)
+                        .setFanOut(3, 3)
+                        .setIdFormat(LocationHierarchyGenerator.IdFormat.FULL_URL)
+                        .setHistoryRatio(1);
+        FhirContext fhirContext = FhirContext.forR4();
+        StringWriter writer = new StringWriter();
+        generator.writeNdjson(fhirContext, writer);
+
+        String[] lines = writer.toString().split("\n");
+        assertEquals(1 + 3 + 9 + 27, lines.length);
+        Location location = fhirContext.newJsonParser().parseResource(Location.class, lines[4]);
+        assertEquals("Location 5", location.getName());
+        assertTrue(location.getPartOf().getReference().startsWith("Location/2/_history/"));
+
+        LocationHierarchy locationHierarchy = generator.generateHierarchy();
+        assertEquals("Location/1", locationHierarchy.getId());
+        assertEquals(
+                40,
+                locationHierarchy
+                        .getLocationHierarchyTree()
+                        .getLocationsHierarchy()
+                        .getCompactHierarchy()
+                        .size());
+    }
+}